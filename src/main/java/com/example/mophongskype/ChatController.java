@@ -1,11 +1,13 @@
 package com.example.mophongskype;
 
 import com.example.mophongskype.client.ChatClient;
+import com.example.mophongskype.client.MessageCache;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.ImageView;
@@ -19,10 +21,14 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.*;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javafx.application.HostServices;
 import javafx.scene.image.Image;
 
@@ -30,6 +36,17 @@ import static java.lang.System.out;
 
 
 public class ChatController {
+    // Số tin nhắn gần đây tải khi vào chat
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Số mục tối đa trên timeline, quá thì bỏ mục cũ nhất
+    private static final int MAX_TIMELINE_ITEMS = 5000;
+    private static final int PREVIEW_CACHE_SIZE = 64;
+    private static final int PREVIEW_WIDTH = 200;
+    private static final String MESSAGE_STYLE = "-fx-background-color: white; -fx-background-radius: 8; -fx-padding: 8; -fx-effect: dropshadow(gaussian, rgba(0,0,0,0.1), 2, 0, 0, 1);";
+    private static final String SYSTEM_STYLE = "-fx-background-color: #fff3cd; -fx-background-radius: 8; -fx-padding: 8; -fx-border-color: #ffeaa7; -fx-border-radius: 8; -fx-border-width: 1;";
+    private static final String FILE_SENT_STYLE = "-fx-background-color: #e1f5fe; -fx-background-radius: 8; -fx-padding: 8;";
+    private static final String FILE_RECEIVED_STYLE = "-fx-background-color: #e8f5e9; -fx-background-radius: 8; -fx-padding: 8; -fx-border-color: #4caf50; -fx-border-radius: 8; -fx-border-width: 1;";
+
     @FXML
     private Text titleText;
 
@@ -46,10 +63,7 @@ public class ChatController {
     private Button removeUserButton;
 
     @FXML
-    private ScrollPane chatScrollPane;
-
-    @FXML
-    private VBox chatContainer;
+    private ListView<ChatItem> chatListView;
 
     @FXML
     private TextField messageField;
@@ -81,6 +95,16 @@ public class ChatController {
 
     private HostServices hostServices;
 
+    // Dữ liệu của timeline chat (chatListView chỉ dựng node cho phần đang hiện)
+    private final ObservableList<ChatItem> timeline = FXCollections.observableArrayList();
+    // Ảnh preview đã decode, cũ nhất bị bỏ trước (cuộn lại tới thì decode lại)
+    private final Map<ChatItem, Image> previews = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChatItem, Image> eldest) {
+            return size() > PREVIEW_CACHE_SIZE;
+        }
+    };
+
     public void setHostServices(HostServices hostServices) {
         this.hostServices = hostServices;
     }
@@ -95,44 +119,14 @@ public class ChatController {
         // Thiết lập placeholder cho ComboBox
         privateUserCombo.setPlaceholder(new Label("Chọn người dùng"));
 
-        // Thiết lập scroll behavior
-        setupScrollBehavior();
+        setupTimeline();
     }
 
-    private void setupScrollBehavior() {
-        // Thiết lập scroll wheel behavior
-        chatScrollPane.setOnScroll(event -> {
-            double deltaY = event.getDeltaY();
-            double vValue = chatScrollPane.getVvalue();
-
-            // Scroll mượt mà với wheel
-            if (deltaY < 0) {
-                chatScrollPane.setVvalue(vValue + 0.1);
-            } else {
-                chatScrollPane.setVvalue(vValue - 0.1);
-            }
-        });
-
-        // Thiết lập keyboard shortcuts
-        chatScrollPane.setOnKeyPressed(event -> {
-            switch (event.getCode()) {
-                case HOME:
-                    chatScrollPane.setVvalue(0.0);
-                    break;
-                case END:
-                    scrollToBottom();
-                    break;
-                case PAGE_UP:
-                    chatScrollPane.setVvalue(chatScrollPane.getVvalue() - 0.3);
-                    break;
-                case PAGE_DOWN:
-                    chatScrollPane.setVvalue(chatScrollPane.getVvalue() + 0.3);
-                    break;
-            }
-        });
-
-        // Focus vào ScrollPane để có thể sử dụng keyboard
-        chatScrollPane.setFocusTraversable(true);
+    private void setupTimeline() {
+        // Chỉ dựng node cho các mục đang hiện trên màn hình, cuộn tới đâu cell được dùng lại tới đó
+        chatListView.setItems(timeline);
+        chatListView.setCellFactory(list -> new ChatCell());
+        chatListView.setFocusTraversable(true);
     }
 
     public void setChatClient(ChatClient client) {
@@ -140,12 +134,31 @@ public class ChatController {
         this.currentUsername = client.getUsername();
         setupClientCallbacks();
 
+        // Hiện ngay các tin đã lưu trên máy, rồi chỉ xin server phần mới hơn (máy mới: các tin gần nhất)
+        showCachedMessages();
+        this.chatClient.syncHistory(HISTORY_PAGE_SIZE);
+
         // Register image callback so inline images are shown without needing downloads
         this.chatClient.setOnImageReceived(im -> {
-            Platform.runLater(() -> addInlineImageMessage(im.sender, im.fileName, im.bytes));
+            Platform.runLater(() -> addInlineImageMessage(im.sender, im.fileName, im.file));
         });
     }
 
+    private void showCachedMessages() {
+        for (MessageCache.Entry entry : chatClient.getCachedMessages(HISTORY_PAGE_SIZE)) {
+            if (entry.kind == MessageCache.Kind.TEXT) {
+                if (!entry.sender.equals("SYSTEM") && !entry.sender.equals("SERVER")) {
+                    addMessageToChat(entry.sender, entry.text, false, entry.time);
+                }
+            } else {
+                File file = new File(entry.text);
+                if (file.exists()) {
+                    addFileReceivedMessage(entry.sender, file, isImageFile(file.getName()), entry.time);
+                }
+            }
+        }
+    }
+
     public void setOfflineMode(String username) {
         this.isOfflineMode = true;
         this.currentUsername = username;
@@ -221,6 +234,17 @@ public class ChatController {
 
 
 
+        // Lịch sử phòng: hiển thị như tin nhắn thường, bỏ qua SYSTEM/SERVER giống tin nhận trực tiếp
+        chatClient.setOnHistoryReceived(page -> {
+            Platform.runLater(() -> {
+                for (ChatClient.LoggedMessage message : page.messages) {
+                    if (!message.sender.equals("SYSTEM") && !message.sender.equals("SERVER")) {
+                        addMessageToChat(message.sender, message.text, false, message.time);
+                    }
+                }
+            });
+        });
+
         chatClient.setOnPrivateMessageReceived(message -> {
             Platform.runLater(() -> {
                 String[] parts = message.split(":", 2);
@@ -242,6 +266,19 @@ public class ChatController {
             });
         });
 
+        // Sau danh sách đầy đủ server chỉ gửi user vào/ra, cập nhật từng phần tử
+        chatClient.setOnUserJoined(user -> {
+            Platform.runLater(() -> {
+                if (!user.equals(currentUsername) && !onlineUsers.contains(user)) {
+                    onlineUsers.add(user);
+                }
+            });
+        });
+
+        chatClient.setOnUserLeft(user -> {
+            Platform.runLater(() -> onlineUsers.remove(user));
+        });
+
         chatClient.setOnLogoutResult(result -> {
             Platform.runLater(() -> {
                 if (result.equals("SUCCESS")) {
@@ -250,6 +287,23 @@ public class ChatController {
             });
         });
 
+        // Rớt mạng: client tự kết nối lại, tin nhắn gửi trong lúc đó được giữ và gửi sau
+        chatClient.setOnConnectionStateChanged(state -> {
+            Platform.runLater(() -> {
+                switch (state) {
+                    case RECONNECTING:
+                        addSystemMessage("Mất kết nối tới server, đang kết nối lại...");
+                        break;
+                    case CONNECTED:
+                        addSystemMessage("Đã kết nối lại tới server");
+                        break;
+                    case DISCONNECTED:
+                        addSystemMessage("Đã ngắt kết nối khỏi server");
+                        break;
+                }
+            });
+        });
+
         chatClient.setOnRemoved(message -> {
             Platform.runLater(() -> {
                 addSystemMessage(message);
@@ -353,43 +407,12 @@ public class ChatController {
 
 
     private void addMessageToChat(String sender, String message, boolean isPrivate) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-
-        // Tạo container cho tin nhắn với style đẹp hơn
-        VBox messageBox = new VBox();
-        messageBox.setSpacing(2);
-        messageBox.setStyle("-fx-background-color: white; -fx-background-radius: 8; -fx-padding: 8; -fx-effect: dropshadow(gaussian, rgba(0,0,0,0.1), 2, 0, 0, 1);");
-
-        // Tạo header với timestamp và sender
-        HBox headerBox = new HBox();
-        headerBox.setSpacing(5);
-
-        Text timeText = new Text("[" + timestamp + "]");
-        timeText.setStyle("-fx-fill: #999; -fx-font-size: 10px;");
-
-        Text senderText = new Text(sender);
-        if (isPrivate) {
-            senderText.setStyle("-fx-fill: #107c10; -fx-font-weight: bold; -fx-font-size: 12px;");
-        } else {
-            senderText.setStyle("-fx-fill: #0078d4; -fx-font-weight: bold; -fx-font-size: 12px;");
-        }
-
-        headerBox.getChildren().addAll(timeText, senderText);
-
-        // Tạo nội dung tin nhắn
-        Text messageText = new Text(message);
-        messageText.setStyle("-fx-fill: #333; -fx-font-size: 13px;");
-        messageText.setWrappingWidth(chatScrollPane.getWidth() - 50); // Wrap text theo chiều rộng
-
-        messageBox.getChildren().addAll(headerBox, messageText);
-
-        // Thêm vào container
-        chatContainer.getChildren().add(messageBox);
+        addMessageToChat(sender, message, isPrivate, System.currentTimeMillis());
+    }
 
-        // Scroll mượt mà xuống cuối
-        Platform.runLater(() -> {
-            scrollToBottom();
-        });
+    // time: thời điểm gửi (ms), với tin từ cache/lịch sử là giờ đã lưu chứ không phải lúc hiển thị
+    private void addMessageToChat(String sender, String message, boolean isPrivate, long time) {
+        appendToTimeline(new ChatItem(isPrivate ? ChatItem.Kind.PRIVATE : ChatItem.Kind.MESSAGE, sender, message, null, time));
     }
     @FXML
     private void handleChooseFile() {
@@ -409,27 +432,11 @@ public class ChatController {
     }
 
     private void addFileMessageToChat(String sender, File file) {
-        VBox fileBox = new VBox();
-        fileBox.setSpacing(5);
-        fileBox.setStyle("-fx-background-color: #e1f5fe; -fx-background-radius: 8; -fx-padding: 8;");
-
-        Label senderLabel = new Label(sender);
-        senderLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: #0078d4;");
-
-        Label fileLabel = new Label("File: " + file.getName());
-
-        fileBox.getChildren().add(senderLabel);
-
         if (isImageFile(file.getName())) {
             // Gửi file ảnh (lưu trong uploads trên server) - use SEND_MEDIA:IMAGE so server broadcasts inline bytes
             if (chatClient != null && chatClient.isConnected()) {
                 chatClient.sendMediaFile(file, "IMAGE");
             }
-            javafx.scene.image.ImageView imageView = new javafx.scene.image.ImageView(
-                    new javafx.scene.image.Image(file.toURI().toString(), 200, 0, true, true)
-            );
-            imageView.setPreserveRatio(true);
-            fileBox.getChildren().addAll(fileLabel, imageView);
         } else {
             // Với audio/video: dùng sendMediaFile để phân biệt TYPE
             String lower = file.getName().toLowerCase();
@@ -447,209 +454,78 @@ public class ChatController {
                     chatClient.sendFile(file);
                 }
             }
-
-            Hyperlink link = new Hyperlink("Tải xuống: " + file.getName());
-            link.setOnAction(e -> {
-                if (hostServices != null) {
-                    hostServices.showDocument(file.toURI().toString());
-                }
-            });
-
-            fileBox.getChildren().addAll(fileLabel, link);
         }
 
-        chatContainer.getChildren().add(fileBox);
-        scrollToBottom();
+        appendToTimeline(new ChatItem(ChatItem.Kind.FILE_SENT, sender, null, file));
     }
 
     /**
-     * Hiển thị thông báo file đã nhận trong chat
+     * Hiển thị thông báo file đã nhận trong chat (isImage: có preview ảnh)
      */
     private void addFileReceivedMessage(String sender, File file, boolean isImage) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-        
-        VBox fileBox = new VBox();
-        fileBox.setSpacing(5);
-        fileBox.setStyle("-fx-background-color: #e8f5e9; -fx-background-radius: 8; -fx-padding: 8; -fx-border-color: #4caf50; -fx-border-radius: 8; -fx-border-width: 1;");
-        
-        HBox headerBox = new HBox();
-        headerBox.setSpacing(5);
-        
-        Text timeText = new Text("[" + timestamp + "]");
-        timeText.setStyle("-fx-fill: #666; -fx-font-size: 10px;");
-        
-        Text senderText = new Text(sender + " đã gửi file:");
-        senderText.setStyle("-fx-fill: #2e7d32; -fx-font-weight: bold; -fx-font-size: 12px;");
-        
-        headerBox.getChildren().addAll(timeText, senderText);
-        
-        Label fileLabel = new Label("📁 " + file.getName() + " (Đã tải về: " + file.getParent() + ")");
-        fileLabel.setStyle("-fx-text-fill: #1b5e20; -fx-font-size: 12px;");
-        
-        fileBox.getChildren().add(headerBox);
-        fileBox.getChildren().add(fileLabel);
-        
-        // Hiển thị preview nếu là ảnh
-        if (isImage && file.exists() && file.length() > 0) {
-            try {
-                // Tạo ImageView với loading error handling
-                javafx.scene.image.Image image = new javafx.scene.image.Image(
-                    file.toURI().toString(), 
-                    200, 0, true, true, true
-                );
-                
-                ImageView imageView = new ImageView(image);
-                imageView.setPreserveRatio(true);
-                imageView.setFitWidth(200);
-                
-                // Xử lý lỗi khi load ảnh
-                image.errorProperty().addListener((obs, wasError, isNowError) -> {
-                    if (isNowError) {
-                        System.err.println("⚠️ Không thể load ảnh: " + file.getName());
-                        Label errorLabel = new Label("⚠️ Không thể hiển thị ảnh");
-                        errorLabel.setStyle("-fx-text-fill: red;");
-                        fileBox.getChildren().add(errorLabel);
-                    }
-                });
-                
-                fileBox.getChildren().add(imageView);
-                System.out.println("✅ Đã hiển thị ảnh: " + file.getName() + " (" + file.length() + " bytes)");
-            } catch (Exception e) {
-                System.err.println("❌ Lỗi hiển thị ảnh: " + e.getMessage());
-                e.printStackTrace();
-                Label errorLabel = new Label("⚠️ Lỗi khi hiển thị ảnh: " + e.getMessage());
-                errorLabel.setStyle("-fx-text-fill: red;");
-                fileBox.getChildren().add(errorLabel);
-            }
-        } else if (file.exists() && file.length() > 0) {
-            // Với audio/video: thêm controls
-            String lower = file.getName().toLowerCase();
-            if (lower.endsWith(".mp3") || lower.endsWith(".wav") || lower.endsWith(".ogg")) {
-                Media media = new Media(file.toURI().toString());
-                MediaPlayer mediaPlayer = new MediaPlayer(media);
-                Button playBtn = new Button("▶ Play Audio");
-                playBtn.setOnAction(e -> mediaPlayer.play());
-                Button pauseBtn = new Button("⏸ Pause");
-                pauseBtn.setOnAction(e -> mediaPlayer.pause());
-                fileBox.getChildren().addAll(playBtn, pauseBtn);
-            } else if (lower.endsWith(".mp4") || lower.endsWith(".avi") || lower.endsWith(".mov") || lower.endsWith(".mkv")) {
-                Media media = new Media(file.toURI().toString());
-                MediaPlayer mediaPlayer = new MediaPlayer(media);
-                MediaView mediaView = new MediaView(mediaPlayer);
-                mediaView.setFitWidth(250);
-                mediaView.setPreserveRatio(true);
-                Button playBtn = new Button("▶ Play Video");
-                playBtn.setOnAction(e -> mediaPlayer.play());
-                Button pauseBtn = new Button("⏸ Pause");
-                pauseBtn.setOnAction(e -> mediaPlayer.pause());
-                fileBox.getChildren().addAll(mediaView, playBtn, pauseBtn);
-            } else {
-                // Link để mở file
-                Hyperlink link = new Hyperlink("📂 Mở file: " + file.getName());
-                link.setOnAction(e -> {
-                    if (hostServices != null) {
-                        hostServices.showDocument(file.getParentFile().toURI().toString());
-                    }
-                });
-                fileBox.getChildren().add(link);
-            }
-        }
-        
-        chatContainer.getChildren().add(fileBox);
-        scrollToBottom();
+        addFileReceivedMessage(sender, file, isImage, System.currentTimeMillis());
     }
 
-    // New method: add inline image message from bytes (no disk save required)
-    private void addInlineImageMessage(String sender, String fileName, byte[] bytes) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-
-        VBox fileBox = new VBox();
-        fileBox.setSpacing(5);
-        fileBox.setStyle("-fx-background-color: #e8f5e9; -fx-background-radius: 8; -fx-padding: 8; -fx-border-color: #4caf50; -fx-border-radius: 8; -fx-border-width: 1;");
-
-        HBox headerBox = new HBox();
-        headerBox.setSpacing(5);
-
-        Text timeText = new Text("[" + timestamp + "]");
-        timeText.setStyle("-fx-fill: #666; -fx-font-size: 10px;");
-
-        Text senderText = new Text(sender + " đã gửi ảnh:");
-        senderText.setStyle("-fx-fill: #2e7d32; -fx-font-weight: bold; -fx-font-size: 12px;");
-
-        headerBox.getChildren().addAll(timeText, senderText);
-
-        fileBox.getChildren().add(headerBox);
+    private void addFileReceivedMessage(String sender, File file, boolean isImage, long time) {
+        appendToTimeline(new ChatItem(isImage ? ChatItem.Kind.IMAGE_RECEIVED : ChatItem.Kind.FILE_RECEIVED, sender, null, file, time));
+    }
 
-        try {
-            InputStream is = new ByteArrayInputStream(bytes);
-            Image image = new Image(is, 200, 0, true, true);
-            ImageView imageView = new ImageView(image);
-            imageView.setPreserveRatio(true);
-            imageView.setFitWidth(200);
+    // Ảnh inline: client đã lưu vào downloads/, timeline chỉ giữ File (preview decode khi cuộn tới)
+    private void addInlineImageMessage(String sender, String fileName, File file) {
+        appendToTimeline(new ChatItem(ChatItem.Kind.INLINE_IMAGE, sender, fileName, file));
+    }
 
-            image.errorProperty().addListener((obs, wasErr, isNowErr) -> {
-                if (isNowErr) {
-                    Label err = new Label("⚠️ Không thể hiển thị ảnh: " + fileName);
-                    err.setStyle("-fx-text-fill: red;");
-                    fileBox.getChildren().add(err);
-                }
-            });
+    private void addSystemMessage(String message) {
+        appendToTimeline(new ChatItem(ChatItem.Kind.SYSTEM, "SYSTEM", message, null));
+    }
 
-            fileBox.getChildren().addAll(new Label("📷 " + fileName), imageView);
-        } catch (Exception e) {
-            Label err = new Label("⚠️ Lỗi khi hiển thị ảnh: " + e.getMessage());
-            err.setStyle("-fx-text-fill: red;");
-            fileBox.getChildren().add(err);
+    private void appendToTimeline(ChatItem item) {
+        timeline.add(item);
+        // Giữ timeline có giới hạn: mục cũ nhất vẫn còn trong cache/lịch sử server
+        if (timeline.size() > MAX_TIMELINE_ITEMS) {
+            List<ChatItem> dropped = timeline.subList(0, timeline.size() - MAX_TIMELINE_ITEMS);
+            for (ChatItem old : dropped) {
+                previews.remove(old);
+            }
+            dropped.clear();
         }
-
-        chatContainer.getChildren().add(fileBox);
         scrollToBottom();
     }
 
     private void scrollToBottom() {
-        // Scroll mượt mà xuống cuối
-        chatScrollPane.setVvalue(1.0);
-
-        // Đảm bảo scroll hoàn toàn xuống cuối
-        chatScrollPane.requestLayout();
-        chatScrollPane.layout();
-        chatScrollPane.setVvalue(1.0);
+        if (!timeline.isEmpty()) {
+            chatListView.scrollTo(timeline.size() - 1);
+        }
     }
 
-    private void addSystemMessage(String message) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-
-        // Tạo container cho tin nhắn hệ thống
-        VBox messageBox = new VBox();
-        messageBox.setSpacing(2);
-        messageBox.setStyle("-fx-background-color: #fff3cd; -fx-background-radius: 8; -fx-padding: 8; -fx-border-color: #ffeaa7; -fx-border-radius: 8; -fx-border-width: 1;");
-
-        // Tạo header với timestamp
-        HBox headerBox = new HBox();
-        headerBox.setSpacing(5);
-
-        Text timeText = new Text("[" + timestamp + "]");
-        timeText.setStyle("-fx-fill: #856404; -fx-font-size: 10px;");
-
-        Text systemText = new Text("SYSTEM");
-        systemText.setStyle("-fx-fill: #d13438; -fx-font-weight: bold; -fx-font-size: 12px;");
-
-        headerBox.getChildren().addAll(timeText, systemText);
-
-        // Tạo nội dung tin nhắn
-        Text messageText = new Text(message);
-        messageText.setStyle("-fx-fill: #856404; -fx-font-size: 13px; -fx-font-style: italic;");
-        messageText.setWrappingWidth(chatScrollPane.getWidth() - 50);
-
-        messageBox.getChildren().addAll(headerBox, messageText);
+    /**
+     * Ảnh preview (rộng PREVIEW_WIDTH) của một mục, decode một lần rồi giữ trong previews; ảnh lỗi
+     * thì vẽ lại các cell đang hiện để báo lỗi.
+     */
+    private Image previewImage(ChatItem item) {
+        Image image = previews.get(item);
+        if (image == null) {
+            image = new Image(item.file.toURI().toString(), PREVIEW_WIDTH, 0, true, true, true);
+            String name = item.file.getName();
+            image.errorProperty().addListener((obs, wasError, isNowError) -> {
+                if (isNowError) {
+                    System.err.println("⚠️ Không thể load ảnh: " + name);
+                    chatListView.refresh();
+                }
+            });
+            previews.put(item, image);
+        }
+        return image;
+    }
 
-        // Thêm vào container
-        chatContainer.getChildren().add(messageBox);
+    private static boolean isAudioFile(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".mp3") || lower.endsWith(".wav") || lower.endsWith(".ogg");
+    }
 
-        // Scroll xuống cuối
-        Platform.runLater(() -> {
-            scrollToBottom();
-        });
+    private static boolean isVideoFile(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".mp4") || lower.endsWith(".avi") || lower.endsWith(".mov") || lower.endsWith(".mkv");
     }
 
     private void returnToLogin() {
@@ -681,51 +557,216 @@ public class ChatController {
         alert.setContentText(message);
         alert.showAndWait();
     }
-    private void showFileMessage(File file, boolean isImage) {
-        VBox fileBox = new VBox();
-        fileBox.setSpacing(5);
-        fileBox.setStyle("-fx-background-color: #e1f5fe; -fx-background-radius: 8; -fx-padding: 8;");
 
-        Label fileLabel = new Label("File: " + file.getName());
-        fileBox.getChildren().add(fileLabel);
+    /**
+     * Một mục trên timeline chat. Chỉ giữ dữ liệu; node hiển thị do ChatCell dựng khi mục được cuộn tới.
+     */
+    private static final class ChatItem {
+        enum Kind { MESSAGE, PRIVATE, SYSTEM, FILE_SENT, FILE_RECEIVED, IMAGE_RECEIVED, INLINE_IMAGE }
+
+        private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
 
-        String lower = file.getName().toLowerCase();
-        if (isImage && file.exists()) {
-            ImageView imageView = new ImageView(
-                    new javafx.scene.image.Image(file.toURI().toString(), 200, 0, true, true)
-            );
+        final Kind kind;
+        final String timestamp;
+        final String sender;
+        // Nội dung tin nhắn, hoặc tên ảnh với INLINE_IMAGE
+        final String text;
+        // File trên đĩa (INLINE_IMAGE: bản client đã lưu trong downloads/)
+        final File file;
+
+        ChatItem(Kind kind, String sender, String text, File file) {
+            this(kind, sender, text, file, System.currentTimeMillis());
+        }
+
+        ChatItem(Kind kind, String sender, String text, File file, long time) {
+            this.kind = kind;
+            this.timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(TIME_FORMAT);
+            this.sender = sender;
+            this.text = text;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Cell dùng lại cho mọi loại mục: các node được tạo một lần, mỗi lần updateItem chỉ đổi nội dung,
+     * style và ẩn/hiện phần không dùng.
+     */
+    private final class ChatCell extends ListCell<ChatItem> {
+        private final Text timeText = new Text();
+        private final Text senderText = new Text();
+        private final HBox headerBox = new HBox(5, timeText, senderText);
+        private final Text messageText = new Text();
+        private final Label fileLabel = new Label();
+        private final ImageView imageView = new ImageView();
+        private final MediaView mediaView = new MediaView();
+        private final Button playButton = new Button();
+        private final Button pauseButton = new Button("⏸ Pause");
+        private final HBox mediaControls = new HBox(5, playButton, pauseButton);
+        private final Hyperlink link = new Hyperlink();
+        private final Label errorLabel = new Label();
+        private final VBox messageBox = new VBox(5, headerBox, messageText, fileLabel, imageView, mediaView, mediaControls, link, errorLabel);
+        // MediaPlayer của mục audio/video cell đang hiện; cell được dùng cho mục khác (hoặc trống) thì dispose
+        private MediaPlayer player;
+        private ChatItem playerItem;
+
+        ChatCell() {
+            messageText.wrappingWidthProperty().bind(chatListView.widthProperty().subtract(60));
             imageView.setPreserveRatio(true);
-            fileBox.getChildren().add(imageView);
-        } else if (lower.endsWith(".mp3") || lower.endsWith(".wav") || lower.endsWith(".ogg")) {
-            // Audio preview
-            Media media = new Media(file.toURI().toString());
-            MediaPlayer mediaPlayer = new MediaPlayer(media);
-            MediaView mediaView = new MediaView(mediaPlayer);
-            Button playBtn = new Button("▶ Play Audio");
-            playBtn.setOnAction(e -> mediaPlayer.play());
-            Button pauseBtn = new Button("⏸ Pause");
-            pauseBtn.setOnAction(e -> mediaPlayer.pause());
-            fileBox.getChildren().addAll(playBtn, pauseBtn);
-        } else if (lower.endsWith(".mp4") || lower.endsWith(".avi") || lower.endsWith(".mov") || lower.endsWith(".mkv")) {
-            // Video preview
-            Media media = new Media(file.toURI().toString());
-            MediaPlayer mediaPlayer = new MediaPlayer(media);
-            MediaView mediaView = new MediaView(mediaPlayer);
+            imageView.setFitWidth(PREVIEW_WIDTH);
             mediaView.setFitWidth(250);
             mediaView.setPreserveRatio(true);
-            Button playBtn = new Button("▶ Play Video");
-            playBtn.setOnAction(e -> mediaPlayer.play());
-            Button pauseBtn = new Button("⏸ Pause");
-            pauseBtn.setOnAction(e -> mediaPlayer.pause());
-            fileBox.getChildren().addAll(mediaView, playBtn, pauseBtn);
-        } else {
-            // Download link for other files
-            Hyperlink link = new Hyperlink("Download: " + file.getName());
-            link.setOnAction(e -> hostServices.showDocument(file.toURI().toString()));
-            fileBox.getChildren().add(link);
+            errorLabel.setStyle("-fx-text-fill: red;");
+            setStyle("-fx-background-color: transparent; -fx-padding: 4 10 4 10;");
         }
 
-        chatContainer.getChildren().add(fileBox);
-        scrollToBottom();
+        @Override
+        protected void updateItem(ChatItem item, boolean empty) {
+            super.updateItem(item, empty);
+            if (player != null && (empty || item != playerItem)) {
+                mediaView.setMediaPlayer(null);
+                player.dispose();
+                player = null;
+                playerItem = null;
+            }
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            for (Node node : messageBox.getChildren()) {
+                show(node, false);
+            }
+            imageView.setImage(null);
+            mediaView.setMediaPlayer(null);
+            show(headerBox, true);
+            timeText.setText("[" + item.timestamp + "]");
+            switch (item.kind) {
+                case MESSAGE:
+                case PRIVATE:
+                    messageBox.setStyle(MESSAGE_STYLE);
+                    timeText.setStyle("-fx-fill: #999; -fx-font-size: 10px;");
+                    senderText.setText(item.sender);
+                    senderText.setStyle(item.kind == ChatItem.Kind.PRIVATE
+                            ? "-fx-fill: #107c10; -fx-font-weight: bold; -fx-font-size: 12px;"
+                            : "-fx-fill: #0078d4; -fx-font-weight: bold; -fx-font-size: 12px;");
+                    showText(item.text, "-fx-fill: #333; -fx-font-size: 13px;");
+                    break;
+                case SYSTEM:
+                    messageBox.setStyle(SYSTEM_STYLE);
+                    timeText.setStyle("-fx-fill: #856404; -fx-font-size: 10px;");
+                    senderText.setText("SYSTEM");
+                    senderText.setStyle("-fx-fill: #d13438; -fx-font-weight: bold; -fx-font-size: 12px;");
+                    showText(item.text, "-fx-fill: #856404; -fx-font-size: 13px; -fx-font-style: italic;");
+                    break;
+                case FILE_SENT:
+                    messageBox.setStyle(FILE_SENT_STYLE);
+                    timeText.setText("");
+                    senderText.setText(item.sender);
+                    senderText.setStyle("-fx-fill: #0078d4; -fx-font-weight: bold;");
+                    showFileLabel("File: " + item.file.getName(), "");
+                    if (isImageFile(item.file.getName())) {
+                        showPreview(item);
+                    } else {
+                        showLink("Tải xuống: " + item.file.getName(), item.file);
+                    }
+                    break;
+                case INLINE_IMAGE:
+                    messageBox.setStyle(FILE_RECEIVED_STYLE);
+                    showReceivedHeader(item.sender + " đã gửi ảnh:");
+                    showFileLabel("📷 " + item.text, "");
+                    showPreview(item);
+                    break;
+                default:
+                    messageBox.setStyle(FILE_RECEIVED_STYLE);
+                    showReceivedHeader(item.sender + " đã gửi file:");
+                    showFileLabel("📁 " + item.file.getName() + " (Đã tải về: " + item.file.getParent() + ")",
+                            "-fx-text-fill: #1b5e20; -fx-font-size: 12px;");
+                    if (item.file.exists() && item.file.length() > 0) {
+                        showReceivedFile(item);
+                    }
+                    break;
+            }
+            setGraphic(messageBox);
+        }
+
+        private void showReceivedFile(ChatItem item) {
+            String name = item.file.getName();
+            if (item.kind == ChatItem.Kind.IMAGE_RECEIVED) {
+                showPreview(item);
+            } else if (isAudioFile(name) || isVideoFile(name)) {
+                try {
+                    if (player == null) {
+                        player = new MediaPlayer(new Media(item.file.toURI().toString()));
+                        playerItem = item;
+                    }
+                    MediaPlayer mediaPlayer = player;
+                    if (isVideoFile(name)) {
+                        mediaView.setMediaPlayer(mediaPlayer);
+                        show(mediaView, true);
+                    }
+                    playButton.setText(isVideoFile(name) ? "▶ Play Video" : "▶ Play Audio");
+                    playButton.setOnAction(e -> mediaPlayer.play());
+                    pauseButton.setOnAction(e -> mediaPlayer.pause());
+                    show(mediaControls, true);
+                } catch (RuntimeException e) {
+                    showError("⚠️ Không phát được file: " + e.getMessage());
+                }
+            } else {
+                // Link để mở thư mục chứa file
+                showLink("📂 Mở file: " + name, item.file.getParentFile());
+            }
+        }
+
+        private void showReceivedHeader(String title) {
+            timeText.setStyle("-fx-fill: #666; -fx-font-size: 10px;");
+            senderText.setText(title);
+            senderText.setStyle("-fx-fill: #2e7d32; -fx-font-weight: bold; -fx-font-size: 12px;");
+        }
+
+        private void showText(String text, String style) {
+            messageText.setText(text);
+            messageText.setStyle(style);
+            show(messageText, true);
+        }
+
+        private void showFileLabel(String text, String style) {
+            fileLabel.setText(text);
+            fileLabel.setStyle(style);
+            show(fileLabel, true);
+        }
+
+        private void showPreview(ChatItem item) {
+            try {
+                Image image = previewImage(item);
+                if (image.isError()) {
+                    showError("⚠️ Không thể hiển thị ảnh");
+                } else {
+                    imageView.setImage(image);
+                    show(imageView, true);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("❌ Lỗi hiển thị ảnh: " + e.getMessage());
+                showError("⚠️ Lỗi khi hiển thị ảnh: " + e.getMessage());
+            }
+        }
+
+        private void showLink(String text, File target) {
+            link.setText(text);
+            link.setOnAction(e -> {
+                if (hostServices != null) {
+                    hostServices.showDocument(target.toURI().toString());
+                }
+            });
+            show(link, true);
+        }
+
+        private void showError(String text) {
+            errorLabel.setText(text);
+            show(errorLabel, true);
+        }
+
+        private void show(Node node, boolean visible) {
+            node.setVisible(visible);
+            node.setManaged(visible);
+        }
     }
 }
@@ -7,7 +7,10 @@ public class ServerLauncher {
         System.out.println("=== SKYPE SERVER ===");
         System.out.println("Đang khởi động server...");
         
-        ChatServer server = new ChatServer();
+        // Tham số đầu tiên (tùy chọn) chọn transport: blocking | virtual | nio
+        ChatServer server = args.length > 0
+                ? new ChatServer(ChatServer.Transport.valueOf(args[0].toUpperCase()))
+                : new ChatServer();
         
         // Thêm shutdown hook để đóng server khi tắt ứng dụng
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -0,0 +1,78 @@
+package com.example.mophongskype.client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Các blob (file theo hash SHA-256) client đã có trên máy: file đã tải về hoặc đã tự gửi.
+ * Server báo hash trong NEW_FILE; nếu hash có ở đây thì không cần GET_FILE tải lại.
+ * Lưu trong downloads/.blobs, mỗi dòng "hash TAB đường dẫn".
+ */
+public class BlobCache {
+    private final File indexFile;
+    private final Map<String, File> blobs = new ConcurrentHashMap<>();
+
+    public BlobCache(File downloadsDir) {
+        this.indexFile = new File(downloadsDir, ".blobs");
+        load();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    blobs.put(line.substring(0, tab), new File(line.substring(tab + 1)));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi đọc " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    // File local có nội dung này, null nếu chưa có hoặc file đã bị xóa
+    public File find(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        File file = blobs.get(hash);
+        return file != null && file.isFile() ? file : null;
+    }
+
+    public synchronized void remember(String hash, File file) {
+        if (hash == null || file.equals(blobs.put(hash, file))) {
+            return;
+        }
+        indexFile.getParentFile().mkdirs();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8)) {
+            writer.write(hash + "\t" + file.getAbsolutePath() + "\n");
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi ghi " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    // SHA-256 (hex) của nội dung file, cùng định dạng với BlobStore phía server
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
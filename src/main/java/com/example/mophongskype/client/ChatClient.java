@@ -1,26 +1,92 @@
 package com.example.mophongskype.client;
 
+import com.example.mophongskype.protocol.ChunkInputStream;
+import com.example.mophongskype.protocol.ChunkSums;
+import com.example.mophongskype.protocol.FrameCodec;
+import com.example.mophongskype.protocol.FrameReader;
+import com.example.mophongskype.protocol.GroupCommit;
+import com.example.mophongskype.protocol.LineDecoder;
+import com.example.mophongskype.protocol.Opcode;
 import javafx.application.Platform;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 public class ChatClient {
     private static final String SERVER_HOST = "192.168.1.175";
     private static final int SERVER_PORT = 12345;
+    // Thời gian chờ server trả lời PROTOCOL:2; server cũ không trả lời lệnh lạ
+    private static final int PROTOCOL_TIMEOUT_MS = 2000;
+    // Thời gian chờ UPLOAD_OFFSET; server cũ không trả lời thì gửi cả file như trước
+    private static final int UPLOAD_STATUS_TIMEOUT_MS = 2000;
+    // File từ chừng này bytes trở lên được tải song song qua các kết nối dữ liệu riêng
+    private static final long PARALLEL_DOWNLOAD_MIN = Long.getLong("chat.download.parallel.min", 8L * 1024 * 1024);
+    private static final int DOWNLOAD_STREAMS = Integer.getInteger("chat.download.streams", 4);
+    // Tự kết nối lại khi rớt mạng: lần thứ n chờ ngẫu nhiên trong [d/2, d], d = BASE * 2^n (tối đa MAX),
+    // để khi server khởi động lại hàng nghìn client không cùng ập vào một lúc
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    // Chờ trả lời RESUME/LOGIN khi kết nối lại (server vừa khởi động có thể đang bận verify nhiều login)
+    private static final int RECONNECT_REPLY_TIMEOUT_MS = 10_000;
+    // Số lệnh tối đa giữ lại trong lúc mất kết nối, quá thì bỏ lệnh cũ nhất
+    private static final int SEND_BUFFER_LIMIT = 1000;
+    // Phòng server cho vào sau login (chưa có ROOM_JOINED)
+    private static final String DEFAULT_ROOM = "general";
+    // Số tin mỗi trang khi đồng bộ lịch sử sau kết nối lại hoặc chuyển phòng
+    private static final int ROOM_SYNC_PAGE_SIZE = 200;
+    // Phần thân file nhận về đi từ thread nghe sang diskExecutor theo từng đoạn, tối đa 16 x 64 KB chờ ghi
+    private static final int RECEIVE_CHUNK_BYTES = 64 * 1024;
+    private static final int RECEIVE_QUEUE_CHUNKS = 16;
+    private static final byte[] END_OF_BODY = new byte[0];
+    private static final byte[] ABORTED_BODY = new byte[0];
+
+    /**
+     * Trạng thái kết nối cho UI. RECONNECTING: đang tự kết nối lại, tin nhắn gửi lúc này được giữ
+     * và gửi theo thứ tự khi kết nối xong. DISCONNECTED: đã ngắt hẳn (người dùng ngắt hoặc không
+     * đăng nhập lại được).
+     */
+    public enum ConnectionState { CONNECTED, RECONNECTING, DISCONNECTED }
 
     private Socket socket;
     private PrintWriter out;
     // removed BufferedReader 'in' and PushbackInputStream to avoid read-ahead issues
     private boolean isConnected = false;
     private String username;
+    // Token từ LOGIN_SUCCESS để RESUME khi kết nối rớt; null khi chưa đăng nhập hoặc server cũ
+    private volatile String sessionToken;
+    // Để tự đăng nhập lại khi server không còn phiên (ví dụ server vừa khởi động lại)
+    private String password;
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+    private Consumer<ConnectionState> onConnectionStateChanged;
+    // Lệnh của người dùng chưa gửi được vì mất kết nối (command, field...), theo thứ tự gửi
+    private final ArrayDeque<String[]> sendBuffer = new ArrayDeque<>();
+    private Thread listenerThread;
     private InputStream rawInputStream; // InputStream gốc để đọc binary data
-    private BufferedInputStream bufferedIn; // single buffered input used for both headers and binary
+    private LineDecoder bufferedIn; // single buffered input used for both headers and binary
     private OutputStream rawOutputStream; // OutputStream gốc để ghi binary data
+    // 1 = dòng text, 2 = frame nhị phân (FrameCodec) nếu server đồng ý
+    private int protocolVersion = 1;
+    private FrameReader frameReader;
+    private int nextStreamId = 1; // stream id phía client là số lẻ
+    // Giữ khi ghi một frame/dòng lệnh ra socket. Fair: upload v2 nhả lock sau mỗi CHUNK nên
+    // tin nhắn đang chờ được ghi ngay sau chunk hiện tại thay vì chờ hết file
+    private final ReentrantLock sendLock = new ReentrantLock(true);
 
     private Consumer<String> onMessageReceived;
     private Consumer<String> onUserListReceived;
@@ -28,60 +94,129 @@ public class ChatClient {
     private Consumer<String> onLogoutResult;
     private Consumer<String> onPrivateMessageReceived;
     private Consumer<String> onRemoved;
+    // Presence theo delta: user vào/ra sau danh sách đầy đủ (USERLIST)
+    private Consumer<String> onUserJoined;
+    private Consumer<String> onUserLeft;
+    // Version của danh sách user đang có; -1 khi chưa có danh sách (bỏ qua delta, chờ USERLIST)
+    private long presenceVersion = -1;
+    // Một trang lịch sử (HISTORY_ENTRY...) gom lại tới HISTORY_END rồi báo một lần
+    private Consumer<HistoryPage> onHistoryReceived;
+    private List<LoggedMessage> historyEntries = new ArrayList<>();
+    // Timeline các phòng lưu trên máy (cache/<hex(username)>/), tạo khi login
+    private volatile MessageCache messageCache;
+    // Trạng thái syncHistory: đang xin các trang sau syncSeq của syncRoom, từng trang syncPageSize tin
+    private final Object syncLock = new Object();
+    private boolean syncing;
+    private String syncRoom;
+    private int syncPageSize;
+    private long syncSeq;
+    // ROOM_MESSAGE đã hiện trong lúc đồng bộ: trang lịch sử không hiện lại, ghi cache theo trang
+    private final Set<Long> shownDuringSync = new HashSet<>();
+    // seq lớn nhất đã hiện trong phòng, bỏ ROOM_MESSAGE trùng với trang lịch sử vừa hiện
+    private long shownSeq;
+
+    /**
+     * Tin nhắn phòng trong lịch sử của server, seq tăng dần trong một phòng
+     */
+    public static class LoggedMessage {
+        public final long seq;
+        public final long time;
+        public final String sender;
+        public final String text;
+
+        public LoggedMessage(long seq, long time, String sender, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Kết quả một lần requestHistory: các tin theo thứ tự seq và seq mới nhất của phòng
+     */
+    public static class HistoryPage {
+        public final String room;
+        public final List<LoggedMessage> messages;
+        public final long lastSeq;
+
+        public HistoryPage(String room, List<LoggedMessage> messages, long lastSeq) {
+            this.room = room;
+            this.messages = messages;
+            this.lastSeq = lastSeq;
+        }
+    }
 
-    // New callback for inline images
+    // New callback for inline images (file: bản đã lưu trong downloads/, UI không phải giữ bytes)
     public static class ImageMessage {
         public final String sender;
         public final String fileName;
-        public final byte[] bytes;
+        public final File file;
 
-        public ImageMessage(String sender, String fileName, byte[] bytes) {
+        public ImageMessage(String sender, String fileName, File file) {
             this.sender = sender;
             this.fileName = fileName;
-            this.bytes = bytes;
+            this.file = file;
         }
     }
 
     private Consumer<ImageMessage> onImageReceived;
 
+    // Phòng server đã xác nhận (ROOM_JOINED); sau login là phòng mặc định của server
     private String currentRoom;
 
     // Map để lưu tên người gửi cho mỗi file đang được tải
-    private Map<String, String> fileSenderMap = new HashMap<>();
+    private Map<String, String> fileSenderMap = new ConcurrentHashMap<>();
+    // Hash (từ NEW_FILE) của mỗi file đang được tải, để ghi vào blobCache khi tải xong
+    private Map<String, String> fileHashMap = new ConcurrentHashMap<>();
+    // File đã có trên máy theo hash nội dung: server báo hash đã có thì không tải lại
+    private final BlobCache blobCache = new BlobCache(new File("downloads"));
+    // File tải dở theo hash (downloads/.partial/<hash>), rớt mạng thì lần sau tải tiếp
+    private final File partialDir = new File("downloads", ".partial");
+    // hash -> UPLOAD_OFFSET đang chờ từ server (offset, sums)
+    private final Map<String, CompletableFuture<String[]>> uploadOffsets = new ConcurrentHashMap<>();
+    // hash -> FILE_TICKET đang chờ từ server (size, ticket)
+    private final Map<String, CompletableFuture<String[]>> fileTickets = new ConcurrentHashMap<>();
+    // Tải file lớn ngoài thread nghe, mỗi lần một file (mỗi file đã chia nhiều kết nối)
+    private final ExecutorService downloadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChatClient-Download");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // fsync file nhận về (-Dchat.durability=none|batched|per_write), batched thì gom theo lượt
+    private final GroupCommit commits = new GroupCommit(GroupCommit.configuredDurability(), "ChatClient-Fsync");
+    // Ghi ảnh inline, kiểm tra hash và chuyển file tải xong: ngoài thread nghe để frame sau không phải chờ đĩa
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChatClient-Disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Upload chạy lần lượt ngoài thread UI (phải chờ UPLOAD_OFFSET trước khi gửi)
+    private final ExecutorService uploadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChatClient-Upload");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ChatClient() {
         // Constructor
     }
 
     public void joinRoom(String roomId) {
-        if (out != null && isConnected) {
-            this.currentRoom = roomId;
-            out.println("JOIN_ROOM:" + roomId);
+        if (isConnected) {
+            sendOrBuffer("JOIN_ROOM", roomId);
         }
     }
 
     public boolean connect() {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            // Lưu raw streams để dùng cho binary data
-            rawInputStream = socket.getInputStream();
-            bufferedIn = new BufferedInputStream(rawInputStream);
-            rawOutputStream = socket.getOutputStream();
-
-            // PrintWriter for sending headers/text (explicit charset)
-            out = new PrintWriter(new OutputStreamWriter(rawOutputStream, StandardCharsets.UTF_8), true); // autoFlush = true
-
+            openConnection();
             isConnected = true;
+            setState(ConnectionState.CONNECTED);
 
             // Bắt đầu thread để lắng nghe tin nhắn từ server
-            new Thread(() -> {
-                try {
-                    listenForMessages();
-                } catch (IOException e) {
-                    System.err.println("Error while listening for messages: " + e.getMessage());
-                    if (isConnected) disconnect();
-                }
-            }, "ChatClient-Listener").start();
+            listenerThread = new Thread(this::listen, "ChatClient-Listener");
+            listenerThread.start();
             return true;
         } catch (IOException e) {
             System.err.println("Không thể kết nối đến server: " + e.getMessage());
@@ -89,8 +224,275 @@ public class ChatClient {
         }
     }
 
+    // Mở socket và thỏa thuận giao thức; dùng cho lần kết nối đầu và khi nối lại phiên
+    private void openConnection() throws IOException {
+        socket = new Socket(SERVER_HOST, SERVER_PORT);
+        // Lưu raw streams để dùng cho binary data
+        rawInputStream = socket.getInputStream();
+        bufferedIn = new LineDecoder(rawInputStream);
+        rawOutputStream = socket.getOutputStream();
+
+        // PrintWriter for sending headers/text (explicit charset)
+        out = new PrintWriter(new OutputStreamWriter(rawOutputStream, StandardCharsets.UTF_8), true); // autoFlush = true
+        protocolVersion = 1;
+        negotiateProtocol();
+    }
+
+    // Thread lắng nghe: đọc tới khi kết nối rớt, rồi tự kết nối lại và đọc tiếp
+    private void listen() {
+        while (true) {
+            try {
+                listenForMessages();
+            } catch (IOException e) {
+                System.err.println("Error while listening for messages: " + e.getMessage());
+            }
+            if (!isConnected || !reconnect()) {
+                break;
+            }
+        }
+        if (isConnected) disconnect();
+    }
+
+    /**
+     * Kết nối lại với backoff có jitter cho tới khi thành công hoặc người dùng ngắt kết nối.
+     * Đã đăng nhập thì RESUME phiên (server còn giữ) hoặc đăng nhập lại bằng tài khoản đã nhớ,
+     * sau đó gửi các lệnh đã giữ trong lúc mất kết nối.
+     * @return false nếu dừng hẳn (người dùng ngắt kết nối hoặc bị từ chối đăng nhập lại)
+     */
+    private boolean reconnect() {
+        setState(ConnectionState.RECONNECTING);
+        for (int attempt = 0; isConnected; attempt++) {
+            long delay = reconnectDelay(attempt);
+            System.out.println("🔄 Kết nối lại sau " + delay + "ms (lần " + (attempt + 1) + ")");
+            try {
+                Thread.sleep(delay);
+                sendLock.lock();
+                try {
+                    closeQuietly(socket);
+                    openConnection();
+                } finally {
+                    sendLock.unlock();
+                }
+                if (!restoreSession()) {
+                    return false;
+                }
+                onReconnected();
+                return true;
+            } catch (IOException e) {
+                System.err.println("⚠️ Kết nối lại thất bại: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Backoff BASE * 2^attempt (tối đa MAX), lấy ngẫu nhiên trong nửa trên để các client lệch nhau
+    private static long reconnectDelay(int attempt) {
+        long ceiling = RECONNECT_BASE_MS << Math.min(attempt, 16);
+        ceiling = Math.min(ceiling, RECONNECT_MAX_MS);
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Trên kết nối mới: RESUME:token nếu có phiên; server không còn phiên thì LOGIN lại và quay về
+     * phòng đang ở. Chưa đăng nhập thì chỉ cần kết nối.
+     * @return false nếu không đăng nhập lại được
+     */
+    private boolean restoreSession() throws IOException {
+        if (username == null) {
+            return true;
+        }
+        String token = sessionToken;
+        if (token != null) {
+            sendCommand("RESUME", token);
+            if (awaitReply("RESUMED", "RESUME_FAILED")[0].equals("RESUMED")) {
+                System.out.println("🔄 Đã nối lại phiên của " + username);
+                return true;
+            }
+            sessionToken = null;
+            System.out.println("⚠️ Server không còn giữ phiên, đăng nhập lại");
+        }
+        if (password == null) {
+            return false;
+        }
+        sendCommand("LOGIN", username, password);
+        String[] reply = awaitReply("LOGIN_SUCCESS", "LOGIN_FAILED");
+        if (reply[0].equals("LOGIN_FAILED")) {
+            System.err.println("❌ Đăng nhập lại thất bại: " + (reply.length > 1 ? reply[1] : ""));
+            return false;
+        }
+        sessionToken = reply.length > 1 && !reply[1].isEmpty() ? reply[1] : null;
+        if (currentRoom != null) {
+            sendCommand("JOIN_ROOM", currentRoom); // login mới vào phòng mặc định
+        }
+        System.out.println("🔄 Đã đăng nhập lại " + username);
+        return true;
+    }
+
+    /**
+     * Đọc tới khi gặp một trong các lệnh expected (trước khi listener chạy lại). Lệnh khác tới
+     * trước đó (USERLIST, MESSAGE...) được xử lý như bình thường.
+     */
+    private String[] awaitReply(String... expected) throws IOException {
+        socket.setSoTimeout(RECONNECT_REPLY_TIMEOUT_MS);
+        try {
+            while (true) {
+                String[] parts;
+                if (protocolVersion == FrameCodec.VERSION) {
+                    if (!frameReader.next()) {
+                        throw new EOFException("Server đóng kết nối");
+                    }
+                    if (frameReader.opcode() == null || frameReader.opcode() == Opcode.CHUNK) {
+                        continue;
+                    }
+                    parts = frameReader.toParts();
+                } else {
+                    String line = bufferedIn.readLine();
+                    if (line == null) {
+                        throw new EOFException("Server đóng kết nối");
+                    }
+                    parts = line.split(":", 3);
+                }
+                if (Arrays.asList(expected).contains(parts[0])) {
+                    return parts;
+                }
+                handleServerCommand(parts);
+            }
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    // Kết nối lại xong: gửi các lệnh đã giữ theo thứ tự rồi báo UI
+    private void onReconnected() {
+        synchronized (sendBuffer) {
+            state = ConnectionState.CONNECTED;
+            flushSendBuffer();
+        }
+        setState(ConnectionState.CONNECTED);
+        // Tin nhắn phòng trong lúc mất kết nối: chỉ tải phần sau cache
+        syncHistory(ROOM_SYNC_PAGE_SIZE);
+    }
+
+    private void setState(ConnectionState newState) {
+        state = newState;
+        if (onConnectionStateChanged != null) {
+            onConnectionStateChanged.accept(newState);
+        }
+    }
+
+    /**
+     * Lệnh của người dùng (chat, phòng...): đang kết nối thì gửi ngay, mất kết nối thì giữ lại
+     * để gửi theo đúng thứ tự khi kết nối lại. Lệnh gửi lỗi (socket vừa rớt) cũng được giữ.
+     */
+    private void sendOrBuffer(String command, String... fields) {
+        synchronized (sendBuffer) {
+            if (state == ConnectionState.CONNECTED && sendBuffer.isEmpty() && sendCommand(command, fields)) {
+                return;
+            }
+            if (sendBuffer.size() >= SEND_BUFFER_LIMIT) {
+                sendBuffer.pollFirst();
+                System.err.println("⚠️ Bộ đệm gửi đầy, bỏ lệnh cũ nhất");
+            }
+            String[] entry = new String[fields.length + 1];
+            entry[0] = command;
+            System.arraycopy(fields, 0, entry, 1, fields.length);
+            sendBuffer.addLast(entry);
+        }
+    }
+
+    private void flushSendBuffer() {
+        synchronized (sendBuffer) {
+            String[] entry;
+            while ((entry = sendBuffer.peekFirst()) != null) {
+                if (!sendCommand(entry[0], Arrays.copyOfRange(entry, 1, entry.length))) {
+                    return; // rớt lại: phần còn lại chờ lần kết nối sau
+                }
+                sendBuffer.pollFirst();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Đề nghị giao thức frame v2 (tắt bằng -Dchat.protocol=1). Nếu server không
+     * trả lời trong PROTOCOL_TIMEOUT_MS thì giữ giao thức text như cũ.
+     */
+    private void negotiateProtocol() throws IOException {
+        if (Integer.getInteger("chat.protocol", FrameCodec.VERSION) < FrameCodec.VERSION) {
+            return;
+        }
+        out.println("PROTOCOL:" + FrameCodec.VERSION);
+        socket.setSoTimeout(PROTOCOL_TIMEOUT_MS);
+        try {
+            String reply = bufferedIn.readLine();
+            if (("PROTOCOL_OK:" + FrameCodec.VERSION).equals(reply)) {
+                protocolVersion = FrameCodec.VERSION;
+                frameReader = new FrameReader(bufferedIn);
+                System.out.println("🔗 Đã chuyển sang giao thức frame v" + FrameCodec.VERSION);
+            }
+        } catch (SocketTimeoutException e) {
+            // Server cũ: tiếp tục với giao thức text
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Gửi một lệnh lên server: v1 là dòng COMMAND:field1:field2, v2 là frame có độ dài.
+     * @return false nếu ghi ra socket lỗi
+     */
+    private boolean sendCommand(String command, String... fields) {
+        if (out == null) {
+            return false;
+        }
+        sendLock.lock();
+        try {
+            if (protocolVersion == FrameCodec.VERSION) {
+                try {
+                    Opcode opcode = Opcode.fromName(command);
+                    if (opcode != null) {
+                        FrameCodec.writeFrame(rawOutputStream, opcode, 0, fields);
+                    } else {
+                        // Lệnh chưa có opcode riêng: tên lệnh đi trong field đầu của COMMAND
+                        String[] commandFields = new String[fields.length + 1];
+                        commandFields[0] = command;
+                        System.arraycopy(fields, 0, commandFields, 1, fields.length);
+                        FrameCodec.writeFrame(rawOutputStream, Opcode.COMMAND, 0, commandFields);
+                    }
+                    rawOutputStream.flush();
+                    return true;
+                } catch (IOException e) {
+                    System.err.println("❌ Lỗi gửi lệnh " + command + ": " + e.getMessage());
+                    return false;
+                }
+            }
+            out.println(fields.length == 0 ? command : command + ":" + String.join(":", fields));
+            return !out.checkError(); // PrintWriter nuốt IOException
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
     public void disconnect() {
         isConnected = false;
+        synchronized (sendBuffer) {
+            sendBuffer.clear();
+        }
+        if (listenerThread != null && listenerThread != Thread.currentThread()) {
+            listenerThread.interrupt(); // đang chờ backoff thì dừng luôn
+        }
+        setState(ConnectionState.DISCONNECTED);
         try {
             if (socket != null) {
                 socket.close();
@@ -106,38 +508,207 @@ public class ChatClient {
         }
 
         this.username = username;
-        out.println("LOGIN:" + username + ":" + password);
+        this.password = password;
+        this.messageCache = new MessageCache(new File("cache", HexFormat.of().formatHex(username.getBytes(StandardCharsets.UTF_8))));
+        sendCommand("LOGIN", username, password);
         return true;
     }
 
     public void logout() {
         if (isConnected && username != null) {
-            out.println("LOGOUT");
+            if (state != ConnectionState.CONNECTED || !sendCommand("LOGOUT")) {
+                // Đang mất kết nối: không chờ server, coi như đã đăng xuất
+                sessionToken = null;
+                password = null;
+                disconnect();
+                if (onLogoutResult != null) onLogoutResult.accept("SUCCESS");
+            }
         }
     }
 
     public void sendMessage(String message) {
         if (isConnected && username != null) {
-            out.println("MESSAGE:" + message);
+            sendOrBuffer("MESSAGE", message);
         }
     }
 
     public void sendPrivateMessage(String receiver, String message) {
         if (isConnected && username != null) {
-            out.println("PRIVATE:" + receiver + ":" + message);
+            sendOrBuffer("PRIVATE", receiver, message);
+        }
+    }
+
+    /**
+     * Xin một trang lịch sử của phòng hiện tại, trả về qua onHistoryReceived.
+     * @param fromSeq seq đầu tiên cần lấy; &lt;= 0 để lấy limit tin mới nhất
+     */
+    public void requestHistory(long fromSeq, int limit) {
+        if (isConnected && username != null) {
+            sendCommand("HISTORY", String.valueOf(fromSeq), String.valueOf(limit));
+        }
+    }
+
+    /**
+     * Các tin gần nhất của phòng hiện tại đã lưu trên máy (đọc ngay, không cần server), cũ trước mới sau.
+     */
+    public List<MessageCache.Entry> getCachedMessages(int limit) {
+        MessageCache cache = messageCache;
+        return cache != null ? cache.recent(cacheRoom(), limit) : new ArrayList<>();
+    }
+
+    /**
+     * Xin server các tin sau seq mới nhất đã cache của phòng hiện tại (cache trống: limit tin mới
+     * nhất), từng trang limit tin tới khi bắt kịp. Tin chưa hiện được ghi cache và báo qua
+     * onHistoryReceived; tin đã cache không phải tải lại.
+     */
+    public void syncHistory(int limit) {
+        MessageCache cache = messageCache;
+        if (cache == null || !isConnected) {
+            return;
+        }
+        String room = cacheRoom();
+        synchronized (syncLock) {
+            if (syncing && room.equals(syncRoom)) {
+                return;
+            }
+            if (!room.equals(syncRoom)) {
+                shownSeq = 0;
+            }
+            syncing = true;
+            syncRoom = room;
+            syncPageSize = limit;
+            shownDuringSync.clear();
+        }
+        // Chạy sau các lần ghi cache đang chờ, mở cache của phòng (đọc đĩa) ngoài thread gọi
+        runOnDisk(() -> {
+            long cached = cache.lastSeq(room);
+            synchronized (syncLock) {
+                syncSeq = cached;
+            }
+            requestSyncPage(cached);
+        });
+    }
+
+    // Phòng của cache: trước ROOM_JOINED đầu tiên là phòng mặc định của server
+    private String cacheRoom() {
+        String room = currentRoom;
+        return room != null ? room : DEFAULT_ROOM;
+    }
+
+    private void requestSyncPage(long afterSeq) {
+        int limit;
+        synchronized (syncLock) {
+            limit = syncPageSize;
+        }
+        String fromSeq = afterSeq > 0 ? String.valueOf(afterSeq + 1) : "0";
+        if (!sendCommand("HISTORY", fromSeq, String.valueOf(limit))) {
+            // Mất kết nối: dừng, onReconnected sẽ đồng bộ lại
+            synchronized (syncLock) {
+                syncing = false;
+                shownDuringSync.clear();
+            }
+        }
+    }
+
+    /**
+     * Một trang của syncHistory (trên thread ghi đĩa): ghi cache các tin sau syncSeq, báo UI những
+     * tin chưa hiện, rồi xin trang tiếp nếu còn. ROOM_MESSAGE tới trong lúc đồng bộ chưa nằm trong
+     * trang nào thì xin thêm một trang để cache không bị hổng.
+     */
+    private void cacheHistoryPage(String room, List<LoggedMessage> page, long roomLastSeq) {
+        MessageCache cache = messageCache;
+        List<LoggedMessage> fresh = new ArrayList<>();
+        long from;
+        synchronized (syncLock) {
+            from = syncSeq;
+        }
+        long pageEnd = from;
+        for (LoggedMessage message : page) {
+            if (message.seq <= pageEnd) {
+                continue;
+            }
+            cache.append(room, new MessageCache.Entry(MessageCache.Kind.TEXT, message.seq, message.time, message.sender, message.text));
+            pageEnd = message.seq;
+            synchronized (syncLock) {
+                if (!shownDuringSync.contains(message.seq)) {
+                    fresh.add(message);
+                }
+            }
+        }
+        boolean more;
+        synchronized (syncLock) {
+            syncSeq = pageEnd;
+            shownSeq = Math.max(shownSeq, pageEnd);
+            long shownLive = shownDuringSync.stream().mapToLong(Long::longValue).max().orElse(0);
+            more = pageEnd < roomLastSeq ? pageEnd > from : shownLive > pageEnd;
+            if (!more) {
+                syncing = false;
+                shownDuringSync.clear();
+            }
+        }
+        if (!fresh.isEmpty() && onHistoryReceived != null) {
+            onHistoryReceived.accept(new HistoryPage(room, fresh, roomLastSeq));
+        }
+        if (more) {
+            requestSyncPage(pageEnd);
+        }
+    }
+
+    // Tin nhắn/ảnh/file vừa nhận vào cache của phòng hiện tại (thứ tự ghi theo thứ tự gọi)
+    private void cacheEntry(MessageCache.Kind kind, long seq, String sender, String text) {
+        MessageCache cache = messageCache;
+        if (cache != null) {
+            String room = cacheRoom();
+            MessageCache.Entry entry = new MessageCache.Entry(kind, seq, System.currentTimeMillis(), sender, text);
+            runOnDisk(() -> cache.append(room, entry));
+        }
+    }
+
+    /**
+     * ROOM_MESSAGE vừa tới: có cần hiện không (trang lịch sử có thể đã hiện trước). Ngoài lúc đồng
+     * bộ thì ghi luôn vào cache; trong lúc đồng bộ để trang lịch sử ghi, tránh cache nhảy cóc seq.
+     */
+    private boolean showRoomMessage(long seq, String sender, String text) {
+        if (seq <= 0) {
+            return true;
+        }
+        synchronized (syncLock) {
+            if (seq <= shownSeq) {
+                return false;
+            }
+            if (syncing) {
+                shownDuringSync.add(seq);
+                return true;
+            }
+            shownSeq = seq;
+            // Xếp việc ghi khi còn giữ syncLock: không chen được trước trang của lần đồng bộ kế tiếp
+            cacheEntry(MessageCache.Kind.TEXT, seq, sender, text);
+        }
+        return true;
+    }
+
+    private void runOnDisk(Runnable task) {
+        try {
+            diskExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            System.err.println("⚠️ Bỏ qua ghi cache: " + e.getMessage());
         }
     }
 
     public void removeUser(String userToRemove) {
         if (isConnected && username != null) {
-            out.println("REMOVE_USER:" + userToRemove);
+            sendOrBuffer("REMOVE_USER", userToRemove);
         }
     }
 
     private void listenForMessages() throws IOException {
+        if (protocolVersion == FrameCodec.VERSION) {
+            listenForFrames();
+            return;
+        }
         String message;
         try {
-            while (isConnected && (message = readLine(bufferedIn)) != null) {
+            while (isConnected && (message = bufferedIn.readLine()) != null) {
                 // Handle inline image header
                 if (message.startsWith("IMAGE_DATA:")) {
                     String[] parts = message.split(":", 4);
@@ -147,40 +718,7 @@ public class ChatClient {
                         long fileSize = Long.parseLong(parts[3]);
                         System.out.println("📥 Bắt đầu nhận ảnh inline: " + fileName + " (" + fileSize + " bytes) từ " + sender);
                         byte[] imageBytes = readFully(bufferedIn, fileSize);
-
-                        // Lưu ảnh vào thư mục downloads để tránh trường hợp UI chỉ thấy tên file
-                        try {
-                            File downloadsDir = new File("downloads");
-                            if (!downloadsDir.exists()) downloadsDir.mkdirs();
-
-                            File outFile = new File(downloadsDir, fileName);
-                            int counter = 1;
-                            String base = fileName;
-                            String ext = "";
-                            int d = fileName.lastIndexOf('.');
-                            if (d > 0) {
-                                base = fileName.substring(0, d);
-                                ext = fileName.substring(d);
-                            }
-                            while (outFile.exists()) {
-                                outFile = new File(downloadsDir, base + "_" + counter + ext);
-                                counter++;
-                            }
-                            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                                fos.write(imageBytes);
-                                fos.flush();
-                                fos.getFD().sync();
-                            }
-                            System.out.println("✅ Lưu ảnh inline vào: " + outFile.getAbsolutePath());
-                        } catch (IOException ex) {
-                            System.err.println("❌ Lỗi lưu ảnh inline: " + ex.getMessage());
-                        }
-
-                        if (onImageReceived != null) {
-                            ImageMessage im = new ImageMessage(sender, fileName, imageBytes);
-                            // Ensure UI update on JavaFX thread
-                            Platform.runLater(() -> onImageReceived.accept(im));
-                        }
+                        handleInlineImage(sender, fileName, imageBytes);
                         continue;
                     }
                 }
@@ -194,7 +732,16 @@ public class ChatClient {
                         // QUAN TRỌNG: Đọc ngay lập tức để tránh mất dữ liệu
                         // Binary data bắt đầu ngay sau header
                         System.out.println("📥 Bắt đầu nhận file: " + fileName + " (" + fileSize + " bytes)");
-                        receiveFile(fileName, fileSize); // lưu xuống downloads/
+                        receiveFile(fileName, fileSize, bufferedIn); // lưu xuống downloads/
+                    }
+                } else if (message.startsWith("FILE_RANGE:")) {
+                    // FILE_RANGE:fileName:start:fileSize + bytes [start, fileSize) để tải tiếp
+                    String[] parts = message.split(":");
+                    if (parts.length >= 4) {
+                        long start = Long.parseLong(parts[2]);
+                        long fileSize = Long.parseLong(parts[3]);
+                        System.out.println("📥 Tải tiếp file: " + parts[1] + " từ " + start + "/" + fileSize + " bytes");
+                        receiveFile(parts[1], start, fileSize, bufferedIn);
                     }
                 } else {
                     handleServerMessage(message); // các message khác
@@ -209,13 +756,147 @@ public class ChatClient {
         }
     }
 
+    // Vòng đọc giao thức v2: frame lệnh đi qua handleServerCommand, ảnh/file đọc từ các CHUNK
+    private void listenForFrames() throws IOException {
+        try {
+            while (isConnected && frameReader.next()) {
+                Opcode opcode = frameReader.opcode();
+                if (opcode == null || opcode == Opcode.CHUNK) {
+                    continue; // opcode lạ hoặc CHUNK lạc: bỏ qua
+                }
+                int streamId = frameReader.streamId();
+                String[] parts = frameReader.toParts();
+                if (opcode == Opcode.IMAGE_DATA && parts.length >= 4) {
+                    long fileSize = Long.parseLong(parts[3]);
+                    System.out.println("📥 Bắt đầu nhận ảnh inline: " + parts[2] + " (" + fileSize + " bytes) từ " + parts[1]);
+                    byte[] imageBytes = readFully(new ChunkInputStream(frameReader, streamId, fileSize, this::handleInterleaved), fileSize);
+                    handleInlineImage(parts[1], parts[2], imageBytes);
+                } else if (opcode == Opcode.FILE_DATA && parts.length >= 3) {
+                    long fileSize = Long.parseLong(parts[2]);
+                    System.out.println("📥 Bắt đầu nhận file: " + parts[1] + " (" + fileSize + " bytes)");
+                    receiveFile(parts[1], fileSize, new ChunkInputStream(frameReader, streamId, fileSize, this::handleInterleaved));
+                } else if (opcode == Opcode.FILE_RANGE && parts.length >= 4) {
+                    long start = Long.parseLong(parts[2]);
+                    long fileSize = Long.parseLong(parts[3]);
+                    System.out.println("📥 Tải tiếp file: " + parts[1] + " từ " + start + "/" + fileSize + " bytes");
+                    receiveFile(parts[1], start, fileSize, new ChunkInputStream(frameReader, streamId, fileSize - start, this::handleInterleaved));
+                } else {
+                    handleServerCommand(parts);
+                }
+            }
+        } catch (IOException e) {
+            if (isConnected) {
+                System.err.println("❌ Lỗi khi đọc frame: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    // Frame lệnh server chen giữa các CHUNK của ảnh/file (chat không phải chờ file tải xong)
+    private void handleInterleaved(FrameReader reader) throws IOException {
+        if (reader.opcode() != null) {
+            handleServerCommand(reader.toParts());
+        }
+    }
+
+    /**
+     * @return true nếu delta này là thay đổi kế tiếp và cần áp dụng; delta cũ bị bỏ qua,
+     * hụt version thì xin lại danh sách đầy đủ (GET_USERLIST)
+     */
+    private boolean applyPresenceVersion(long version) {
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return false; // chưa có danh sách, hoặc đã nằm trong danh sách vừa nhận
+        }
+        if (version != presenceVersion + 1) {
+            System.out.println("⚠️ Hụt presence " + presenceVersion + " -> " + version + ", tải lại danh sách user");
+            presenceVersion = -1;
+            sendCommand("GET_USERLIST");
+            return false;
+        }
+        presenceVersion = version;
+        return true;
+    }
+
+    private static void notifyPresence(String names, Consumer<String> callback) {
+        if (callback == null || names.isEmpty()) {
+            return;
+        }
+        for (String name : names.split(",")) {
+            callback.accept(name);
+        }
+    }
+
+    private static long parseLongField(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Lưu vào downloads/ trên thread ghi đĩa rồi mới báo UI, bytes của ảnh không ở lại trong bộ nhớ
+    private void handleInlineImage(String sender, String fileName, byte[] imageBytes) {
+        diskExecutor.execute(() -> saveInlineImage(sender, fileName, imageBytes));
+    }
+
+    // Lưu ảnh vào thư mục downloads; UI hiện ảnh từ file này (chưa cần chờ fsync)
+    private void saveInlineImage(String sender, String fileName, byte[] imageBytes) {
+        FileChannel channel = null;
+        try {
+            File downloadsDir = new File("downloads");
+            if (!downloadsDir.exists()) downloadsDir.mkdirs();
+
+            File outFile = uniqueDownloadFile(downloadsDir, fileName);
+            channel = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer buffer = ByteBuffer.wrap(imageBytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (onImageReceived != null) {
+                ImageMessage im = new ImageMessage(sender, fileName, outFile);
+                // Ensure UI update on JavaFX thread
+                Platform.runLater(() -> onImageReceived.accept(im));
+            }
+            // Nhiều ảnh tới dồn dập: các fsync được gom, thread ghi đĩa không chờ từng cái
+            FileChannel written = channel;
+            commits.sync(written).whenComplete((ignored, error) -> {
+                closeQuietly(written);
+                if (error != null) {
+                    System.err.println("❌ Lỗi lưu ảnh inline: " + error.getMessage());
+                } else {
+                    System.out.println("✅ Lưu ảnh inline vào: " + outFile.getAbsolutePath());
+                    cacheEntry(MessageCache.Kind.IMAGE, 0, sender, outFile.getAbsolutePath());
+                }
+            });
+        } catch (IOException ex) {
+            closeQuietly(channel);
+            System.err.println("❌ Lỗi lưu ảnh inline: " + ex.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
 
     private void handleServerMessage(String message) {
-        String[] parts = message.split(":", 3);
+        handleServerCommand(message.split(":", 3));
+    }
+
+    // parts[0] là tên lệnh; dòng text v1 và frame v2 đều đi qua đây
+    private void handleServerCommand(String[] parts) {
         String command = parts[0];
 
         switch (command) {
             case "LOGIN_SUCCESS":
+                // LOGIN_SUCCESS:token (server cũ không gửi token thì không nối lại được phiên)
+                sessionToken = parts.length > 1 && !parts[1].isEmpty() ? parts[1] : null;
                 if (onLoginResult != null) onLoginResult.accept("SUCCESS");
                 break;
             case "LOGIN_FAILED":
@@ -223,6 +904,8 @@ public class ChatClient {
                     onLoginResult.accept("FAILED:" + (parts.length > 1 ? parts[1] : "Lỗi đăng nhập"));
                 break;
             case "LOGOUT_SUCCESS":
+                sessionToken = null;
+                password = null;
                 if (onLogoutResult != null) onLogoutResult.accept("SUCCESS");
                 break;
             case "MESSAGE":
@@ -230,17 +913,73 @@ public class ChatClient {
                     onMessageReceived.accept(parts[1] + ":" + parts[2]);
                 }
                 break;
+            case "ROOM_MESSAGE":
+                // ROOM_MESSAGE:seq:sender:text - tin nhắn phòng đã được server ghi vào lịch sử
+                if (parts.length >= 3) {
+                    String[] message = parts.length >= 4 ? new String[]{parts[2], parts[3]} : parts[2].split(":", 2);
+                    if (message.length == 2 && showRoomMessage(parseLongField(parts[1]), message[0], message[1])
+                            && onMessageReceived != null) {
+                        onMessageReceived.accept(message[0] + ":" + message[1]);
+                    }
+                }
+                break;
+            case "HISTORY_ENTRY":
+                // HISTORY_ENTRY:seq:time:sender:text
+                if (parts.length >= 3) {
+                    String[] entry = parts.length >= 5 ? new String[]{parts[2], parts[3], parts[4]} : parts[2].split(":", 3);
+                    if (entry.length == 3) {
+                        historyEntries.add(new LoggedMessage(parseLongField(parts[1]), parseLongField(entry[0]), entry[1], entry[2]));
+                    }
+                }
+                break;
+            case "HISTORY_END":
+                // HISTORY_END:lastSeq:room
+                if (parts.length >= 2) {
+                    List<LoggedMessage> page = historyEntries;
+                    historyEntries = new ArrayList<>();
+                    String room = parts.length >= 3 ? parts[2] : "";
+                    long roomLastSeq = parseLongField(parts[1]);
+                    boolean syncPage;
+                    synchronized (syncLock) {
+                        syncPage = syncing;
+                        if (syncing && !room.equals(syncRoom)) {
+                            break; // trang của phòng cũ, đã chuyển phòng giữa chừng
+                        }
+                    }
+                    if (syncPage) {
+                        runOnDisk(() -> cacheHistoryPage(room, page, roomLastSeq));
+                    } else if (onHistoryReceived != null) {
+                        onHistoryReceived.accept(new HistoryPage(room, page, roomLastSeq));
+                    }
+                }
+                break;
             case "PRIVATE":
                 if (parts.length >= 3 && onPrivateMessageReceived != null) {
                     onPrivateMessageReceived.accept(parts[1] + ":" + parts[2]);
                 }
                 break;
             case "USERLIST":
-                if (parts.length >= 2 && onUserListReceived != null) {
-                    onUserListReceived.accept(parts[1]);
+                // USERLIST:user1,user2:version - danh sách đầy đủ, các delta sau đó tính từ version này
+                if (parts.length >= 2) {
+                    presenceVersion = parts.length >= 3 ? parseLongField(parts[2]) : -1;
+                    if (onUserListReceived != null) {
+                        onUserListReceived.accept(parts[1]);
+                    }
+                }
+                break;
+            case "PRESENCE":
+                // PRESENCE:version:joined:left - mọi user vào/ra trong một cửa sổ gom của server
+                if (parts.length >= 3) {
+                    String[] changes = parts.length >= 4 ? new String[]{parts[2], parts[3]} : parts[2].split(":", 2);
+                    if (applyPresenceVersion(parseLongField(parts[1]))) {
+                        notifyPresence(changes[0], onUserJoined);
+                        notifyPresence(changes.length > 1 ? changes[1] : "", onUserLeft);
+                    }
                 }
                 break;
             case "REMOVED":
+                sessionToken = null;
+                password = null;
                 if (onRemoved != null) onRemoved.accept("Bạn đã bị xóa khỏi danh sách");
                 break;
             case "FILE_RECEIVED":
@@ -259,29 +998,79 @@ public class ChatClient {
                 break;
             case "NEW_FILE":
                 // Khi nhận thông báo file mới, tự động request file từ server
-                // Format: NEW_FILE:sender:fileName hoặc NEW_FILE:fileName (backward compatible)
+                // Format: NEW_FILE:sender:fileName[:hash] hoặc NEW_FILE:fileName (backward compatible)
                 if (parts.length >= 2) {
                     String sender = null;
                     String fileName;
+                    String hash = null;
 
                     if (parts.length >= 3) {
                         // Format mới: NEW_FILE:sender:fileName
                         sender = parts[1];
                         fileName = parts[2];
+                        if (parts.length >= 4) {
+                            hash = parts[3]; // v2: field riêng
+                        } else if (fileName.matches(".*:[0-9a-f]{64}")) {
+                            // v1: dòng được tách tối đa 3 phần nên hash còn dính sau fileName
+                            hash = fileName.substring(fileName.length() - 64);
+                            fileName = fileName.substring(0, fileName.length() - 65);
+                        }
                     } else {
                         // Format cũ: NEW_FILE:fileName (backward compatible)
                         fileName = parts[1];
                     }
 
+                    File cached = blobCache.find(hash);
+                    if (cached != null) {
+                        // Đã có đúng nội dung này trên máy: hiển thị luôn, không tải lại
+                        System.out.println("📦 Đã có sẵn " + fileName + " (" + cached.getName() + "), bỏ qua tải về");
+                        notifyFileReceived(sender != null ? sender : "SERVER", cached);
+                        break;
+                    }
+
                     System.out.println("📥 Nhận thông báo file mới từ " + (sender != null ? sender : "người dùng") + ": " + fileName + " - Đang yêu cầu tải về...");
 
                     // Lưu thông tin sender để hiển thị sau khi nhận file
                     if (sender != null) {
                         fileSenderMap.put(fileName, sender);
                     }
+                    if (hash != null) {
+                        fileHashMap.put(fileName, hash);
+                    }
 
-                    // Tự động request file từ server
-                    requestFile(fileName);
+                    // Tự động request file từ server (kèm hash để lấy đúng bản này)
+                    requestFile(fileName, hash);
+                }
+                break;
+            case "UPLOAD_OFFSET":
+                // UPLOAD_OFFSET:hash:offset:sums (v1 dòng chỉ tách 3 phần nên offset:sums còn dính nhau)
+                if (parts.length >= 3) {
+                    String[] status = parts.length >= 4 ? new String[]{parts[2], parts[3]} : parts[2].split(":", 2);
+                    CompletableFuture<String[]> reply = uploadOffsets.get(parts[1]);
+                    if (reply != null) {
+                        reply.complete(status);
+                    }
+                }
+                break;
+            case "ROOM_JOINED":
+                // Tin nhắn gửi sau đây chỉ tới thành viên phòng này
+                if (parts.length >= 2) {
+                    boolean changed = !parts[1].equals(cacheRoom());
+                    currentRoom = parts[1];
+                    System.out.println("🚪 Đã vào phòng " + currentRoom);
+                    if (changed) {
+                        syncHistory(ROOM_SYNC_PAGE_SIZE);
+                    }
+                }
+                break;
+            case "FILE_TICKET":
+                // FILE_TICKET:hash:size:ticket:fileName (v1 dòng chỉ tách 3 phần)
+                if (parts.length >= 3) {
+                    String[] ticket = parts.length >= 5 ? new String[]{parts[2], parts[3]} : parts[2].split(":", 3);
+                    CompletableFuture<String[]> reply = fileTickets.get(parts[1]);
+                    if (reply != null && ticket.length >= 2) {
+                        reply.complete(ticket);
+                    }
                 }
                 break;
             case "FILE_NOT_FOUND":
@@ -301,67 +1090,166 @@ public class ChatClient {
      * QUAN TRỌNG: Dùng raw InputStream để đọc binary data, không dùng BufferedReader
      * File sẽ được lưu với tên gốc, nếu đã tồn tại sẽ thêm số thứ tự
      */
-    private void receiveFile(String fileName, long fileSize) {
-        try {
-            // Đảm bảo thư mục downloads tồn tại
-            File downloadsDir = new File("downloads");
-            if (!downloadsDir.exists()) {
-                downloadsDir.mkdirs();
+    private void receiveFile(String fileName, long fileSize, InputStream body) {
+        receiveFile(fileName, 0, fileSize, body);
+    }
+
+    /**
+     * Nhận bytes [start, fileSize) của file. File có hash (từ NEW_FILE) được ghi vào
+     * downloads/.partial/&lt;hash&gt; và chỉ chuyển sang downloads/ khi đủ và đúng SHA-256;
+     * nếu stream đứt giữa chừng phần đã nhận được giữ lại để requestFile tải tiếp.
+     */
+    private void receiveFile(String fileName, long start, long fileSize, InputStream body) {
+        String hash = fileHashMap.get(fileName);
+        if (hash == null && start > 0) {
+            // Không có file dở để nối vào: bỏ phần thân, yêu cầu lại cả file
+            System.err.println("⚠️ Nhận FILE_RANGE cho " + fileName + " nhưng không có file dở, tải lại từ đầu");
+            try {
+                copyBody(body, fileSize - start, null);
+            } catch (IOException e) {
+                System.err.println("❌ Lỗi khi nhận file: " + e.getMessage());
+                return;
             }
+            requestFile(fileName, null);
+            return;
+        }
 
-            // Xử lý trường hợp file đã tồn tại - thêm số thứ tự
-            File file = new File(downloadsDir, fileName);
-            int counter = 1;
-            String baseName = fileName;
-            String extension = "";
-            int lastDot = fileName.lastIndexOf('.');
-            if (lastDot > 0) {
-                baseName = fileName.substring(0, lastDot);
-                extension = fileName.substring(lastDot);
+        // Thread nghe chỉ đọc socket và chuyển từng đoạn qua hàng đợi có giới hạn; mở file, ghi,
+        // fsync, kiểm tra và chuyển file đều chạy trên thread ghi đĩa. Hàng đợi đầy (đĩa chậm hơn
+        // mạng) thì thread nghe mới phải chờ, nên bộ nhớ giữ tối đa RECEIVE_QUEUE_CHUNKS đoạn.
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(RECEIVE_QUEUE_CHUNKS);
+        diskExecutor.execute(() -> writeReceived(fileName, hash, start, fileSize, chunks));
+        byte[] buffer = new byte[RECEIVE_CHUNK_BYTES];
+        long remaining = fileSize - start;
+        byte[] last = END_OF_BODY;
+        try {
+            while (remaining > 0) {
+                int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    // Stream kết thúc sớm
+                    System.err.println("⚠️ Stream kết thúc sớm. Còn thiếu " + remaining + " bytes");
+                    break;
+                }
+                putChunk(chunks, Arrays.copyOf(buffer, read));
+                remaining -= read;
             }
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi khi nhận file: " + e.getMessage());
+            e.printStackTrace();
+            last = ABORTED_BODY;
+        } finally {
+            putChunk(chunks, last);
+        }
+    }
 
-            while (file.exists()) {
-                String newName = baseName + "_" + counter + extension;
-                file = new File(downloadsDir, newName);
-                counter++;
+    // Chạy trên diskExecutor: ghi các đoạn của receiveFile cho tới END_OF_BODY/ABORTED_BODY.
+    // Lỗi ghi không dừng vòng lặp, các đoạn còn lại vẫn được lấy ra để thread nghe không bị kẹt.
+    private void writeReceived(String fileName, String hash, long start, long fileSize, BlockingQueue<byte[]> chunks) {
+        File target = null;
+        RandomAccessFile raf = null;
+        IOException failure = null;
+        try {
+            if (hash != null) {
+                partialDir.mkdirs();
+                target = new File(partialDir, hash);
+            } else {
+                // Đảm bảo thư mục downloads tồn tại
+                File downloadsDir = new File("downloads");
+                if (!downloadsDir.exists()) {
+                    downloadsDir.mkdirs();
+                }
+                target = uniqueDownloadFile(downloadsDir, fileName);
             }
+            raf = new RandomAccessFile(target, "rw");
+            raf.setLength(start); // bỏ phần sau offset server chấp nhận (có thể là block hỏng)
+            raf.seek(start);
+        } catch (IOException e) {
+            failure = e;
+        }
 
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buffer = new byte[8192]; // Buffer lớn hơn
-                long totalRead = 0;
-                int read;
+        long totalRead = start;
+        byte[] chunk;
+        while ((chunk = takeChunk(chunks)) != END_OF_BODY && chunk != ABORTED_BODY) {
+            totalRead += chunk.length;
+            if (failure == null) {
+                try {
+                    raf.write(chunk);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null || chunk == ABORTED_BODY) {
+            closeQuietly(raf);
+            if (failure != null) {
+                System.err.println("❌ Lỗi khi nhận file: " + failure.getMessage());
+            }
+            return;
+        }
 
-                // Đọc đúng số bytes theo fileSize
-                while (totalRead < fileSize) {
-                    int bytesToRead = (int) Math.min(buffer.length, fileSize - totalRead);
-                    read = bufferedIn.read(buffer, 0, bytesToRead);
+        // fsync (gom với các file khác) rồi kiểm tra và chuyển file, vẫn trên thread ghi đĩa
+        RandomAccessFile written = raf;
+        File saved = target;
+        long received = totalRead;
+        commits.sync(written.getChannel()).whenCompleteAsync((ignored, error) -> {
+            closeQuietly(written);
+            if (error != null) {
+                System.err.println("❌ Lỗi khi nhận file: " + error.getMessage());
+                return;
+            }
+            finishReceive(fileName, hash, saved, received, fileSize);
+        }, diskExecutor);
+    }
 
-                    if (read == -1) {
-                        // Stream kết thúc sớm
-                        System.err.println("⚠️ Stream kết thúc sớm. Đã đọc " + totalRead + "/" + fileSize + " bytes");
-                        break;
-                    }
+    // put/take không bỏ dở khi bị ngắt: hai phía của receiveFile phải gặp được đoạn kết thúc
+    private static void putChunk(BlockingQueue<byte[]> chunks, byte[] chunk) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                chunks.put(chunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    if (read > 0) {
-                        fos.write(buffer, 0, read);
-                        totalRead += read;
-                        // Log tiến trình cho file lớn (mỗi 100KB)
-                        if (totalRead % 102400 == 0) {
-                            System.out.println("  Đã đọc: " + (totalRead * 100 / fileSize) + "% (" + totalRead + "/" + fileSize + " bytes)");
-                        }
-                    }
+    private static byte[] takeChunk(BlockingQueue<byte[]> chunks) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return chunks.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                fos.flush(); // Đảm bảo dữ liệu được ghi vào disk
-                fos.getFD().sync(); // Đồng bộ với disk để đảm bảo dữ liệu được ghi hoàn toàn
-
-                // Kiểm tra xem đã nhận đủ dữ liệu chưa
-                if (totalRead != fileSize) {
-                    System.err.println("❌ LỖI: Chỉ nhận được " + totalRead + "/" + fileSize + " bytes cho file " + file.getName());
-                    System.err.println("   Thiếu: " + (fileSize - totalRead) + " bytes");
-                } else {
-                    System.out.println("✅ File đã tải về thành công: " + file.getAbsolutePath() + " (" + fileSize + " bytes)");
+    // Phần thân đã nằm trên đĩa: kiểm tra đủ bytes/hash, chuyển vào downloads/ và báo UI
+    private void finishReceive(String fileName, String hash, File target, long totalRead, long fileSize) {
+        try {
+            // Kiểm tra xem đã nhận đủ dữ liệu chưa
+            if (totalRead != fileSize) {
+                System.err.println("❌ LỖI: Chỉ nhận được " + totalRead + "/" + fileSize + " bytes cho file " + fileName);
+                System.err.println("   Thiếu: " + (fileSize - totalRead) + " bytes");
+                if (hash != null) {
+                    // Giữ file dở, lần sau NEW_FILE/GET_FILE cùng hash sẽ tải tiếp
+                    return;
                 }
+            } else if (hash != null) {
+                completeDownload(fileName, hash, target, fileSize);
+                return;
+            } else {
+                System.out.println("✅ File đã tải về thành công: " + target.getAbsolutePath() + " (" + fileSize + " bytes)");
             }
 
             // Lấy tên người gửi từ map (nếu có)
@@ -369,114 +1257,362 @@ public class ChatClient {
             if (sender == null) {
                 sender = "SERVER";
             }
-
-            // Gửi thông tin file kèm sender qua message callback để UI hiển thị
-            // Đảm bảo gọi callback để hiển thị ảnh trong chat
-            if (onMessageReceived != null) {
-                String finalSender = sender;
-                File finalFile = file;
-                Platform.runLater(() -> {
-                    try {
-                        // Gửi thông báo file đã nhận để hiển thị trong chat
-                        onMessageReceived.accept("FILE_RECEIVED:" + finalSender + ":" + finalFile.getAbsolutePath());
-                    } catch (Exception e) {
-                        System.err.println("❌ Lỗi khi gọi callback file: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                });
-            }
+            notifyFileReceived(sender, target);
         } catch (IOException e) {
             System.err.println("❌ Lỗi khi nhận file: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    // File dở đã đủ bytes: kiểm tra hash rồi chuyển vào downloads/ và báo UI
+    private void completeDownload(String fileName, String hash, File partial, long fileSize) throws IOException {
+        String sender = fileSenderMap.remove(fileName);
+        fileHashMap.remove(fileName);
+        if (!hash.equals(BlobCache.sha256(partial))) {
+            System.err.println("❌ LỖI: Nội dung " + fileName + " không khớp hash, bỏ file tải về");
+            Files.deleteIfExists(partial.toPath());
+            return;
+        }
+        File target = uniqueDownloadFile(new File("downloads"), fileName);
+        Files.move(partial.toPath(), target.toPath());
+        System.out.println("✅ File đã tải về thành công: " + target.getAbsolutePath() + " (" + fileSize + " bytes)");
+        blobCache.remember(hash, target);
+        notifyFileReceived(sender != null ? sender : "SERVER", target);
+    }
+
+    // Đọc đúng count bytes của phần thân vào raf (null: bỏ đi); trả về số bytes đọc được
+    private static long copyBody(InputStream body, long count, RandomAccessFile raf) throws IOException {
+        byte[] buffer = new byte[8192];
+        long totalRead = 0;
+        while (totalRead < count) {
+            int read = body.read(buffer, 0, (int) Math.min(buffer.length, count - totalRead));
+            if (read == -1) {
+                // Stream kết thúc sớm
+                System.err.println("⚠️ Stream kết thúc sớm. Đã đọc " + totalRead + "/" + count + " bytes");
+                break;
+            }
+            if (raf != null) {
+                raf.write(buffer, 0, read);
+            }
+            totalRead += read;
+        }
+        return totalRead;
+    }
+
+    // Xử lý trường hợp file đã tồn tại - thêm số thứ tự
+    private static File uniqueDownloadFile(File downloadsDir, String fileName) {
+        File file = new File(downloadsDir, fileName);
+        int counter = 1;
+        String baseName = fileName;
+        String extension = "";
+        int lastDot = fileName.lastIndexOf('.');
+        if (lastDot > 0) {
+            baseName = fileName.substring(0, lastDot);
+            extension = fileName.substring(lastDot);
+        }
+        while (file.exists()) {
+            file = new File(downloadsDir, baseName + "_" + counter + extension);
+            counter++;
+        }
+        return file;
+    }
+
+    // Gửi thông tin file kèm sender qua message callback để UI hiển thị
+    private void notifyFileReceived(String sender, File file) {
+        cacheEntry(MessageCache.Kind.FILE, 0, sender, file.getAbsolutePath());
+        // Đảm bảo gọi callback để hiển thị ảnh trong chat
+        if (onMessageReceived != null) {
+            Platform.runLater(() -> {
+                try {
+                    // Gửi thông báo file đã nhận để hiển thị trong chat
+                    onMessageReceived.accept("FILE_RECEIVED:" + sender + ":" + file.getAbsolutePath());
+                } catch (Exception e) {
+                    System.err.println("❌ Lỗi khi gọi callback file: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
 
     // The requestFile method should ask the server to send the file data
     public void requestFile(String fileName) {
+        requestFile(fileName, null);
+    }
+
+    /**
+     * hash != null: lấy đúng blob đó, kể cả khi đã có file mới hơn cùng tên. File lớn được
+     * tải song song qua các kết nối dữ liệu riêng để kết nối chat không bị file chiếm.
+     */
+    public void requestFile(String fileName, String hash) {
+        if (hash != null && DOWNLOAD_STREAMS > 1) {
+            downloadExecutor.execute(() -> download(fileName, hash));
+        } else {
+            requestFileInline(fileName, hash);
+        }
+    }
+
+    // Tải qua kết nối chat (GET_FILE), gửi kèm checksum phần đã có nếu có file dở
+    private void requestFileInline(String fileName, String hash) {
         if (isConnected && out != null) {
-            out.println("GET_FILE:" + fileName);
+            if (hash == null) {
+                sendCommand("GET_FILE", fileName);
+                return;
+            }
+            // Có file dở của lần trước: gửi checksum các block đã có để server chỉ gửi phần còn thiếu
+            File partial = new File(partialDir, hash);
+            long offset = ChunkSums.blockAligned(partial.length());
+            if (offset > 0) {
+                try {
+                    sendCommand("GET_FILE", fileName, hash, String.valueOf(offset), ChunkSums.compute(partial, offset));
+                    return;
+                } catch (IOException e) {
+                    System.err.println("⚠️ Không đọc được file dở " + partial + ": " + e.getMessage());
+                }
+            }
+            sendCommand("GET_FILE", fileName, hash);
         }
     }
 
 
-    public void sendFile(File file) {
+    /**
+     * Xin vé (GET_FILE_TICKET) rồi chia file thành DOWNLOAD_STREAMS đoạn theo block, mỗi đoạn
+     * FETCH trên một kết nối riêng và ghi thẳng vào downloads/.partial/&lt;hash&gt;.
+     * File nhỏ, server cũ hoặc lỗi giữa chừng thì quay về GET_FILE; phần đã ghi đúng được
+     * giữ lại và GET_FILE chỉ tải lại từ block đầu tiên không khớp.
+     */
+    private void download(String fileName, String hash) {
+        String[] ticket = requestTicket(fileName, hash);
+        long fileSize = ticket != null ? Long.parseLong(ticket[0]) : 0;
+        if (ticket == null || ticket[1].isEmpty() || fileSize < PARALLEL_DOWNLOAD_MIN) {
+            requestFileInline(fileName, hash);
+            return;
+        }
+        partialDir.mkdirs();
+        File partial = new File(partialDir, hash);
+        int streams = (int) Math.max(1, Math.min(DOWNLOAD_STREAMS, fileSize / ChunkSums.BLOCK_SIZE));
+        // Mỗi đoạn gồm các block đầy đủ để file dở vẫn dùng được cho GET_FILE tải tiếp
+        long step = ChunkSums.blockAligned((fileSize + streams - 1) / streams + ChunkSums.BLOCK_SIZE - 1);
+        System.out.println("📥 Tải song song " + fileName + " (" + fileSize + " bytes) qua " + streams + " kết nối");
+        long started = System.nanoTime();
+        try (FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (target.size() > fileSize) {
+                target.truncate(fileSize);
+            }
+            List<Future<Long>> parts = new ArrayList<>();
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (long start = 0; start < fileSize; start += step) {
+                    long from = start;
+                    long to = Math.min(start + step, fileSize);
+                    parts.add(pool.submit(() -> fetchRange(ticket[1], from, to, target)));
+                }
+            }
+            for (Future<Long> part : parts) {
+                part.get();
+            }
+            commits.syncAndWait(target);
+        } catch (IOException | ExecutionException e) {
+            System.err.println("⚠️ Tải song song " + fileName + " thất bại (" + e.getMessage() + "), tải tiếp qua kết nối chính");
+            requestFileInline(fileName, hash);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        System.out.println("  Tải xong sau " + (System.nanoTime() - started) / 1_000_000 + " ms");
         try {
-            if (socket != null && socket.isConnected()) {
-                long fileSize = file.length();
-
-                // Ensure atomic send: synchronize on rawOutputStream to avoid interleaving
-                synchronized (rawOutputStream) {
-                    // QUAN TRỌNG: Flush PrintWriter before sending binary data
-                    if (out != null) {
-                        out.flush();
-                    }
-
-                    // Gửi header qua PrintWriter (với newline)
-                    out.println("SEND_FILE:" + file.getName() + ":" + fileSize);
+            completeDownload(fileName, hash, partial, fileSize);
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi khi nhận file: " + e.getMessage());
+        }
+    }
 
-                    // Immediately flush underlying stream so header bytes go out before binary
-                    rawOutputStream.flush();
+    // {size, ticket}; null nếu server không trả lời (server cũ không biết GET_FILE_TICKET)
+    private String[] requestTicket(String fileName, String hash) {
+        if (!isConnected || out == null) {
+            return null;
+        }
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        fileTickets.put(hash, reply);
+        try {
+            sendCommand("GET_FILE_TICKET", fileName, hash);
+            return reply.get(UPLOAD_STATUS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            fileTickets.remove(hash);
+        }
+    }
 
-                    // Gửi dữ liệu file BINARY trực tiếp qua raw OutputStream
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        byte[] buffer = new byte[8192];
-                        int read;
-                        long totalSent = 0;
-                        while ((read = fis.read(buffer)) != -1) {
-                            rawOutputStream.write(buffer, 0, read);
-                            totalSent += read;
-                        }
-                        rawOutputStream.flush();
-                        System.out.println("✅ Đã gửi file " + file.getName() + " (" + totalSent + "/" + fileSize + " bytes) lên server");
-                    }
+    // Một kết nối dữ liệu: FETCH:ticket:start:end, nhận FILE_SLICE + bytes và ghi vào đúng vị trí
+    private static long fetchRange(String ticket, long start, long end, FileChannel target) throws IOException {
+        try (Socket data = new Socket(SERVER_HOST, SERVER_PORT)) {
+            OutputStream dataOut = data.getOutputStream();
+            dataOut.write(("FETCH:" + ticket + ":" + start + ":" + end + "\n").getBytes(StandardCharsets.UTF_8));
+            dataOut.flush();
+            LineDecoder dataIn = new LineDecoder(data.getInputStream());
+            String header = dataIn.readLine();
+            if (header == null || !header.startsWith("FILE_SLICE:")) {
+                throw new IOException("Server từ chối FETCH " + start + "-" + end + ": " + header);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            while (position < end) {
+                int read = dataIn.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (read == -1) {
+                    throw new EOFException("Kết nối dữ liệu đóng ở " + position + "/" + end);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += target.write(chunk, position);
                 }
             }
-        } catch (IOException e) {
-            System.err.println("❌ Lỗi khi gửi file: " + e.getMessage());
-            e.printStackTrace();
-        } catch (Exception e) {
-            System.err.println("❌ Lỗi khi gửi file: " + e.getMessage());
-            e.printStackTrace();
+            return position - start;
         }
     }
 
+    public void sendFile(File file) {
+        uploadExecutor.execute(() -> upload(file, null));
+    }
+
     public void sendMediaFile(File file, String type) {
+        uploadExecutor.execute(() -> upload(file, type));
+    }
+
+    /**
+     * Gửi file lên server: SEND_FILE:filename:filesize:sha256[:start] hoặc
+     * SEND_MEDIA:TYPE:filename:filesize:sha256[:start]. Chạy trên uploadExecutor vì phải
+     * hỏi server (UPLOAD_STATUS) đã giữ bao nhiêu bytes của lần gửi bị đứt trước đó.
+     * @param type null với file thường, AUDIO/VIDEO/IMAGE với media
+     */
+    private void upload(File file, String type) {
+        String kind = type == null ? "file" : "media file";
         try {
             if (socket != null && socket.isConnected()) {
                 long fileSize = file.length();
+                // Server đã có nội dung này thì chỉ kiểm tra hash, không lưu thêm bản nữa
+                String hash = BlobCache.sha256(file);
+                blobCache.remember(hash, file);
+                long start = resumeOffset(file, hash);
+                if (start > 0) {
+                    System.out.println("🔄 Gửi tiếp " + file.getName() + " từ " + start + "/" + fileSize + " bytes");
+                }
 
-                synchronized (rawOutputStream) {
-                    if (out != null) out.flush();
-
-                    // Gửi header: SEND_MEDIA:TYPE:filename:filesize
-                    out.println("SEND_MEDIA:" + type + ":" + file.getName() + ":" + fileSize);
-
-                    // Ensure header bytes are flushed
-                    rawOutputStream.flush();
+                String[] fields = type == null
+                        ? new String[]{file.getName(), String.valueOf(fileSize), hash}
+                        : new String[]{type, file.getName(), String.valueOf(fileSize), hash};
+                if (start > 0) {
+                    fields = Arrays.copyOf(fields, fields.length + 1);
+                    fields[fields.length - 1] = String.valueOf(start);
+                }
 
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        byte[] buffer = new byte[8192];
-                        int read;
-                        long totalSent = 0;
-                        while ((read = fis.read(buffer)) != -1) {
-                            rawOutputStream.write(buffer, 0, read);
-                            totalSent += read;
+                long totalSent;
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    fis.getChannel().position(start);
+                    if (protocolVersion == FrameCodec.VERSION) {
+                        totalSent = sendUploadV2(type == null ? Opcode.SEND_FILE : Opcode.SEND_MEDIA, fis, fileSize - start, fields);
+                    } else {
+                        // v1: bytes thô ngay sau header nên giữ lock cho cả file để không lẫn dòng khác
+                        sendLock.lock();
+                        try {
+                            // QUAN TRỌNG: Flush PrintWriter before sending binary data
+                            out.flush();
+                            // Gửi header qua PrintWriter (với newline)
+                            out.println((type == null ? "SEND_FILE:" : "SEND_MEDIA:") + String.join(":", fields));
+                            // Immediately flush underlying stream so header bytes go out before binary
+                            rawOutputStream.flush();
+
+                            // Gửi dữ liệu file BINARY trực tiếp qua raw OutputStream
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            totalSent = 0;
+                            while ((read = fis.read(buffer)) != -1) {
+                                rawOutputStream.write(buffer, 0, read);
+                                totalSent += read;
+                            }
+                            rawOutputStream.flush();
+                        } finally {
+                            sendLock.unlock();
                         }
-                        rawOutputStream.flush();
-                        System.out.println("✅ Đã gửi media file " + file.getName() + " (" + totalSent + "/" + fileSize + " bytes, type: " + type + ") lên server");
                     }
                 }
+                System.out.println("✅ Đã gửi " + kind + " " + file.getName() + " (" + (start + totalSent) + "/" + fileSize + " bytes"
+                        + (type != null ? ", type: " + type : "") + ") lên server");
             }
-        } catch (IOException e) {
-            System.err.println("❌ Lỗi khi gửi media file: " + e.getMessage());
-            e.printStackTrace();
         } catch (Exception e) {
-            System.err.println("❌ Lỗi khi gửi media file: " + e.getMessage());
+            System.err.println("❌ Lỗi khi gửi " + kind + ": " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    /**
+     * Hỏi server phần đã nhận của lần gửi trước (cùng hash) và kiểm tra từng block với file
+     * local. File nhỏ hơn một block thì không có gì để gửi tiếp nên không hỏi.
+     * @return offset bắt đầu gửi, 0 nếu gửi từ đầu
+     */
+    private long resumeOffset(File file, String hash) {
+        if (file.length() <= ChunkSums.BLOCK_SIZE) {
+            return 0;
+        }
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        uploadOffsets.put(hash, reply);
+        try {
+            sendCommand("UPLOAD_STATUS", hash);
+            String[] status = reply.get(UPLOAD_STATUS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            long offset = Long.parseLong(status[0]);
+            if (offset <= 0 || status.length < 2) {
+                return 0;
+            }
+            return ChunkSums.matchingPrefix(file, status[1], Math.min(offset, file.length() - 1));
+        } catch (TimeoutException e) {
+            return 0; // server cũ không biết UPLOAD_STATUS
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ExecutionException | IOException | NumberFormatException e) {
+            System.err.println("⚠️ Không kiểm tra được phần đã gửi của " + file.getName() + ": " + e.getMessage());
+            return 0;
+        } finally {
+            uploadOffsets.remove(hash);
+        }
+    }
+
+    /**
+     * v2: frame header + các CHUNK cùng stream id. Lock chỉ giữ cho từng frame nên lệnh
+     * chat gửi trong lúc upload được chen giữa hai CHUNK (server xử lý ngay khi đọc tới).
+     */
+    private long sendUploadV2(Opcode opcode, InputStream body, long length, String... fields) throws IOException {
+        int streamId;
+        sendLock.lock();
+        try {
+            streamId = nextStreamId;
+            nextStreamId += 2;
+            FrameCodec.writeFrame(rawOutputStream, opcode, streamId, fields);
+        } finally {
+            sendLock.unlock();
+        }
+        byte[] buffer = new byte[(int) Math.min(FrameCodec.CHUNK_SIZE, Math.max(length, 1))];
+        long totalSent = 0;
+        while (totalSent < length) {
+            int read = body.read(buffer, 0, (int) Math.min(buffer.length, length - totalSent));
+            if (read == -1) {
+                break;
+            }
+            sendLock.lock();
+            try {
+                FrameCodec.writeChunk(rawOutputStream, streamId, buffer, 0, read);
+                rawOutputStream.flush();
+            } finally {
+                sendLock.unlock();
+            }
+            totalSent += read;
+        }
+        return totalSent;
+    }
+
     // Getters và Setters cho callbacks
     private java.util.function.Consumer<File> onFileReceived;
 
@@ -508,11 +1644,31 @@ public class ChatClient {
         this.onRemoved = callback;
     }
 
+    public void setOnUserJoined(Consumer<String> callback) {
+        this.onUserJoined = callback;
+    }
+
+    public void setOnUserLeft(Consumer<String> callback) {
+        this.onUserLeft = callback;
+    }
+
     // New setter for image callback
     public void setOnImageReceived(Consumer<ImageMessage> callback) {
         this.onImageReceived = callback;
     }
 
+    public void setOnHistoryReceived(Consumer<HistoryPage> callback) {
+        this.onHistoryReceived = callback;
+    }
+
+    public void setOnConnectionStateChanged(Consumer<ConnectionState> callback) {
+        this.onConnectionStateChanged = callback;
+    }
+
+    public ConnectionState getConnectionState() {
+        return state;
+    }
+
     public boolean isConnected() {
         return isConnected;
     }
@@ -521,6 +1677,10 @@ public class ChatClient {
         return username;
     }
 
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+
     // Helper to read exact number of bytes from InputStream
     private static byte[] readFully(InputStream in, long size) throws IOException {
         if (size > Integer.MAX_VALUE) throw new IOException("File too large");
@@ -535,28 +1695,4 @@ public class ChatClient {
         }
         return data;
     }
-
-    // Helper to read a line (bytes until '\n') from bufferedIn using UTF-8. Returns null on EOF.
-    private static String readLine(BufferedInputStream bis) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int b;
-        boolean seenCR = false;
-        while ((b = bis.read()) != -1) {
-            if (b == '\r') {
-                seenCR = true;
-                continue; // peek for \n next
-            }
-            if (b == '\n') {
-                break;
-            }
-            if (seenCR) {
-                // previous was CR but not followed by LF, we should treat CR as part of line end -> push it
-                baos.write('\r');
-                seenCR = false;
-            }
-            baos.write(b);
-        }
-        if (b == -1 && baos.size() == 0) return null;
-        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
-    }
 }
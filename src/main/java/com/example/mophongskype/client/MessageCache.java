@@ -0,0 +1,272 @@
+package com.example.mophongskype.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Bản sao local của timeline từng phòng (tin nhắn + metadata ảnh/file đã nhận), để mở app là
+ * hiện ngay các tin gần nhất và chỉ phải xin server phần sau seq đã có.
+ * <p>
+ * Mỗi phòng một thư mục cache/&lt;hex(user)&gt;/&lt;hex(phòng)&gt;/ gồm các segment
+ * &lt;thứ tự bản ghi đầu&gt;.seg và chỉ mục .idx cùng tên (offset int của từng bản ghi), nên đọc
+ * N bản ghi cuối không phải quét cả file. Bản ghi: length(int) | kind(byte) | seq(long) | time(long)
+ * | senderLen(short) | sender | text (UTF-8). Chỉ giữ MAX_SEGMENTS segment mới nhất mỗi phòng.
+ * Cache không fsync: mất phần đuôi lúc tắt đột ngột thì lần sau xin lại từ server.
+ */
+public class MessageCache {
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int HEADER = 1 + 8 + 8 + 2;
+
+    // TEXT: tin nhắn phòng (seq của server); IMAGE/FILE: text là đường dẫn file local, seq = 0
+    public enum Kind { TEXT, IMAGE, FILE }
+
+    public static final class Entry {
+        public final Kind kind;
+        public final long seq;
+        public final long time;
+        public final String sender;
+        public final String text;
+
+        public Entry(Kind kind, long seq, long time, String sender, String text) {
+            this.kind = kind;
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, RoomCache> rooms = new HashMap<>();
+
+    public MessageCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Thêm vào cuối timeline của phòng. Tin TEXT có seq không lớn hơn seq đã có bị bỏ (trùng).
+     * @return false nếu bị bỏ hoặc không ghi được
+     */
+    public synchronized boolean append(String room, Entry entry) {
+        RoomCache cache = room(room);
+        if (entry.kind == Kind.TEXT && entry.seq <= cache.lastSeq) {
+            return false;
+        }
+        try {
+            cache.append(entry);
+            return true;
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi ghi cache tin nhắn: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Tối đa limit bản ghi cuối của phòng, cũ trước mới sau
+    public synchronized List<Entry> recent(String room, int limit) {
+        try {
+            return room(room).recent(limit);
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi đọc cache tin nhắn: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    // Seq server lớn nhất đã cache của phòng, 0 nếu chưa có
+    public synchronized long lastSeq(String room) {
+        return room(room).lastSeq;
+    }
+
+    private RoomCache room(String room) {
+        return rooms.computeIfAbsent(room, key -> new RoomCache(
+                new File(dir, HexFormat.of().formatHex(key.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static final class Segment {
+        final long base;
+        final File data;
+        final File index;
+        int count;
+        long size;
+
+        Segment(File roomDir, long base) {
+            this.base = base;
+            this.data = new File(roomDir, String.format("%012d.seg", base));
+            this.index = new File(roomDir, String.format("%012d.idx", base));
+        }
+
+        int[] offsets() throws IOException {
+            byte[] bytes = Files.readAllBytes(index.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, Math.min(bytes.length, count * 4));
+            int[] offsets = new int[buffer.remaining() / 4];
+            buffer.asIntBuffer().get(offsets);
+            return offsets;
+        }
+    }
+
+    private static final class RoomCache {
+        final File roomDir;
+        final List<Segment> segments = new ArrayList<>();
+        long lastSeq = 0;
+
+        RoomCache(File roomDir) {
+            this.roomDir = roomDir;
+            File[] files = roomDir.listFiles((d, name) -> name.endsWith(".seg"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    Segment segment = new Segment(roomDir, Long.parseLong(file.getName().substring(0, 12)));
+                    segment.size = file.length();
+                    segment.count = (int) (segment.index.length() / 4);
+                    segments.add(segment);
+                }
+            }
+            try {
+                trimTail();
+                lastSeq = findLastSeq();
+            } catch (IOException e) {
+                System.err.println("❌ Lỗi đọc cache " + roomDir + ": " + e.getMessage());
+                segments.clear();
+            }
+        }
+
+        // Cắt phần đuôi ghi dở của segment cuối (tắt đột ngột giữa lúc ghi hai file): chỉ giữ các
+        // bản ghi có cả mục chỉ mục lẫn dữ liệu đầy đủ
+        private void trimTail() throws IOException {
+            if (segments.isEmpty()) {
+                return;
+            }
+            Segment last = segments.get(segments.size() - 1);
+            int[] offsets = last.offsets();
+            int valid = offsets.length;
+            long end = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(last.data, "rw")) {
+                while (valid > 0) {
+                    int offset = offsets[valid - 1];
+                    if (offset + 4L <= last.size) {
+                        raf.seek(offset);
+                        end = offset + 4L + raf.readInt();
+                        if (end <= last.size) {
+                            break;
+                        }
+                    }
+                    valid--;
+                    end = 0;
+                }
+                raf.setLength(end);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(last.index, "rw")) {
+                raf.setLength(valid * 4L);
+            }
+            last.count = valid;
+            last.size = end;
+        }
+
+        private long findLastSeq() throws IOException {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                List<Entry> entries = read(segments.get(i), 0);
+                for (int j = entries.size() - 1; j >= 0; j--) {
+                    if (entries.get(j).kind == Kind.TEXT) {
+                        return entries.get(j).seq;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        void append(Entry entry) throws IOException {
+            byte[] record = encode(entry);
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || active.size + record.length > SEGMENT_BYTES) {
+                long base = active == null ? 0 : active.base + active.count;
+                if (!roomDir.exists() && !roomDir.mkdirs()) {
+                    throw new IOException("Không tạo được " + roomDir);
+                }
+                active = new Segment(roomDir, base);
+                segments.add(active);
+                while (segments.size() > MAX_SEGMENTS) {
+                    Segment oldest = segments.remove(0);
+                    oldest.data.delete();
+                    oldest.index.delete();
+                }
+            }
+            write(active.data, record);
+            write(active.index, ByteBuffer.allocate(4).putInt((int) active.size).array());
+            active.size += record.length;
+            active.count++;
+            if (entry.kind == Kind.TEXT) {
+                lastSeq = entry.seq;
+            }
+        }
+
+        List<Entry> recent(int limit) throws IOException {
+            LinkedList<Entry> result = new LinkedList<>();
+            for (int i = segments.size() - 1; i >= 0 && result.size() < limit; i--) {
+                Segment segment = segments.get(i);
+                List<Entry> entries = read(segment, Math.max(0, segment.count - (limit - result.size())));
+                result.addAll(0, entries);
+            }
+            return new ArrayList<>(result);
+        }
+
+        // Các bản ghi từ thứ tự from (trong segment) tới hết
+        private static List<Entry> read(Segment segment, int from) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            int[] offsets = segment.offsets();
+            if (from >= offsets.length) {
+                return entries;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(segment.data, "r")) {
+                raf.seek(offsets[from]);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+                for (int i = from; i < offsets.length; i++) {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    entries.add(decode(record));
+                }
+            }
+            return entries;
+        }
+
+        private static void write(File file, byte[] bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER + sender.length + text.length);
+        buffer.putInt(HEADER + sender.length + text.length);
+        buffer.put((byte) entry.kind.ordinal());
+        buffer.putLong(entry.seq);
+        buffer.putLong(entry.time);
+        buffer.putShort((short) sender.length);
+        buffer.put(sender);
+        buffer.put(text);
+        return buffer.array();
+    }
+
+    private static Entry decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        Kind kind = Kind.values()[buffer.get()];
+        long seq = buffer.getLong();
+        long time = buffer.getLong();
+        byte[] sender = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(sender);
+        byte[] text = new byte[buffer.remaining()];
+        buffer.get(text);
+        return new Entry(kind, seq, time, new String(sender, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.mophongskype.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Trình bày phần binary của một transfer v2 (các frame CHUNK cùng stream id)
+ * như một InputStream, trả về -1 sau đúng size bytes.
+ * <p>
+ * Bên gửi được chen frame lệnh (chat, USERLIST...) giữa các CHUNK để tin nhắn không phải
+ * chờ file gửi xong; các frame đó được chuyển cho FrameHandler ngay khi đọc tới.
+ */
+public final class ChunkInputStream extends InputStream {
+    /**
+     * Xử lý một frame lệnh chen giữa transfer; reader đang đứng ở frame đó.
+     */
+    public interface FrameHandler {
+        void handle(FrameReader reader) throws IOException;
+    }
+
+    private final FrameReader reader;
+    private final int streamId;
+    // null: không chấp nhận frame chen giữa
+    private final FrameHandler interleaved;
+    private long remaining;
+    private int chunkPos = 0;
+    private int chunkLength = 0;
+
+    public ChunkInputStream(FrameReader reader, int streamId, long size) {
+        this(reader, streamId, size, null);
+    }
+
+    public ChunkInputStream(FrameReader reader, int streamId, long size, FrameHandler interleaved) {
+        this.reader = reader;
+        this.streamId = streamId;
+        this.remaining = size;
+        this.interleaved = interleaved;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (chunkPos == chunkLength) {
+            if (!reader.next()) {
+                return -1;
+            }
+            if (reader.opcode() == Opcode.FILE_FAILED && reader.streamId() == streamId) {
+                // Bên gửi hủy giữa chừng (ví dụ upload được relay bị bỏ dở)
+                remaining = 0;
+                throw new IOException("Transfer stream " + streamId + " bị hủy");
+            }
+            if (reader.opcode() == Opcode.CHUNK && reader.streamId() == streamId) {
+                chunkPos = 0;
+                chunkLength = reader.payloadLength();
+            } else if (interleaved != null && reader.opcode() != Opcode.CHUNK && reader.streamId() == 0) {
+                // Frame lệnh được ưu tiên chen giữa các CHUNK
+                interleaved.handle(reader);
+            } else if (reader.opcode() != null || interleaved == null) {
+                throw new IOException("Frame không mong đợi giữa transfer: " + reader.opcode() + "/" + reader.streamId());
+            }
+        }
+        int count = (int) Math.min(Math.min(length, chunkLength - chunkPos), remaining);
+        System.arraycopy(reader.payload(), chunkPos, target, offset, count);
+        chunkPos += count;
+        remaining -= count;
+        return count;
+    }
+}
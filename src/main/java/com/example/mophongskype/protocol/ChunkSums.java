@@ -0,0 +1,90 @@
+package com.example.mophongskype.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum theo block cho transfer tiếp tục được (resume). Bên đang giữ phần dở gửi
+ * CRC32 của từng block đầy đủ; bên kia so với bản của mình và chỉ gửi lại từ block
+ * đầu tiên không khớp, nên byte hỏng trong phần dở không lọt vào file cuối.
+ * Danh sách được nối bằng ',' để đi được trong cả dòng text v1 lẫn field v2.
+ */
+public final class ChunkSums {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private ChunkSums() {
+    }
+
+    // Offset resume hợp lệ: phần đầu gồm các block đầy đủ
+    public static long blockAligned(long length) {
+        return length - length % BLOCK_SIZE;
+    }
+
+    /**
+     * CRC32 (hex) của từng block đầy đủ trong [0, length) của file.
+     */
+    public static String compute(File file, long length) throws IOException {
+        StringBuilder sums = new StringBuilder();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            CRC32 crc = new CRC32();
+            for (long position = 0; position + BLOCK_SIZE <= length; position += BLOCK_SIZE) {
+                if (!readBlock(channel, position, buffer)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer);
+                if (sums.length() > 0) {
+                    sums.append(',');
+                }
+                sums.append(Long.toHexString(crc.getValue()));
+            }
+        }
+        return sums.toString();
+    }
+
+    /**
+     * Số bytes đầu của file khớp với danh sách sums của bên kia (tính theo block đầy đủ),
+     * không vượt quá limit.
+     */
+    public static long matchingPrefix(File file, String sums, long limit) throws IOException {
+        if (sums == null || sums.isEmpty() || limit < BLOCK_SIZE) {
+            return 0;
+        }
+        String[] expected = sums.split(",");
+        long matched = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            CRC32 crc = new CRC32();
+            for (String sum : expected) {
+                if (matched + BLOCK_SIZE > limit || !readBlock(channel, matched, buffer)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer);
+                if (!Long.toHexString(crc.getValue()).equals(sum)) {
+                    break;
+                }
+                matched += BLOCK_SIZE;
+            }
+        }
+        return matched;
+    }
+
+    // Đọc đủ một block tại position vào buffer (đã flip); false nếu file ngắn hơn
+    private static boolean readBlock(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.mophongskype.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Giao thức v2: frame nhị phân có độ dài thay cho dòng text phân tách bằng ':'.
+ * <pre>
+ *   [opcode: 1 byte][stream id: 4 byte][payload length: 4 byte][payload]
+ * </pre>
+ * Payload của frame lệnh là danh sách field, mỗi field = [độ dài: 4 byte][UTF-8],
+ * nên nội dung tin nhắn chứa ':' không còn bị cắt. Payload của CHUNK là bytes thô:
+ * file/ảnh được gửi bằng một frame header (SEND_FILE, FILE_DATA, IMAGE_DATA...)
+ * rồi các CHUNK cùng stream id cho tới khi đủ kích thước đã khai báo.
+ * <p>
+ * Hai bên thương lượng bằng dòng text: client gửi "PROTOCOL:2", server trả
+ * "PROTOCOL_OK:2" (chuyển sang v2) hoặc "PROTOCOL:1" (giữ giao thức text).
+ */
+public final class FrameCodec {
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 9;
+    public static final int CHUNK_SIZE = 64 * 1024;
+    // Giới hạn payload để một frame lỗi/độc hại không làm cạn heap
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Ghi một frame lệnh; cả frame được ghép vào một mảng để ghi bằng một lệnh write.
+     */
+    public static void writeFrame(OutputStream out, Opcode opcode, int streamId, String... fields) throws IOException {
+        byte[][] encoded = new byte[fields.length][];
+        int payloadLength = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = (fields[i] == null ? "" : fields[i]).getBytes(StandardCharsets.UTF_8);
+            payloadLength += 4 + encoded[i].length;
+        }
+        byte[] frame = new byte[HEADER_SIZE + payloadLength];
+        int pos = putHeader(frame, opcode, streamId, payloadLength);
+        for (byte[] field : encoded) {
+            pos = putInt(frame, pos, field.length);
+            System.arraycopy(field, 0, frame, pos, field.length);
+            pos += field.length;
+        }
+        out.write(frame);
+    }
+
+    public static void writeChunk(OutputStream out, int streamId, byte[] data, int offset, int length) throws IOException {
+        writeChunkHeader(out, streamId, length);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Chỉ ghi header của CHUNK; length bytes tiếp theo do người gọi tự đẩy ra
+     * (ví dụ FileChannel.transferTo thẳng vào socket).
+     */
+    public static void writeChunkHeader(OutputStream out, int streamId, int length) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        putHeader(header, Opcode.CHUNK, streamId, length);
+        out.write(header);
+    }
+
+    /**
+     * Gửi đúng size bytes từ in thành các CHUNK tối đa CHUNK_SIZE.
+     * @return số bytes đã gửi (nhỏ hơn size nếu in hết sớm)
+     */
+    public static long writeChunks(OutputStream out, int streamId, InputStream in, long size) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, Math.max(size, 1))];
+        long sent = 0;
+        while (sent < size) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - sent));
+            if (read == -1) {
+                break;
+            }
+            writeChunk(out, streamId, buffer, 0, read);
+            sent += read;
+        }
+        return sent;
+    }
+
+    public static void writeChunks(OutputStream out, int streamId, byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            writeChunk(out, streamId, data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+    }
+
+    private static int putHeader(byte[] target, Opcode opcode, int streamId, int payloadLength) {
+        target[0] = (byte) opcode.code;
+        putInt(target, 1, streamId);
+        return putInt(target, 5, payloadLength);
+    }
+
+    static int putInt(byte[] target, int pos, int value) {
+        target[pos] = (byte) (value >>> 24);
+        target[pos + 1] = (byte) (value >>> 16);
+        target[pos + 2] = (byte) (value >>> 8);
+        target[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    static int getInt(byte[] source, int pos) {
+        return ((source[pos] & 0xFF) << 24) | ((source[pos + 1] & 0xFF) << 16)
+                | ((source[pos + 2] & 0xFF) << 8) | (source[pos + 3] & 0xFF);
+    }
+}
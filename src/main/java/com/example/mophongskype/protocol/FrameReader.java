@@ -0,0 +1,111 @@
+package com.example.mophongskype.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Đọc lần lượt các frame v2 từ một InputStream. Header và payload được đọc vào
+ * buffer dùng lại giữa các frame; dữ liệu của payload() chỉ hợp lệ tới lần next() sau.
+ */
+public final class FrameReader {
+    private final InputStream in;
+    private final byte[] header = new byte[FrameCodec.HEADER_SIZE];
+    private byte[] payload = new byte[1024];
+    private int code;
+    private int streamId;
+    private int payloadLength;
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Đọc frame tiếp theo.
+     * @return false nếu stream kết thúc gọn gàng trước header
+     */
+    public boolean next() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return false;
+        }
+        header[0] = (byte) first;
+        readFully(header, 1, FrameCodec.HEADER_SIZE - 1);
+        code = first;
+        streamId = FrameCodec.getInt(header, 1);
+        payloadLength = FrameCodec.getInt(header, 5);
+        if (payloadLength < 0 || payloadLength > FrameCodec.MAX_PAYLOAD) {
+            throw new IOException("Frame v2 không hợp lệ: payload " + payloadLength + " bytes");
+        }
+        if (payload.length < payloadLength) {
+            payload = new byte[Math.max(payloadLength, payload.length * 2)];
+        }
+        readFully(payload, 0, payloadLength);
+        return true;
+    }
+
+    // null nếu opcode không được hỗ trợ
+    public Opcode opcode() {
+        return Opcode.fromCode(code);
+    }
+
+    public int streamId() {
+        return streamId;
+    }
+
+    public byte[] payload() {
+        return payload;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Giải mã payload của frame lệnh thành [tên lệnh, field1, field2, ...],
+     * cùng dạng với kết quả split của một dòng text v1. Frame COMMAND lấy tên lệnh từ field đầu.
+     */
+    public String[] toParts() throws IOException {
+        int count = 0;
+        for (int pos = 0; pos < payloadLength; count++) {
+            pos += 4 + fieldLength(pos);
+        }
+        String[] parts = new String[count + 1];
+        Opcode opcode = opcode();
+        parts[0] = opcode != null ? opcode.name() : "";
+        int pos = 0;
+        for (int i = 1; i <= count; i++) {
+            int length = fieldLength(pos);
+            parts[i] = new String(payload, pos + 4, length, StandardCharsets.UTF_8);
+            pos += 4 + length;
+        }
+        if (opcode == Opcode.COMMAND && count > 0) {
+            return Arrays.copyOfRange(parts, 1, parts.length);
+        }
+        return parts;
+    }
+
+    private int fieldLength(int pos) throws IOException {
+        if (pos + 4 > payloadLength) {
+            throw new IOException("Field v2 không hợp lệ");
+        }
+        int length = FrameCodec.getInt(payload, pos);
+        if (length < 0 || pos + 4 + length > payloadLength) {
+            throw new IOException("Field v2 không hợp lệ");
+        }
+        return length;
+    }
+
+    private void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(target, offset, length);
+            if (read == -1) {
+                throw new EOFException("Stream ended prematurely while reading frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
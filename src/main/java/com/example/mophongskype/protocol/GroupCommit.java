@@ -0,0 +1,140 @@
+package com.example.mophongskype.protocol;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Đồng bộ file xuống đĩa theo mức độ bền chọn lúc chạy (-Dchat.durability=none|batched|per_write,
+ * mặc định batched), dùng chung cho client và server.
+ * <p>
+ * BATCHED: yêu cầu fsync được xếp cho một thread riêng; mỗi lượt thread lấy hết yêu cầu đang chờ
+ * và force mỗi file một lần dù có bao nhiêu lần ghi vào nó (group commit). Người ghi không phải
+ * chờ fsync trên thread đang đọc socket, chỉ nhận kết quả qua CompletableFuture.
+ * PER_WRITE: force ngay trên thread gọi như trước. NONE: không force, để hệ điều hành tự ghi.
+ */
+public final class GroupCommit {
+    public enum Durability { NONE, BATCHED, PER_WRITE }
+
+    /**
+     * Thao tác đưa dữ liệu của một file xuống đĩa (FileChannel.force, MappedByteBuffer.force...).
+     */
+    public interface Syncable {
+        void sync() throws IOException;
+    }
+
+    private static final class Request {
+        final Object key;
+        final Syncable action;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(Object key, Syncable action) {
+            this.key = key;
+            this.action = action;
+        }
+    }
+
+    private final Durability durability;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+    public GroupCommit(Durability durability, String threadName) {
+        this.durability = durability;
+        if (durability == Durability.BATCHED) {
+            Thread.ofPlatform().daemon().name(threadName).start(this::run);
+        }
+    }
+
+    // Mức độ bền đọc từ -Dchat.durability
+    public static Durability configuredDurability() {
+        return Durability.valueOf(System.getProperty("chat.durability", "BATCHED").toUpperCase());
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    public CompletableFuture<Void> sync(FileChannel channel) {
+        return sync(channel, () -> channel.force(true));
+    }
+
+    /**
+     * Yêu cầu chạy action; các yêu cầu cùng key (so sánh theo identity) trong một lượt chỉ chạy một lần.
+     * Future hoàn thành khi dữ liệu ghi trước lời gọi này đã xuống đĩa (ngay lập tức với NONE).
+     */
+    public CompletableFuture<Void> sync(Object key, Syncable action) {
+        switch (durability) {
+            case NONE:
+                return CompletableFuture.completedFuture(null);
+            case PER_WRITE:
+                try {
+                    action.sync();
+                    return CompletableFuture.completedFuture(null);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            default:
+                Request request = new Request(key, action);
+                requests.add(request);
+                return request.done;
+        }
+    }
+
+    /**
+     * sync rồi chờ xong, cho code đang chạy ngoài thread đọc socket và cần dữ liệu bền trước khi đi tiếp.
+     */
+    public void syncAndWait(FileChannel channel) throws IOException {
+        try {
+            sync(channel).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(requests.take());
+                requests.drainTo(batch);
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void commit(List<Request> batch) {
+        Map<Object, IOException> results = new IdentityHashMap<>();
+        for (Request request : batch) {
+            if (results.containsKey(request.key)) {
+                continue;
+            }
+            IOException error = null;
+            try {
+                request.action.sync();
+            } catch (IOException e) {
+                error = e;
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+            }
+            results.put(request.key, error);
+        }
+        for (Request request : batch) {
+            IOException error = results.get(request.key);
+            if (error == null) {
+                request.done.complete(null);
+            } else {
+                request.done.completeExceptionally(error);
+            }
+        }
+    }
+}
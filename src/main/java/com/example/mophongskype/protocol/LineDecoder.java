@@ -0,0 +1,144 @@
+package com.example.mophongskype.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * InputStream có buffer dùng chung cho dòng text (giao thức v1) lẫn dữ liệu binary đi sau header.
+ * <ul>
+ *   <li>readLine() tìm '\n' trên cả đoạn đang có trong buffer và giải mã UTF-8 đúng một lần
+ *       thẳng từ buffer, không đọc từng byte và không qua ByteArrayOutputStream.</li>
+ *   <li>Buffer được dùng lại giữa các dòng; chỉ nới rộng khi gặp dòng dài hơn buffer.</li>
+ *   <li>read(byte[]) / transferTo() trả phần đã đệm trước, phần lớn còn lại đọc thẳng từ
+ *       stream gốc vào mảng của người gọi nên payload binary không bị copy thêm.</li>
+ * </ul>
+ */
+public final class LineDecoder extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    // Không có '\n' sau chừng này bytes thì coi như dữ liệu hỏng
+    public static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+
+    public LineDecoder(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public LineDecoder(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Đọc một dòng kết thúc bằng '\n' (bỏ '\r' ngay trước nó), giải mã UTF-8.
+     * @return null khi hết stream và không còn byte nào
+     */
+    public String readLine() throws IOException {
+        int scanFrom = pos;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > pos && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, pos, end - pos, StandardCharsets.UTF_8);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            scanFrom = limit;
+            if (pos > 0) {
+                // Dồn phần dòng dở về đầu buffer để đọc tiếp
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                scanFrom -= pos;
+                limit -= pos;
+                pos = 0;
+            } else if (limit == buffer.length) {
+                if (buffer.length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Dòng quá dài (> " + MAX_LINE_LENGTH + " bytes)");
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                if (limit == pos) {
+                    return null;
+                }
+                String line = new String(buffer, pos, limit - pos, StandardCharsets.UTF_8);
+                pos = limit;
+                return line;
+            }
+            limit += read;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && fill() == -1) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (pos == limit) {
+            if (length >= buffer.length) {
+                // Đọc lớn: bỏ qua buffer, đọc thẳng vào mảng của người gọi
+                return in.read(target, offset, length);
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+        }
+        int count = Math.min(length, limit - pos);
+        System.arraycopy(buffer, pos, target, offset, count);
+        pos += count;
+        return count;
+    }
+
+    /**
+     * Chuyển đúng count bytes (hoặc tới khi hết stream) sang out, ghi thẳng từ buffer nội bộ.
+     * @return số bytes đã chuyển
+     */
+    public long transferTo(OutputStream out, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            if (pos == limit && fill() == -1) {
+                break;
+            }
+            int chunk = (int) Math.min(limit - pos, count - transferred);
+            out.write(buffer, pos, chunk);
+            pos += chunk;
+            transferred += chunk;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read > 0) {
+            limit = read;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.mophongskype.protocol;
+
+/**
+ * Loại frame của giao thức v2. Tên trùng với lệnh text tương ứng ở v1
+ * (LOGIN, MESSAGE, FILE_DATA...) để hai phía dùng chung một bộ xử lý lệnh.
+ */
+public enum Opcode {
+    // Client -> server
+    LOGIN(1),
+    LOGOUT(2),
+    MESSAGE(3),
+    PRIVATE(4),
+    SEND_FILE(5),
+    SEND_MEDIA(6),
+    GET_FILE(7),
+    REMOVE_USER(8),
+    JOIN_ROOM(9),
+    // Hỏi server đã giữ bao nhiêu bytes của một upload dở (theo hash) để gửi tiếp
+    UPLOAD_STATUS(10),
+    // Xin vé để tải file qua các kết nối dữ liệu riêng (FETCH song song)
+    GET_FILE_TICKET(11),
+    // Xin lại danh sách user đầy đủ khi thấy version presence bị hụt
+    GET_USERLIST(12),
+    // Nối lại phiên sau khi rớt mạng: RESUME:token (token từ LOGIN_SUCCESS)
+    RESUME(13),
+    // Trang lịch sử của phòng hiện tại: HISTORY:fromSeq:limit (fromSeq <= 0: các tin mới nhất)
+    HISTORY(14),
+
+    // Server -> client
+    LOGIN_SUCCESS(32),
+    LOGIN_FAILED(33),
+    LOGOUT_SUCCESS(34),
+    USERLIST(35),
+    REMOVED(36),
+    NEW_FILE(37),
+    FILE_RECEIVED(38),
+    FILE_FAILED(39),
+    FILE_NOT_FOUND(40),
+    FILE_DATA(41),
+    IMAGE_DATA(42),
+    // Phần file từ một offset (GET_FILE có offset), để tải tiếp sau khi rớt mạng
+    FILE_RANGE(43),
+    UPLOAD_OFFSET(44),
+    FILE_TICKET(45),
+    // Một đoạn [start, end) của file, trả lời FETCH trên kết nối dữ liệu
+    FILE_SLICE(46),
+    ROOM_JOINED(47),
+    // Thay đổi presence gom theo cửa sổ: version:joined:left (tên nối bằng ','),
+    // version tăng 1 sau mỗi lần gửi
+    PRESENCE(48),
+    RESUMED(49),
+    RESUME_FAILED(50),
+    // Tin nhắn phòng đã ghi log: ROOM_MESSAGE:seq:sender:text
+    ROOM_MESSAGE(51),
+    HISTORY_ENTRY(52),
+    HISTORY_END(53),
+
+    // Lệnh chưa có opcode riêng (cả hai chiều): field đầu là tên lệnh, các field sau giữ nguyên
+    COMMAND(63),
+
+    // Phần dữ liệu binary của một transfer, gắn với stream id của frame header
+    CHUNK(64);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    public final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    // null nếu không biết opcode (phía nhận sẽ bỏ qua frame)
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    // null nếu lệnh text không có opcode tương ứng
+    public static Opcode fromName(String name) {
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
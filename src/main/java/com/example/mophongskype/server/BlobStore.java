@@ -0,0 +1,716 @@
+package com.example.mophongskype.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+import com.example.mophongskype.protocol.ChunkSums;
+import com.example.mophongskype.protocol.GroupCommit;
+
+/**
+ * Kho upload định địa chỉ theo nội dung: mỗi nội dung lưu một lần ở uploads/blobs/&lt;sha256&gt;,
+ * tên file chỉ là metadata trong uploads/index.txt (dòng "hash TAB fileName", dòng sau thắng).
+ * Cùng một ảnh gửi nhiều lần chỉ tốn một bản trên đĩa, hai người cùng gửi "image.png"
+ * không ghi đè nội dung của nhau. File cũ nằm thẳng trong uploads/ vẫn được phục vụ.
+ * <p>
+ * Upload có khai báo hash được nhận vào uploads/tmp/&lt;hash&gt;.part; nếu kết nối đứt giữa
+ * chừng file dở được giữ lại để lần gửi sau tiếp tục từ block cuối đã nhận (UPLOAD_STATUS).
+ * Cạnh nó là &lt;hash&gt;.sums: CRC32 và trạng thái SHA-256 ở cuối từng block, để trả lời
+ * UPLOAD_STATUS và gửi tiếp mà không phải đọc lại cả file dở. Thiếu hoặc hỏng thì tính lại từ .part.
+ * Việc đọc/băm file chạy trên thread đĩa của kho, kết quả trả qua CompletableFuture.
+ */
+public class BlobStore {
+    private static final String INDEX_FILE = "index.txt";
+    private static final int WRITER_THREADS = Integer.getInteger("chat.upload.writers", 2);
+    // Bytes của một upload đã đọc khỏi socket nhưng chưa ghi xuống file tối đa
+    static final long MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final File root;
+    private final File blobsDir;
+    private final File tmpDir;
+    private final File indexFile;
+    // fsync file tạm của upload (gom theo lượt với -Dchat.durability=batched)
+    private final GroupCommit commits;
+    // fileName -> hash của bản upload gần nhất mang tên đó
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    // Hash đang có upload ghi vào file .part, để hai upload không ghi chung một file
+    private final Set<String> activePartials = ConcurrentHashMap.newKeySet();
+    // Thread ghi upload (-Dchat.upload.writers), để thread đọc socket không phải ghi/băm/fsync
+    private final ExecutorService[] writers;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+
+    public BlobStore(File root, GroupCommit commits) {
+        this.root = root;
+        this.commits = commits;
+        this.blobsDir = new File(root, "blobs");
+        this.tmpDir = new File(root, "tmp");
+        this.indexFile = new File(root, INDEX_FILE);
+        this.writers = new ExecutorService[Math.max(1, WRITER_THREADS)];
+        for (int i = 0; i < writers.length; i++) {
+            String name = "upload-disk-" + i;
+            writers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        blobsDir.mkdirs();
+        tmpDir.mkdirs();
+        loadIndex();
+    }
+
+    private void loadIndex() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    names.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi đọc " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void appendIndex(String hash, String fileName) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8)) {
+            writer.write(hash + "\t" + fileName + "\n");
+        }
+    }
+
+    public File blobFile(String hash) {
+        return new File(blobsDir, hash);
+    }
+
+    public boolean contains(String hash) {
+        return hash != null && isValidHash(hash) && blobFile(hash).isFile();
+    }
+
+    // Hash của bản upload gần nhất mang tên này, null nếu không có
+    public String hashOf(String fileName) {
+        return names.get(fileName);
+    }
+
+    // Hash của file nếu nó là một blob trong kho, null với file cũ nằm thẳng trong uploads/
+    public String hashOf(File file) {
+        File parent = file.getParentFile();
+        return parent != null && parent.equals(blobsDir) ? file.getName() : null;
+    }
+
+    /**
+     * File để gửi cho GET_FILE: blob theo hash nếu client chỉ rõ, nếu không thì bản mới nhất
+     * mang tên đó, cuối cùng là file cũ nằm thẳng trong uploads/.
+     * @return null nếu không tìm thấy
+     */
+    public File resolve(String fileName, String hash) {
+        if (contains(hash)) {
+            return blobFile(hash);
+        }
+        String latest = names.get(fileName);
+        if (latest != null && blobFile(latest).isFile()) {
+            return blobFile(latest);
+        }
+        File legacy = new File(root, fileName);
+        return legacy.isFile() && legacy.getParentFile().equals(root) ? legacy : null;
+    }
+
+    /**
+     * Bắt đầu nhận một upload (gọi open() để mở file tạm trên thread ghi). Nếu client khai báo
+     * hash và blob đã có thì bytes chỉ được băm để kiểm tra, không ghi xuống đĩa.
+     * @param start offset client gửi tiếp (lấy từ partialStatus), 0 nếu gửi từ đầu
+     */
+    public Upload begin(String fileName, long size, String claimedHash, long start) {
+        return new Upload(fileName, size, claimedHash, start);
+    }
+
+    /**
+     * Phần đã nhận của upload dở có hash này: "offset:sums" với offset là số bytes
+     * (theo block đầy đủ) có thể gửi tiếp và sums là CRC32 từng block để client kiểm tra.
+     * Lấy từ file .sums nếu có, không thì đọc lại file .part; chạy trên thread đĩa.
+     */
+    public CompletableFuture<String> partialStatus(String hash) {
+        String key = hash == null ? null : hash.toLowerCase();
+        if (key == null || !isValidHash(key) || activePartials.contains(key)) {
+            return CompletableFuture.completedFuture("0:");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            File partial = partialFile(key);
+            long offset = ChunkSums.blockAligned(partial.length());
+            if (offset == 0) {
+                return "0:";
+            }
+            List<BlockSum> saved = readBlockSums(key);
+            if (!saved.isEmpty() && (long) saved.size() * ChunkSums.BLOCK_SIZE <= offset) {
+                StringBuilder sums = new StringBuilder();
+                for (BlockSum block : saved) {
+                    if (sums.length() > 0) {
+                        sums.append(',');
+                    }
+                    sums.append(Long.toHexString(Integer.toUnsignedLong(block.crc)));
+                }
+                return (long) saved.size() * ChunkSums.BLOCK_SIZE + ":" + sums;
+            }
+            try {
+                return offset + ":" + ChunkSums.compute(partial, offset);
+            } catch (IOException e) {
+                System.err.println("❌ Lỗi đọc " + partial + ": " + e.getMessage());
+                return "0:";
+            }
+        }, nextWriter());
+    }
+
+    /**
+     * Số bytes đầu của blob khớp với sums của client (ChunkSums.matchingPrefix), tính trên
+     * thread đĩa để thread đọc socket không phải đọc lại cả phần đầu file.
+     */
+    public CompletableFuture<Long> matchingPrefix(File file, String sums, long offset) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return ChunkSums.matchingPrefix(file, sums, Math.min(offset, file.length()));
+            } catch (IOException e) {
+                System.err.println("❌ Lỗi đọc " + file + ": " + e.getMessage());
+                return 0L;
+            }
+        }, nextWriter());
+    }
+
+    // Chia upload đều cho các thread ghi; mọi thao tác của một upload chạy trên cùng một thread
+    private ExecutorService nextWriter() {
+        return writers[Math.floorMod(nextWriter.getAndIncrement(), writers.length)];
+    }
+
+    private File partialFile(String hash) {
+        return new File(tmpDir, hash + ".part");
+    }
+
+    private File sumsFile(String hash) {
+        return new File(tmpDir, hash + ".sums");
+    }
+
+    // Các block đầy đủ đầu file .part đã ghi trong .sums; rỗng nếu không có hoặc hỏng
+    private List<BlockSum> readBlockSums(String hash) {
+        File file = sumsFile(hash);
+        List<BlockSum> blocks = new ArrayList<>();
+        if (!file.isFile() || file.length() % BlockSum.BYTES != 0) {
+            return blocks;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (long i = file.length() / BlockSum.BYTES; i > 0; i--) {
+                int crc = in.readInt();
+                int[] state = new int[ResumableSha256.STATE_WORDS];
+                for (int j = 0; j < state.length; j++) {
+                    state[j] = in.readInt();
+                }
+                blocks.add(new BlockSum(crc, state));
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Bỏ qua " + file + ": " + e.getMessage());
+            blocks.clear();
+        }
+        return blocks;
+    }
+
+    // Ghi blocks vào <hash>.sums.tmp (chưa fsync); người gọi fsync rồi đổi tên thành .sums
+    private FileChannel writeBlockSums(String hash, List<BlockSum> blocks) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(blocks.size() * BlockSum.BYTES);
+        for (BlockSum block : blocks) {
+            buffer.putInt(block.crc);
+            for (int word : block.state) {
+                buffer.putInt(word);
+            }
+        }
+        buffer.flip();
+        FileChannel channel = FileChannel.open(new File(tmpDir, hash + ".sums.tmp").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    // CRC32 và trạng thái SHA-256 ở cuối một block đầy đủ của file .part
+    private static final class BlockSum {
+        static final int BYTES = 4 + 4 * ResumableSha256.STATE_WORDS;
+
+        final int crc;
+        final int[] state;
+
+        BlockSum(int crc, int[] state) {
+            this.crc = crc;
+            this.state = state;
+        }
+    }
+
+    private static boolean isValidHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // JDK nào cũng có SHA-256
+        }
+    }
+
+    /**
+     * Một upload đang nhận. Thread đọc socket chỉ copy bytes vào hàng đợi (write); mở file tạm,
+     * băm, ghi và fsync chạy lần lượt trên một thread ghi của kho (mỗi upload gắn với một thread
+     * nên thứ tự bytes được giữ). Hàng đợi có giới hạn MAX_PENDING_BYTES: write trả false khi
+     * vượt, kết nối ngừng đọc socket tới khi whenDrained gọi lại.
+     */
+    public final class Upload {
+        final String fileName;
+        final long size;
+        private final String claimedHash;
+        private final long start;
+        private final ExecutorService writer;
+        // null khi nội dung đã có trong kho (chỉ băm) hoặc không gửi tiếp được
+        final File tempFile;
+        // true khi tempFile là file .part theo hash (giữ lại để resume nếu đứt)
+        private final boolean resumable;
+        // Bytes đã đưa cho thread ghi nhưng chưa ghi xong, và các callback chờ hàng đợi vơi
+        private final AtomicLong pending = new AtomicLong();
+        private final List<Runnable> drainWaiters = new ArrayList<>();
+
+        // Chỉ dùng trên thread ghi. Upload resumable ghi lại CRC32 ở cuối mỗi block; lần gửi tiếp
+        // băm bằng ResumableSha256 (chậm hơn SHA-256 của JDK) để nạp được trạng thái đã lưu
+        private final MessageDigest digest;
+        private final ResumableSha256 resumableDigest;
+        private final CRC32 blockCrc = new CRC32();
+        private final List<BlockSum> blockSums = new ArrayList<>();
+        private LongConsumer written;
+        private FileChannel channel;
+        private boolean opened = false;
+        private long received = 0;
+        private volatile boolean failed = false;
+
+        private Upload(String fileName, long size, String claimedHash, long start) {
+            this.fileName = fileName;
+            this.size = size;
+            this.claimedHash = claimedHash == null || claimedHash.isEmpty() ? null : claimedHash.toLowerCase();
+            this.start = start;
+            this.writer = nextWriter();
+            File temp = null;
+            boolean partial = false;
+            if (start > 0) {
+                // Gửi tiếp: phần đầu đã có trong file .part
+                if (this.claimedHash != null && isValidHash(this.claimedHash) && activePartials.add(this.claimedHash)) {
+                    partial = true;
+                    temp = partialFile(this.claimedHash);
+                } else {
+                    System.err.println("❌ Lỗi nhận file: Không thể gửi tiếp " + fileName + " từ offset " + start);
+                    failed = true;
+                }
+            } else if (!contains(this.claimedHash)) {
+                if (this.claimedHash != null && isValidHash(this.claimedHash) && activePartials.add(this.claimedHash)) {
+                    partial = true;
+                    temp = partialFile(this.claimedHash);
+                } else {
+                    temp = new File(tmpDir, UUID.randomUUID() + ".part");
+                }
+            }
+            this.tempFile = temp;
+            this.resumable = partial;
+            this.resumableDigest = partial && start > 0 ? new ResumableSha256() : null;
+            this.digest = resumableDigest != null ? resumableDigest : newDigest();
+        }
+
+        /**
+         * Mở file tạm trên thread ghi. Không bao giờ ném lỗi: lỗi mở làm upload bị bỏ qua
+         * (vẫn phải đọc hết phần binary) và finish thất bại.
+         * @param written nhận số bytes vừa nằm trong file tạm (kể cả phần đã có khi gửi tiếp), null nếu không cần
+         */
+        public void open(LongConsumer written) {
+            writer.execute(() -> {
+                this.written = written;
+                if (failed || tempFile == null) {
+                    return;
+                }
+                try {
+                    if (start > 0) {
+                        channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+                        opened = true;
+                        if (channel.size() < start) {
+                            throw new IOException("Server chỉ còn " + channel.size() + "/" + start + " bytes của " + fileName);
+                        }
+                        channel.truncate(start);
+                        // Hash cuối phải tính cả phần đầu: nạp trạng thái đã lưu, thiếu thì băm lại
+                        if (!restorePrefix(start)) {
+                            digestPrefix(start);
+                        }
+                        // .sums cũ không còn đúng khi .part được ghi tiếp; abort ghi lại bản mới
+                        Files.deleteIfExists(sumsFile(claimedHash).toPath());
+                        channel.position(start);
+                        if (written != null) {
+                            written.accept(start); // phần đã nhận ở lần trước có sẵn trong file
+                        }
+                    } else if (resumable) {
+                        channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+                        opened = true;
+                        Files.deleteIfExists(sumsFile(claimedHash).toPath());
+                    } else {
+                        channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        opened = true;
+                    }
+                } catch (IOException e) {
+                    System.err.println("❌ Lỗi nhận file: " + e.getMessage());
+                    failed = true;
+                    closeChannel();
+                }
+            });
+        }
+
+        // Nạp trạng thái hash + CRC các block từ .sums; false nếu .sums không phủ hết length
+        private boolean restorePrefix(long length) {
+            if (length % ChunkSums.BLOCK_SIZE != 0) {
+                return false;
+            }
+            int blocks = (int) (length / ChunkSums.BLOCK_SIZE);
+            List<BlockSum> saved = readBlockSums(claimedHash);
+            if (saved.size() < blocks) {
+                return false;
+            }
+            resumableDigest.restore(saved.get(blocks - 1).state, length);
+            blockSums.addAll(saved.subList(0, blocks));
+            received = length;
+            return true;
+        }
+
+        private void digestPrefix(long length) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            while (position < length) {
+                int read = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length - position)), position);
+                if (read < 0) {
+                    throw new EOFException("File dở bị cắt ngắn");
+                }
+                consume(buffer, 0, read);
+                position += read;
+            }
+        }
+
+        // Băm bytes kế tiếp; upload resumable ghi lại CRC32 (+ trạng thái hash nếu có) ở mỗi biên block
+        private void consume(byte[] data, int offset, int length) {
+            if (!resumable) {
+                digest.update(data, offset, length);
+                received += length;
+                return;
+            }
+            while (length > 0) {
+                int count = (int) Math.min(length, ChunkSums.BLOCK_SIZE - received % ChunkSums.BLOCK_SIZE);
+                digest.update(data, offset, count);
+                blockCrc.update(data, offset, count);
+                received += count;
+                offset += count;
+                length -= count;
+                if (received % ChunkSums.BLOCK_SIZE == 0) {
+                    blockSums.add(new BlockSum((int) blockCrc.getValue(),
+                            resumableDigest != null ? resumableDigest.exportState() : null));
+                    blockCrc.reset();
+                }
+            }
+        }
+
+        // true nếu nội dung đã có trong kho, upload này không ghi gì xuống đĩa
+        public boolean isDuplicate() {
+            return tempFile == null && !failed;
+        }
+
+        public boolean write(byte[] data, int offset, int length) {
+            return write(ByteBuffer.wrap(data, offset, length));
+        }
+
+        /**
+         * Copy data (buffer của người gọi được dùng lại ngay) và xếp cho thread ghi.
+         * @return false nếu số bytes chờ ghi đã vượt MAX_PENDING_BYTES: người gọi nên ngừng đọc
+         * socket tới khi whenDrained gọi lại
+         */
+        public boolean write(ByteBuffer data) {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            long queued = pending.addAndGet(copy.length);
+            writer.execute(() -> {
+                try {
+                    writeNow(copy);
+                } finally {
+                    if (pending.addAndGet(-copy.length) <= MAX_PENDING_BYTES / 2) {
+                        runDrainWaiters();
+                    }
+                }
+            });
+            return queued <= MAX_PENDING_BYTES;
+        }
+
+        // Chạy trên thread ghi
+        private void writeNow(byte[] data) {
+            consume(data, 0, data.length);
+            if (channel == null) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (written != null) {
+                    written.accept(data.length);
+                }
+            } catch (IOException e) {
+                // Vẫn nhận tiếp phần binary để không lẫn vào lệnh sau, nhưng upload sẽ thất bại
+                System.err.println("❌ Lỗi ghi file: " + e.getMessage());
+                failed = true;
+                closeChannel();
+            }
+        }
+
+        /**
+         * Gọi callback (trên thread ghi, hoặc ngay nếu hàng đợi đã vơi) khi số bytes chờ ghi
+         * xuống dưới nửa giới hạn.
+         */
+        public void whenDrained(Runnable callback) {
+            synchronized (drainWaiters) {
+                if (pending.get() > MAX_PENDING_BYTES / 2) {
+                    drainWaiters.add(callback);
+                    return;
+                }
+            }
+            callback.run();
+        }
+
+        // Cho transport blocking: chờ ngay trên thread đọc socket của kết nối
+        public void awaitDrained() throws InterruptedIOException {
+            CountDownLatch drained = new CountDownLatch(1);
+            whenDrained(drained::countDown);
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Bị ngắt khi chờ ghi upload");
+            }
+        }
+
+        private void runDrainWaiters() {
+            List<Runnable> ready;
+            synchronized (drainWaiters) {
+                if (drainWaiters.isEmpty()) {
+                    return;
+                }
+                ready = new ArrayList<>(drainWaiters);
+                drainWaiters.clear();
+            }
+            ready.forEach(Runnable::run);
+        }
+
+        /**
+         * Sau phần binary cuối: trên thread ghi (sau mọi write đã xếp) kiểm tra kích thước + hash,
+         * rồi đồng bộ file tạm qua group commit và đóng nó. Future nhận hash nội dung, hoàn thành
+         * trên thread fsync hoặc thread ghi, không bao giờ trên thread đọc socket. Sau đó gọi commit().
+         */
+        public CompletableFuture<String> finish() {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            writer.execute(() -> {
+                String hash;
+                try {
+                    hash = verify();
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                FileChannel current = channel;
+                channel = null;
+                if (current == null) {
+                    result.complete(hash);
+                    return;
+                }
+                commits.sync(current).whenComplete((ignored, error) -> {
+                    closeQuietly(current);
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error);
+                    } else {
+                        result.complete(hash);
+                    }
+                });
+            });
+            return result;
+        }
+
+        // Chạy trên thread ghi
+        private String verify() throws IOException {
+            if (failed) {
+                throw new IOException("Không ghi được " + fileName);
+            }
+            if (received != size) {
+                throw new IOException("Chỉ nhận được " + received + "/" + size + " bytes cho file " + fileName);
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+            if (claimedHash != null && !claimedHash.equals(hash)) {
+                throw new IOException("Hash của " + fileName + " không khớp với hash client khai báo");
+            }
+            return hash;
+        }
+
+        /**
+         * Đưa nội dung vào kho (bỏ file tạm nếu blob đã có) và ghi tên vào index.
+         * Gọi khi finish() đã xong.
+         * @return blob chứa nội dung
+         */
+        public File commit(String hash) throws IOException {
+            File blob = blobFile(hash);
+            if (tempFile != null) {
+                try {
+                    if (blob.isFile()) {
+                        Files.deleteIfExists(tempFile.toPath()); // trùng nội dung: không tốn thêm đĩa
+                    } else {
+                        Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } finally {
+                    releasePartial();
+                }
+            }
+            if (!hash.equals(names.put(fileName, hash))) {
+                appendIndex(hash, fileName);
+            }
+            return blob;
+        }
+
+        /**
+         * Upload thất bại hoặc kết nối đứt giữa chừng. File .part của upload chưa nhận đủ
+         * được giữ để gửi tiếp; các trường hợp khác bỏ file tạm. Chạy trên thread ghi sau các
+         * write đã xếp, file .part được đồng bộ qua group commit rồi đóng và nhả (fsync lỗi thì
+         * bỏ file), nên thread gọi (kể cả event-loop NIO) không chờ đĩa.
+         */
+        public void abort() {
+            writer.execute(() -> {
+                boolean keep = resumable && !failed && received < size && ChunkSums.blockAligned(received) > 0;
+                FileChannel current = channel;
+                channel = null;
+                if (keep && current != null) {
+                    // .sums chỉ được đổi tên thành bản thật khi cả nó và .part đã fsync xong
+                    FileChannel sums = null;
+                    try {
+                        sums = writeBlockSums(claimedHash, withStates(current));
+                    } catch (IOException e) {
+                        System.err.println("⚠️ Không ghi được checksum của " + tempFile + ": " + e.getMessage());
+                    }
+                    FileChannel sumsChannel = sums;
+                    CompletableFuture<Void> synced = sumsChannel == null ? commits.sync(current)
+                            : CompletableFuture.allOf(commits.sync(current), commits.sync(sumsChannel));
+                    synced.whenComplete((ignored, error) -> {
+                        closeQuietly(current);
+                        closeQuietly(sumsChannel);
+                        File sumsTemp = new File(tmpDir, claimedHash + ".sums.tmp");
+                        if (error != null) {
+                            System.err.println("❌ Lỗi đồng bộ " + tempFile + ": " + error.getMessage());
+                            tempFile.delete();
+                            sumsTemp.delete();
+                        } else if (sumsChannel != null) {
+                            try {
+                                Files.move(sumsTemp.toPath(), sumsFile(claimedHash).toPath(),
+                                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                            } catch (IOException e) {
+                                System.err.println("⚠️ Không lưu được checksum của " + tempFile + ": " + e.getMessage());
+                                sumsTemp.delete();
+                            }
+                        }
+                        releasePartial();
+                    });
+                    return;
+                }
+                closeQuietly(current);
+                if (opened && !keep) {
+                    tempFile.delete();
+                }
+                releasePartial();
+            });
+        }
+
+        /**
+         * blockSums kèm trạng thái SHA-256 ở mỗi block. Lần gửi đầu băm bằng SHA-256 của JDK cho
+         * nhanh nên chưa có trạng thái: băm lại phần đã nhận một lần ở đây (trên thread ghi, file
+         * vừa ghi còn trong page cache), để lần gửi tiếp khỏi phải băm lại.
+         */
+        private List<BlockSum> withStates(FileChannel source) throws IOException {
+            if (blockSums.isEmpty() || blockSums.get(blockSums.size() - 1).state != null) {
+                return blockSums;
+            }
+            ResumableSha256 sha = new ResumableSha256();
+            byte[] buffer = new byte[64 * 1024];
+            List<BlockSum> blocks = new ArrayList<>(blockSums.size());
+            long position = 0;
+            for (BlockSum block : blockSums) {
+                for (long end = position + ChunkSums.BLOCK_SIZE; position < end; ) {
+                    int read = source.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+                    if (read < 0) {
+                        throw new EOFException("File dở bị cắt ngắn");
+                    }
+                    sha.update(buffer, 0, read);
+                    position += read;
+                }
+                blocks.add(new BlockSum(block.crc, sha.exportState()));
+            }
+            return blocks;
+        }
+
+        private void releasePartial() {
+            if (resumable) {
+                activePartials.remove(claimedHash);
+            }
+        }
+
+        private void closeChannel() {
+            closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.mophongskype.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nhớ các lần đăng nhập đã verify thành công để client reconnect không phải tính lại
+ * hash chậm. Cache không giữ mật khẩu mà giữ SHA-256(khóa ngẫu nhiên của tiến trình + mật khẩu);
+ * mục hết hạn sau ttlMillis, sai mật khẩu thì đi xuống store gốc như bình thường.
+ */
+public class CachingCredentialStore implements CredentialStore {
+    private final CredentialStore delegate;
+    private final long ttlMillis;
+    private final byte[] cacheKey = new byte[32];
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+
+    private static final class Verified {
+        final byte[] digest;
+        final long expiresAt;
+
+        Verified(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CachingCredentialStore(CredentialStore delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+        new SecureRandom().nextBytes(cacheKey);
+    }
+
+    @Override
+    public boolean verify(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        byte[] digest = digest(password);
+        long now = System.currentTimeMillis();
+        Verified cached = verified.get(username);
+        if (cached != null && cached.expiresAt > now && MessageDigest.isEqual(cached.digest, digest)) {
+            return true;
+        }
+        if (!delegate.verify(username, password)) {
+            return false;
+        }
+        verified.put(username, new Verified(digest, now + ttlMillis));
+        return true;
+    }
+
+    @Override
+    public boolean exists(String username) {
+        return delegate.exists(username);
+    }
+
+    // Bỏ cache của một user (ví dụ khi đổi mật khẩu hoặc bị xóa)
+    public void invalidate(String username) {
+        verified.remove(username);
+    }
+
+    private byte[] digest(String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(cacheKey);
+            return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
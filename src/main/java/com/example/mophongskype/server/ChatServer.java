@@ -1,27 +1,146 @@
 package com.example.mophongskype.server;
 
+import com.example.mophongskype.protocol.GroupCommit;
+
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
-    private static final int PORT = 12345;
+    private final int port = Integer.getInteger("chat.port", 12345);
+    // Phòng mọi người vào sau khi đăng nhập (tin nhắn ở đây tới mọi người như trước khi có phòng)
+    public static final String DEFAULT_ROOM = "general";
+
+    /**
+     * Cách phục vụ kết nối, chọn lúc khởi động (-Dchat.transport=nio hoặc tham số dòng lệnh).
+     * BLOCKING: mỗi socket một platform thread đọc. VIRTUAL: mỗi socket một virtual thread.
+     * NIO: vài event-loop dùng Selector cho mọi socket.
+     */
+    public enum Transport { BLOCKING, VIRTUAL, NIO }
+
+    private final Transport transport;
+    private final CredentialStore credentials;
+    // Thư mục chứa uploads/, history/, mailbox/ (-Dchat.data.dir, mặc định thư mục chạy server)
+    private final File dataDir = new File(System.getProperty("chat.data.dir", "."));
+    private static final long CREDENTIAL_CACHE_TTL_MS = 30 * 60 * 1000;
+    private ExecutorService clientExecutor;
+    // Giới hạn hàng đợi gửi của mỗi client và cách xử lý khi client đọc quá chậm
+    private final int outboundCapacity = Integer.getInteger("chat.outbound.capacity", 1024);
+    private final OutboundQueue.OverflowPolicy outboundPolicy = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", "COALESCE_USERLIST").toUpperCase());
+    // Gom tối đa chừng này frame cho một lần flush, chờ thêm tối đa writeDelayMillis để gom
+    private final int writeBatchSize = Integer.getInteger("chat.write.batch", 64);
+    private final long writeDelayMillis = Long.getLong("chat.write.delay.ms", 0);
+    private final WriteStats writeStats = new WriteStats();
+    // Relay: báo NEW_FILE ngay khi upload bắt đầu, người nhận tải đuổi theo phần đã nhận
+    private final boolean uploadRelay = Boolean.getBoolean("chat.upload.relay");
+    private final Map<String, UploadRelay> activeUploads = new ConcurrentHashMap<>();
+    // fsync của upload và hộp thư đi qua đây (-Dchat.durability=none|batched|per_write)
+    private final GroupCommit commits = new GroupCommit(GroupCommit.configuredDurability(), "server-fsync");
+    // Log phòng đồng bộ trên thread riêng và luôn chạy nền (per_write cũng gom như batched): tin đã
+    // phát trước khi force, nên không để force chạy trong khóa phòng hay chờ sau fsync của upload
+    private final GroupCommit historyCommits = new GroupCommit(
+            GroupCommit.configuredDurability() == GroupCommit.Durability.NONE
+                    ? GroupCommit.Durability.NONE : GroupCommit.Durability.BATCHED, "history-fsync");
+    // Upload lưu theo hash nội dung trong uploads/blobs, tên file chỉ là metadata
+    private final BlobStore blobStore = new BlobStore(new File(dataDir, "uploads"), commits);
+    // Lịch sử chat theo phòng (append-only, memory-mapped) để HISTORY trả lại tin cũ. Số phòng mở
+    // log cùng lúc (-Dchat.history.open.rooms) có giới hạn, phòng không dùng quá idle.ms bị đóng
+    private final MessageLog messageLog = new MessageLog(new File(dataDir, "history"),
+            Integer.getInteger("chat.history.segment.mb", 16) * 1024 * 1024, historyCommits,
+            Integer.getInteger("chat.history.open.rooms", 64), Long.getLong("chat.history.idle.ms", 10 * 60 * 1000));
+    // Số tin tối đa cho một lần HISTORY
+    private static final int HISTORY_PAGE_LIMIT = 500;
+    // Tin nhắn riêng cho người đang offline, giao khi họ login (-Dchat.mailbox.max.kb mỗi người)
+    private final OfflineMailbox mailbox = new OfflineMailbox(new File(dataDir, "mailbox"),
+            Long.getLong("chat.mailbox.max.kb", 512) * 1024, commits);
+    // Vé tải song song: GET_FILE_TICKET cấp, các kết nối dữ liệu FETCH bằng vé (không cần đăng nhập)
+    private static final long DOWNLOAD_TICKET_TTL_MS = 10 * 60 * 1000;
+    private final Map<String, DownloadTicket> downloadTickets = new ConcurrentHashMap<>();
     private ServerSocket serverSocket;
-    private boolean isRunning = false;
-    private Map<String, ClientHandler> connectedClients = new ConcurrentHashMap<>();
-    private List<String> onlineUsers = new ArrayList<>();
+    private NioTransport nioTransport;
+    private volatile boolean isRunning = false;
+    // Thành viên online; login/logout chỉ là putIfAbsent/remove trên map này, không cần khóa chung
+    private final Map<String, ClientConnection> connectedClients = new ConcurrentHashMap<>();
+    // Thành viên theo phòng: MESSAGE chỉ fan-out tới phòng của người gửi
+    private final RoomIndex rooms = new RoomIndex();
+    // Phiên theo token: kết nối rớt được giữ chừng này ms để client RESUME (0 = logout ngay như cũ)
+    private final long sessionGraceMillis = Long.getLong("chat.session.grace.ms", 30_000);
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sessionTimer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("session-expiry").factory());
+    // Verify mật khẩu (PBKDF2, chậm) cho kết nối NIO: không chạy trên event-loop (-Dchat.login.threads)
+    private final ExecutorService loginVerifier = Executors.newFixedThreadPool(
+            Integer.getInteger("chat.login.threads", Runtime.getRuntime().availableProcessors()),
+            Thread.ofPlatform().daemon().name("login-verify-", 0).factory());
+    // Presence và thông báo vào/ra được gom theo cửa sổ ngắn để login hàng loạt không thành n² frame
+    private final PresenceBatcher presence = new PresenceBatcher(connectedClients,
+            Long.getLong("chat.presence.window.ms", 250));
+
+    public ChatServer() {
+        this(Transport.valueOf(System.getProperty("chat.transport", "BLOCKING").toUpperCase()));
+    }
+
+    public ChatServer(Transport transport) {
+        this(transport, null);
+    }
+
+    /**
+     * @param clientExecutor executor chạy từng ClientHandler ở chế độ BLOCKING/VIRTUAL;
+     *                       null để dùng mặc định (platform hoặc virtual thread cho mỗi kết nối)
+     */
+    public ChatServer(Transport transport, ExecutorService clientExecutor) {
+        this(transport, clientExecutor, defaultCredentials());
+    }
+
+    /**
+     * @param credentials nơi kiểm tra tài khoản khi LOGIN (mặc định: users.properties có cache)
+     */
+    public ChatServer(Transport transport, ExecutorService clientExecutor, CredentialStore credentials) {
+        this.transport = transport;
+        this.clientExecutor = clientExecutor;
+        this.credentials = credentials;
+    }
+
+    // File tài khoản đặt cạnh uploads/ (-Dchat.credentials.file), verify thành công được nhớ trong phiên
+    private static CredentialStore defaultCredentials() {
+        File file = new File(System.getProperty("chat.credentials.file", "users.properties"));
+        try {
+            return new CachingCredentialStore(FileCredentialStore.openOrSeed(file), CREDENTIAL_CACHE_TTL_MS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Không đọc được file tài khoản " + file.getAbsolutePath(), e);
+        }
+    }
 
     public void start() {
+        if (transport == Transport.NIO) {
+            startNio();
+            return;
+        }
+        if (clientExecutor == null) {
+            clientExecutor = transport == Transport.VIRTUAL
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+        }
         try {
-            serverSocket = new ServerSocket(PORT);
+            // Accept qua ServerSocketChannel (blocking) để mỗi Socket có SocketChannel,
+            // cho phép ClientHandler gửi file bằng FileChannel.transferTo
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
             isRunning = true;
-            System.out.println("Server đang chạy trên port " + PORT);
+            System.out.println("Server (" + transport + ") đang chạy trên port " + port);
 
             while (isRunning) {
                 Socket clientSocket = serverSocket.accept();
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                new Thread(clientHandler).start();
+                clientExecutor.execute(clientHandler);
             }
         } catch (IOException e) {
             if (isRunning) {
@@ -30,8 +149,31 @@ public class ChatServer {
         }
     }
 
+    private void startNio() {
+        int eventLoops = Integer.getInteger("chat.nio.threads", Runtime.getRuntime().availableProcessors());
+        nioTransport = new NioTransport(this, port, eventLoops);
+        isRunning = true;
+        try {
+            nioTransport.run();
+        } catch (IOException e) {
+            if (isRunning) {
+                System.err.println("Lỗi server: " + e.getMessage());
+            }
+        }
+    }
+
     public void stop() {
         isRunning = false;
+        if (nioTransport != null) {
+            nioTransport.stop();
+        }
+        presence.stop();
+        mailbox.stop();
+        sessionTimer.shutdownNow();
+        loginVerifier.shutdownNow();
+        if (clientExecutor != null) {
+            clientExecutor.shutdown();
+        }
         try {
             if (serverSocket != null) {
                 serverSocket.close();
@@ -41,104 +183,455 @@ public class ChatServer {
         }
     }
 
-    public synchronized boolean login(String username, String password, ClientHandler clientHandler) {
-        if (connectedClients.containsKey(username)) {
-            return false; // Username đã tồn tại
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, outboundPolicy);
+    }
+
+    /**
+     * Số frame đang chờ gửi của từng client online (để theo dõi client chậm)
+     */
+    public Map<String, Integer> getOutboundDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Map.Entry<String, ClientConnection> entry : connectedClients.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getOutboundDepth());
         }
+        return depths;
+    }
 
-        // Kiểm tra mật khẩu (trong thực tế nên kiểm tra với database)
-        if (!isValidCredentials(username, password)) {
-            return false; // Sai mật khẩu
+    BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    long getWriteDelayNanos() {
+        return writeDelayMillis * 1_000_000L;
+    }
+
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    // Chạy writer của một ClientHandler trên cùng executor với các handler
+    void executeWriter(Runnable writer) {
+        clientExecutor.execute(writer);
+    }
+
+    // Verify trên thread gọi, không giữ khóa nào: nhiều login cùng lúc tính hash song song
+    boolean verifyCredentials(String username, String password) {
+        return credentials.verify(username, password);
+    }
+
+    /**
+     * Verify trên pool login-verify, cho transport không được block thread đọc (NIO event-loop).
+     * Server đã dừng thì trả về false.
+     */
+    CompletableFuture<Boolean> verifyCredentialsAsync(String username, String password) {
+        try {
+            return CompletableFuture.supplyAsync(() -> credentials.verify(username, password), loginVerifier);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(false);
         }
+    }
 
-        connectedClients.put(username, clientHandler);
-        onlineUsers.add(username);
-        broadcastUserList();
-        broadcastMessage("SYSTEM", username + " đã tham gia chat");
+    /**
+     * Đăng ký phiên cho user đã verify mật khẩu; thành công thì kết nối mới mang username.
+     * @return false nếu username đang online
+     */
+    public boolean login(String username, ClientConnection clientHandler) {
+        if (connectedClients.putIfAbsent(username, clientHandler) != null) {
+            // Phiên cũ đang chờ nối lại (client mở lại app chứ không RESUME): bỏ phiên đó rồi login như thường
+            ClientConnection existing = connectedClients.get(username);
+            if (existing == null || existing.session == null || !expireSession(existing.session, existing)
+                    || connectedClients.putIfAbsent(username, clientHandler) != null) {
+                return false; // Username đã tồn tại
+            }
+        }
+        clientHandler.username = username;
+        Session session = new Session(UUID.randomUUID().toString().replace("-", ""), username, clientHandler, outboundCapacity);
+        clientHandler.session = session;
+        sessions.put(session.token, session);
+        clientHandler.room = DEFAULT_ROOM;
+        rooms.join(DEFAULT_ROOM, clientHandler);
+        presence.joined(clientHandler);
         return true;
     }
 
-    private boolean isValidCredentials(String username, String password) {
-        // Trong thực tế, nên kiểm tra với database
-        // Ở đây tôi sẽ tạo một số tài khoản mẫu
-        Map<String, String> validUsers = new HashMap<>();
-        validUsers.put("admin", "123456");
-        validUsers.put("user1", "password");
-        validUsers.put("test", "test");
-        validUsers.put("vien", "vien");
-        validUsers.put("tuna","tuna");
-
-        return validUsers.containsKey(username) && validUsers.get(username).equals(password);
+    public void logout(String username) {
+        ClientConnection connection = connectedClients.remove(username);
+        if (connection != null) {
+            endSession(connection);
+            leaveRoom(connection);
+            presence.left(username, false);
+        }
     }
 
-    public synchronized void logout(String username) {
-        if (connectedClients.containsKey(username)) {
-            connectedClients.remove(username);
-            onlineUsers.remove(username);
-            broadcastUserList();
-            broadcastMessage("SYSTEM", username + " đã rời khỏi chat");
+    /**
+     * Logout chỉ khi username vẫn gắn với đúng kết nối này
+     * (tránh kết nối cũ đã bị xóa vô tình logout phiên mới cùng tên)
+     */
+    public void logout(String username, ClientConnection connection) {
+        if (connectedClients.remove(username, connection)) {
+            endSession(connection);
+            leaveRoom(connection);
+            presence.left(username, false);
         }
     }
 
-    public synchronized void removeUser(String username) {
-        if (connectedClients.containsKey(username)) {
-            ClientHandler clientHandler = connectedClients.get(username);
+    public void removeUser(String username) {
+        ClientConnection clientHandler = connectedClients.remove(username);
+        if (clientHandler != null) {
+            endSession(clientHandler);
+            leaveRoom(clientHandler);
             clientHandler.sendMessage("REMOVED: Bạn đã bị xóa khỏi danh sách");
-            connectedClients.remove(username);
-            onlineUsers.remove(username);
-            broadcastUserList();
-            broadcastMessage("SYSTEM", username + " đã bị xóa khỏi danh sách");
+            presence.left(username, true);
+        }
+    }
+
+    /**
+     * Kết nối của user đã login bị rớt (không LOGOUT): giữ phiên thay vì logout, để client
+     * RESUME trong sessionGraceMillis mà mọi người không thấy user rời rồi vào lại.
+     * @return false nếu không giữ (không có phiên, tắt grace, hoặc kết nối không còn là của phiên)
+     */
+    boolean parkSession(ClientConnection connection) {
+        Session session = connection.session;
+        if (session == null || sessionGraceMillis <= 0 || !isRunning || sessionTimer.isShutdown()
+                || connectedClients.get(session.username) != connection) {
+            return false; // server đang dừng: không giữ phiên
+        }
+        synchronized (session) {
+            if (!session.park(connection)) {
+                return false;
+            }
+            session.expireWith(sessionTimer.schedule(() -> expireSession(session, connection),
+                    sessionGraceMillis, TimeUnit.MILLISECONDS));
+        }
+        System.out.println("⚠️ " + session.username + " mất kết nối, giữ phiên " + sessionGraceMillis + "ms để nối lại");
+        return true;
+    }
+
+    // Hết thời gian chờ mà chưa nối lại: logout như bình thường. @return true nếu đã kết thúc phiên
+    private boolean expireSession(Session session, ClientConnection parked) {
+        synchronized (session) {
+            if (!session.isParked(parked)) {
+                return false;
+            }
+            sessions.remove(session.token, session);
+            session.discard();
+        }
+        logout(session.username, parked);
+        return true;
+    }
+
+    private void endSession(ClientConnection connection) {
+        Session session = connection.session;
+        if (session != null) {
+            sessions.remove(session.token, session);
+            session.discard();
+        }
+    }
+
+    /**
+     * RESUME:token trên kết nối mới: thay kết nối cũ trong danh sách online và phòng, trả lời
+     * RESUMED rồi phát lại các frame đã giữ trong lúc rớt. Nếu client thấy rớt trước server
+     * (kết nối cũ vẫn mở), kết nối cũ bị đóng và nhường phiên.
+     * @return false nếu token không hợp lệ hoặc phiên đã hết hạn
+     */
+    boolean resumeSession(String token, ClientConnection connection) {
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null) {
+            return false;
+        }
+        boolean lostFrames;
+        synchronized (session) {
+            ClientConnection old = session.connection();
+            if (old == null || connectedClients.get(session.username) != old) {
+                return false;
+            }
+            if (!session.isParked(old)) {
+                session.park(old);
+                old.disconnectSlowConsumer();
+            }
+            String room = old.room;
+            connection.username = session.username;
+            connection.session = session;
+            connection.room = room;
+            if (!connectedClients.replace(session.username, old, connection)) {
+                return false;
+            }
+            if (room != null) {
+                rooms.join(room, connection);
+                rooms.leave(room, old);
+            }
+            connection.send("RESUMED", token);
+            lostFrames = session.attach(connection);
+        }
+        if (lostFrames) {
+            // Đã bỏ bớt frame nên có thể thiếu delta presence. Gửi ngoài khóa phiên:
+            // flush presence giữ khóa của nó rồi mới xếp frame (có thể vào phiên này)
+            presence.sendSnapshot(connection);
+        }
+        System.out.println("🔄 " + session.username + " đã nối lại phiên");
+        return true;
+    }
+
+    // Các hàm broadcast chỉ xếp frame vào hàng đợi của từng client nên không bao giờ block người gửi
+
+    public void broadcastMessage(String sender, String message) {
+        // Một frame dùng chung cho mọi người nhận; mỗi writer tự mã hóa theo giao thức của client
+        OutboundFrame frame = OutboundFrame.command("MESSAGE", sender, message);
+        for (ClientConnection client : connectedClients.values()) {
+            client.enqueue(frame);
+        }
+    }
+
+    /**
+     * Tin nhắn trong một phòng: ghi vào log của phòng rồi gửi ROOM_MESSAGE:seq:sender:message
+     * cho thành viên của phòng đó (không duyệt toàn bộ client online).
+     */
+    public void sendRoomMessage(String room, String sender, String message) {
+        if (room == null) {
+            return;
+        }
+        try {
+            messageLog.append(room, sender, message, seq -> fanOut(room, OutboundFrame.command(
+                    "ROOM_MESSAGE", String.valueOf(seq), sender, message)));
+        } catch (IOException | UncheckedIOException e) {
+            // Không ghi được log thì vẫn gửi tin, chỉ là không có trong lịch sử
+            System.err.println("❌ Lỗi ghi log phòng " + room + ": " + e.getMessage());
+            fanOut(room, OutboundFrame.command("ROOM_MESSAGE", "0", sender, message));
+        }
+    }
+
+    /**
+     * Thông báo SYSTEM (vào/ra phòng): chỉ ghi log nếu phòng đã có log, để JOIN_ROOM tới tên
+     * phòng tùy ý không tạo log (và segment trên đĩa) cho phòng chưa có tin nào.
+     */
+    private void sendRoomNotice(String room, String message) {
+        if (messageLog.exists(room)) {
+            sendRoomMessage(room, "SYSTEM", message);
+        } else {
+            fanOut(room, OutboundFrame.command("ROOM_MESSAGE", "0", "SYSTEM", message));
+        }
+    }
+
+    private void fanOut(String room, OutboundFrame frame) {
+        for (ClientConnection client : rooms.members(room)) {
+            client.enqueue(frame);
+        }
+    }
+
+    /**
+     * HISTORY:fromSeq:limit cho phòng hiện tại của client: mỗi tin một HISTORY_ENTRY:seq:time:sender:text,
+     * kết thúc bằng HISTORY_END:lastSeq:room (lastSeq là tin mới nhất của phòng, để client biết còn hay hết).
+     * fromSeq &lt;= 0 lấy các tin mới nhất.
+     */
+    void sendHistory(ClientConnection connection, long fromSeq, int limit) {
+        String room = connection.room;
+        if (room == null) {
+            return;
+        }
+        try {
+            for (MessageLog.Entry entry : messageLog.read(room, fromSeq, Math.max(1, Math.min(limit, HISTORY_PAGE_LIMIT)))) {
+                connection.send("HISTORY_ENTRY", String.valueOf(entry.seq), String.valueOf(entry.time), entry.sender, entry.text);
+            }
+            connection.send("HISTORY_END", String.valueOf(messageLog.lastSeq(room)), room);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("❌ Lỗi đọc log phòng " + room + ": " + e.getMessage());
+            connection.send("HISTORY_END", "0", room);
         }
     }
 
-    public synchronized void broadcastMessage(String sender, String message) {
-        for (ClientHandler client : connectedClients.values()) {
-            client.sendMessage("MESSAGE:" + sender + ":" + message);
+    /**
+     * Chuyển client sang phòng khác (mỗi kết nối ở đúng một phòng, sau login là DEFAULT_ROOM).
+     * Trả lời ROOM_JOINED:room cho client, báo SYSTEM cho phòng cũ và phòng mới.
+     */
+    void joinRoom(ClientConnection connection, String room) {
+        String previous = connection.room;
+        if (!room.equals(previous)) {
+            rooms.join(room, connection);
+            connection.room = room;
+            if (previous != null) {
+                rooms.leave(previous, connection);
+            }
+            if (connectedClients.get(connection.getUsername()) != connection) {
+                rooms.leave(room, connection); // bị logout/xóa trong lúc đổi phòng
+                return;
+            }
+            if (previous != null) {
+                sendRoomNotice(previous, connection.getUsername() + " đã rời phòng " + previous);
+            }
+            sendRoomNotice(room, connection.getUsername() + " đã vào phòng " + room);
         }
+        connection.send("ROOM_JOINED", room);
     }
 
-    public synchronized void broadcastUserList() {
-        String userList = "USERLIST:" + String.join(",", onlineUsers);
-        for (ClientHandler client : connectedClients.values()) {
-            client.sendMessage(userList);
+    private void leaveRoom(ClientConnection connection) {
+        String room = connection.room;
+        if (room != null) {
+            rooms.leave(room, connection);
         }
     }
 
-    public synchronized void sendPrivateMessage(String sender, String receiver, String message) {
-        ClientHandler receiverHandler = connectedClients.get(receiver);
+    // Người nhận ảnh/file của sender: thành viên phòng của sender (mọi người nếu không rõ phòng)
+    private Collection<ClientConnection> audienceOf(String sender) {
+        ClientConnection connection = sender != null ? connectedClients.get(sender) : null;
+        String room = connection != null ? connection.room : null;
+        return room != null ? rooms.members(room) : connectedClients.values();
+    }
+
+    // Danh sách đầy đủ cho một client (GET_USERLIST khi client thấy version bị hụt)
+    public void sendUserList(ClientConnection connection) {
+        presence.sendSnapshot(connection);
+    }
+
+    /**
+     * Tin nhắn riêng: gửi ngay nếu người nhận online (kể cả đang chờ RESUME), không thì
+     * cất vào hộp thư của họ và giao khi họ login. Tên không có tài khoản thì báo lỗi cho
+     * người gửi, không tạo hộp thư.
+     */
+    public void sendPrivateMessage(String sender, String receiver, String message) {
+        ClientConnection receiverHandler = connectedClients.get(receiver);
         if (receiverHandler != null) {
-            receiverHandler.sendMessage("PRIVATE:" + sender + ":" + message);
+            receiverHandler.send("PRIVATE", sender, message);
+            return;
         }
+        if (!credentials.exists(receiver)) {
+            ClientConnection senderHandler = connectedClients.get(sender);
+            if (senderHandler != null) {
+                senderHandler.send("MESSAGE", "SYSTEM", "Không có người dùng " + receiver + ", tin nhắn riêng chưa được gửi");
+            }
+            return;
+        }
+        mailbox.store(receiver, sender, message, stored -> {
+            if (!stored) {
+                ClientConnection senderHandler = connectedClients.get(sender);
+                if (senderHandler != null) {
+                    senderHandler.send("MESSAGE", "SYSTEM", "Hộp thư của " + receiver + " đã đầy, tin nhắn riêng chưa được gửi");
+                }
+            } else if (connectedClients.containsKey(receiver)) {
+                // Người nhận login đúng lúc tin đang được cất: giao luôn thay vì chờ lần login sau
+                deliverMailbox(receiver);
+            }
+        });
     }
 
     /**
-     * Broadcast ảnh inline tới tất cả client (trừ người gửi)
-     * Format header do ClientHandler đảm nhiệm: IMAGE_DATA:sender:fileName:size + [bytes]
+     * Giao một lượt mọi tin nhắn riêng nhận được khi offline (gọi sau LOGIN_SUCCESS).
      */
-    public synchronized void broadcastImage(String sender, String fileName, byte[] imageBytes) {
-        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
-            if (!entry.getKey().equals(sender)) {
-                entry.getValue().sendImage(sender, fileName, imageBytes);
+    void deliverMailbox(String username) {
+        mailbox.drain(username, letters -> {
+            ClientConnection connection = connectedClients.get(username);
+            if (letters.isEmpty()) {
+                return;
+            }
+            if (connection == null) {
+                // Lại offline trước khi kịp giao: cất lại theo thứ tự cũ
+                for (OfflineMailbox.Letter letter : letters) {
+                    mailbox.store(username, letter.sender, letter.text, stored -> { });
+                }
+                return;
+            }
+            connection.send("MESSAGE", "SYSTEM", "Bạn có " + letters.size() + " tin nhắn riêng nhận khi offline");
+            for (OfflineMailbox.Letter letter : letters) {
+                connection.send("PRIVATE", letter.sender, letter.text);
+            }
+        });
+    }
+
+    /**
+     * Broadcast ảnh inline tới các client cùng phòng với người gửi (trừ người gửi)
+     * Format header do ClientConnection đảm nhiệm: IMAGE_DATA:sender:fileName:size + [bytes]
+     */
+    public void broadcastImage(String sender, String fileName, File imageFile) {
+        // Một frame dùng chung: mỗi writer tự đọc từ file khi tới lượt, không nạp ảnh lên heap
+        OutboundFrame frame = OutboundFrame.image(sender, fileName, imageFile);
+        for (ClientConnection client : audienceOf(sender)) {
+            if (!Objects.equals(sender, client.getUsername())) {
+                client.enqueue(frame);
             }
         }
     }
 
     /**
-     * Broadcast thông báo file mới (để các client tự GET_FILE về)
-     * Format: NEW_FILE:sender:fileName
+     * Broadcast thông báo file mới tới phòng của người gửi (để các client tự GET_FILE về)
+     * Format: NEW_FILE:sender:fileName[:hash] - client đã có blob cùng hash thì không cần tải lại
      */
-    public synchronized void broadcastNewFile(String sender, String fileName) {
-        for (Map.Entry<String, ClientHandler> entry : connectedClients.entrySet()) {
-            if (!entry.getKey().equals(sender)) {
-                entry.getValue().sendMessage("NEW_FILE:" + sender + ":" + fileName);
+    public void broadcastNewFile(String sender, String fileName, String hash) {
+        OutboundFrame frame = hash != null
+                ? OutboundFrame.command("NEW_FILE", sender, fileName, hash)
+                : OutboundFrame.command("NEW_FILE", sender, fileName);
+        for (ClientConnection client : audienceOf(sender)) {
+            if (!Objects.equals(sender, client.getUsername())) {
+                client.enqueue(frame);
             }
         }
     }
 
+    /**
+     * Bắt đầu relay cho một upload file/media (ảnh vẫn gửi inline sau khi nhận xong).
+     * Báo NEW_FILE ngay để người nhận GET_FILE và nhận bytes trong lúc upload còn chạy.
+     * @return null nếu relay tắt hoặc upload không được relay
+     */
+    UploadRelay startRelay(String sender, String mediaType, BlobStore.Upload upload) {
+        // Nội dung đã có trong kho (không ghi file tạm) thì báo NEW_FILE lúc xong là đủ
+        if (!uploadRelay || sender == null || "IMAGE".equalsIgnoreCase(mediaType) || upload.tempFile == null) {
+            return null;
+        }
+        UploadRelay relay = new UploadRelay(upload.fileName, upload.tempFile, upload.size);
+        activeUploads.put(upload.fileName, relay);
+        broadcastNewFile(sender, upload.fileName, null);
+        return relay;
+    }
+
+    // Upload đang relay của file này (GET_FILE sẽ đọc đuổi theo), null nếu không có
+    UploadRelay activeUpload(String fileName) {
+        return activeUploads.get(fileName);
+    }
+
+    void finishRelay(String fileName, UploadRelay relay, boolean success) {
+        activeUploads.remove(fileName, relay);
+        relay.finish(success);
+    }
 
+    /**
+     * File mà một kết nối dữ liệu được phép FETCH. Vé dùng được nhiều lần cho tới khi hết
+     * hạn vì mỗi đoạn của một lần tải song song đi trên một kết nối riêng.
+     */
+    static final class DownloadTicket {
+        final String owner;
+        final String fileName;
+        final File file;
+        final long expiresAt;
+
+        DownloadTicket(String owner, String fileName, File file, long expiresAt) {
+            this.owner = owner;
+            this.fileName = fileName;
+            this.file = file;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    String issueDownloadTicket(String owner, String fileName, File file) {
+        long now = System.currentTimeMillis();
+        downloadTickets.values().removeIf(ticket -> ticket.expiresAt < now);
+        String id = UUID.randomUUID().toString().replace("-", "");
+        downloadTickets.put(id, new DownloadTicket(owner, fileName, file, now + DOWNLOAD_TICKET_TTL_MS));
+        return id;
+    }
+
+    // null nếu vé không tồn tại hoặc đã hết hạn
+    DownloadTicket downloadTicket(String id) {
+        DownloadTicket ticket = downloadTickets.get(id);
+        return ticket != null && ticket.expiresAt >= System.currentTimeMillis() ? ticket : null;
+    }
 
     public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+        ChatServer server = args.length > 0
+                ? new ChatServer(Transport.valueOf(args[0].toUpperCase()))
+                : new ChatServer();
         server.start();
     }
 }
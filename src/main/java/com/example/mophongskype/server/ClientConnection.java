@@ -0,0 +1,497 @@
+package com.example.mophongskype.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Phần giao thức dùng chung cho một kết nối client, không phụ thuộc transport.
+ * Lớp con (ClientHandler cho blocking socket, NioClientConnection cho selector)
+ * chỉ lo việc đọc/ghi bytes; việc parse lệnh text (LOGIN:, MESSAGE:, PRIVATE:,
+ * SEND_FILE:...) và xử lý sau khi upload xong nằm ở đây.
+ */
+public abstract class ClientConnection {
+    protected final ChatServer server;
+    protected final OutboundQueue outbound;
+    protected String username;
+    // Phòng hiện tại (ChatServer quản lý), null khi chưa đăng nhập
+    protected volatile String room;
+    // Phiên đăng nhập (token để RESUME), null khi chưa đăng nhập
+    volatile Session session;
+    // Upload đang nhận (null nếu không có) và relay của nó (null nếu không relay)
+    protected BlobStore.Upload upload;
+    protected UploadRelay uploadRelay;
+
+    protected ClientConnection(ChatServer server) {
+        this.server = server;
+        this.outbound = server.newOutboundQueue();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Số frame đang chờ gửi cho client này
+    public int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    // Gửi một dòng text cho client (xếp vào hàng đợi, không block người gọi)
+    public void sendMessage(String message) {
+        enqueue(OutboundFrame.text(message));
+    }
+
+    // Gửi lệnh với các field tách riêng (ở v2 field được chứa ':' thoải mái)
+    public void send(String command, String... fields) {
+        enqueue(OutboundFrame.command(command, fields));
+    }
+
+    /**
+     * Gửi ảnh đã lưu trên server cho client, bytes được đọc từ file lúc ghi
+     * Format: IMAGE_DATA:sender:fileName:size + [bytes]
+     */
+    public void sendImage(String sender, String fileName, File imageFile) {
+        enqueue(OutboundFrame.image(sender, fileName, imageFile));
+    }
+
+    /**
+     * Gửi file trong kho upload cho client
+     * Format: FILE_DATA:fileName:size + [bytes]
+     * @param hash blob cụ thể client muốn (từ NEW_FILE), null để lấy bản mới nhất mang tên này
+     */
+    protected void sendFileToClient(String fileName, String hash) {
+        sendFileToClient(fileName, hash, 0, null);
+    }
+
+    /**
+     * Như trên, nhưng client đã có offset bytes đầu (file .partial sau khi rớt mạng) với
+     * checksum từng block là sums. Server chỉ gửi lại từ block đầu tiên không khớp
+     * (FILE_RANGE:fileName:start:size), hoặc cả file nếu không block nào khớp.
+     */
+    protected void sendFileToClient(String fileName, String hash, long offset, String sums) {
+        UploadRelay relay = hash == null ? server.activeUpload(fileName) : null;
+        if (relay != null) {
+            // Upload còn đang nhận: gửi phần đã có rồi đuổi theo tới hết
+            enqueue(OutboundFrame.relayedFile(relay, username));
+            return;
+        }
+        File file = server.getBlobStore().resolve(fileName, hash); // file trên server
+        if (file == null) {
+            sendMessage("FILE_NOT_FOUND:" + fileName);
+            return;
+        }
+        if (offset > 0) {
+            // So checksum phải đọc lại phần đầu file: làm trên thread đĩa, gửi khi xong
+            server.getBlobStore().matchingPrefix(file, sums, offset)
+                    .thenAccept(start -> enqueue(OutboundFrame.fileRange(fileName, file, username, start)));
+            return;
+        }
+        enqueue(OutboundFrame.file(fileName, file, username));
+    }
+
+    // Vé rỗng (size 0) nếu không có file: client quay về GET_FILE và nhận FILE_NOT_FOUND ở đó
+    private void sendFileTicket(String fileName, String hash) {
+        File file = server.getBlobStore().resolve(fileName, hash);
+        String blobHash = file != null ? server.getBlobStore().hashOf(file) : null;
+        String requested = hash != null ? hash : "";
+        if (blobHash == null || (hash != null && !hash.equalsIgnoreCase(blobHash))) {
+            // File cũ không có hash (hoặc không còn đúng bản client hỏi) thì client không kiểm tra
+            // được các đoạn ghép lại: tải thường
+            send("FILE_TICKET", requested, "0", "", fileName);
+            return;
+        }
+        String ticket = server.issueDownloadTicket(username, fileName, file);
+        send("FILE_TICKET", requested, String.valueOf(file.length()), ticket, fileName);
+    }
+
+    private void sendFileSlice(String ticketId, String startField, String endField) {
+        ChatServer.DownloadTicket ticket = server.downloadTicket(ticketId);
+        if (ticket == null) {
+            sendMessage("FILE_NOT_FOUND:" + ticketId);
+            return;
+        }
+        long start;
+        long end;
+        try {
+            start = Long.parseLong(startField);
+            end = Long.parseLong(endField);
+        } catch (NumberFormatException e) {
+            start = end = -1;
+        }
+        if (start < 0 || end < start || end > ticket.file.length()) {
+            sendMessage("FILE_NOT_FOUND:" + ticket.fileName);
+            return;
+        }
+        enqueue(OutboundFrame.fileSlice(ticket.fileName, ticket.file, ticket.owner, start, end));
+    }
+
+    protected void enqueue(OutboundFrame frame) {
+        if (outbound.offer(frame)) {
+            onFrameQueued();
+        } else {
+            System.err.println("⚠️ Hàng đợi gửi của " + username + " đầy (" + outbound.getCapacity() + " frame), ngắt kết nối");
+            disconnectSlowConsumer();
+        }
+    }
+
+    // Gọi sau mỗi lần xếp frame thành công (NIO dùng để báo event-loop)
+    protected void onFrameQueued() {
+    }
+
+    // Ngắt kết nối khi hàng đợi đầy và policy là DISCONNECT (hoặc không còn gì để bỏ)
+    protected abstract void disconnectSlowConsumer();
+
+    /**
+     * Bắt đầu nhận phần binary của một upload ngay sau header SEND_FILE/SEND_MEDIA.
+     * Khi nhận xong (đồng bộ hoặc không) lớp con phải gọi {@link #finishUpload}.
+     * @param mediaType null với SEND_FILE, AUDIO/VIDEO/IMAGE với SEND_MEDIA
+     */
+    protected abstract void beginUpload(String mediaType, String fileName, long fileSize);
+
+    /**
+     * Client đề nghị giao thức "PROTOCOL:n". Mặc định chỉ hỗ trợ text (v1);
+     * transport hỗ trợ frame v2 override để chuyển đổi.
+     */
+    protected void negotiateProtocol(int requestedVersion) {
+        sendMessage("PROTOCOL:1");
+    }
+
+    /**
+     * Kiểm tra mật khẩu rồi gọi done với kết quả. Mặc định verify ngay trên thread của kết nối;
+     * transport không được block thread đọc (NIO) override để verify ở nơi khác và gọi done sau.
+     */
+    protected void verifyLogin(String loginName, String password, Consumer<Boolean> done) {
+        done.accept(server.verifyCredentials(loginName, password));
+    }
+
+    // username chỉ được gán khi ChatServer.login nhận kết nối; login hỏng không để lại phiên dở
+    private void completeLogin(String loginName, boolean verified) {
+        if (verified && server.login(loginName, this)) {
+            // Token để nối lại phiên khi kết nối rớt (RESUME:token)
+            send("LOGIN_SUCCESS", session.token);
+            server.deliverMailbox(loginName);
+        } else {
+            sendMessage("LOGIN_FAILED:Tài khoản hoặc mật khẩu không đúng");
+        }
+    }
+
+    protected void handleMessage(String message) {
+        handleCommand(message.split(":", 6)); // mở rộng để chứa filename + filesize + hash + offset
+    }
+
+    /**
+     * Xử lý một lệnh đã tách: parts[0] là tên lệnh, các phần tử sau là field.
+     * Dòng text v1 và frame v2 (FrameReader.toParts) đều đi qua đây.
+     */
+    protected void handleCommand(String[] parts) {
+        String command = parts[0];
+
+        switch (command) {
+            case "PROTOCOL":
+                try {
+                    negotiateProtocol(parts.length >= 2 ? Integer.parseInt(parts[1].trim()) : 1);
+                } catch (NumberFormatException e) {
+                    negotiateProtocol(1);
+                }
+                break;
+
+            case "LOGIN":
+                if (username != null) {
+                    sendMessage("LOGIN_FAILED:Kết nối này đã đăng nhập");
+                } else if (parts.length >= 3) {
+                    String loginName = parts[1];
+                    verifyLogin(loginName, parts[2], verified -> completeLogin(loginName, verified));
+                } else {
+                    sendMessage("LOGIN_FAILED:Thiếu thông tin đăng nhập");
+                }
+                break;
+
+            case "RESUME":
+                if (parts.length >= 2 && username == null) {
+                    if (!server.resumeSession(parts[1], this)) {
+                        sendMessage("RESUME_FAILED:Phiên đã hết hạn, cần đăng nhập lại");
+                    }
+                }
+                break;
+
+            case "MESSAGE":
+                if (parts.length >= 2 && username != null && room != null) {
+                    // parts[1] chứa toàn bộ message (vì split limit 4); chỉ gửi tới phòng hiện tại
+                    server.sendRoomMessage(room, username, parts[1]);
+                }
+                break;
+
+            case "HISTORY":
+                if (parts.length >= 3 && username != null) {
+                    try {
+                        server.sendHistory(this, Long.parseLong(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+                    } catch (NumberFormatException e) {
+                        sendMessage("HISTORY_END:0:");
+                    }
+                }
+                break;
+
+            case "GET_USERLIST":
+                if (username != null) {
+                    server.sendUserList(this);
+                }
+                break;
+
+            case "JOIN_ROOM":
+                // Format JOIN_ROOM:roomId -> ROOM_JOINED:roomId
+                if (parts.length >= 2 && username != null) {
+                    String roomId = parts[1].trim();
+                    if (!roomId.isEmpty() && roomId.length() <= 64) {
+                        server.joinRoom(this, roomId);
+                    }
+                }
+                break;
+
+            case "PRIVATE":
+                if (parts.length >= 3 && username != null) {
+                    String receiver = parts[1];
+                    String privateMessage = parts[2];
+                    server.sendPrivateMessage(username, receiver, privateMessage);
+                }
+                break;
+
+            case "SEND_FILE":
+            case "SEND_MEDIA":
+                // Format SEND_FILE:filename:filesize[:sha256[:start]]
+                // Format SEND_MEDIA:TYPE:filename:filesize[:sha256[:start]]  (TYPE=AUDIO|VIDEO|IMAGE)
+                // Có sha256 và server đã có blob đó thì phần binary chỉ được băm để kiểm tra, không ghi đĩa
+                // Có start (lấy từ UPLOAD_OFFSET) thì phần binary chỉ gồm bytes [start, filesize)
+                try {
+                    if (command.equals("SEND_FILE") && parts.length >= 3) {
+                        String fileName = parts[1];
+                        long fileSize = Long.parseLong(parts[2]);
+                        startUpload(null, fileName, fileSize, parts.length >= 4 ? parts[3] : null,
+                                parts.length >= 5 ? Long.parseLong(parts[4]) : 0);
+                    } else if (command.equals("SEND_MEDIA") && parts.length >= 4) {
+                        String mediaType = parts[1]; // e.g. AUDIO or VIDEO or IMAGE
+                        String fileName = parts[2];
+                        long fileSize = Long.parseLong(parts[3]);
+                        startUpload(mediaType, fileName, fileSize, parts.length >= 5 ? parts[4] : null,
+                                parts.length >= 6 ? Long.parseLong(parts[5]) : 0);
+                    }
+                } catch (NumberFormatException e) {
+                    sendMessage("FILE_FAILED:Sai định dạng filesize");
+                }
+                break;
+
+            case "LOGOUT":
+                if (username != null) {
+                    server.logout(username, this);
+                    sendMessage("LOGOUT_SUCCESS");
+                }
+                break;
+
+            case "REMOVE_USER":
+                if (parts.length >= 2 && username != null) {
+                    String userToRemove = parts[1];
+                    server.removeUser(userToRemove);
+                }
+                break;
+
+            case "GET_FILE":
+                // Format GET_FILE:fileName[:sha256[:offset:sums]]
+                if (parts.length >= 2 && username != null) {
+                    String fileName = parts[1];
+                    String hash = parts.length >= 3 && !parts[2].isEmpty() ? parts[2] : null;
+                    long offset = 0;
+                    try {
+                        offset = parts.length >= 5 ? Long.parseLong(parts[3]) : 0;
+                    } catch (NumberFormatException e) {
+                        // offset hỏng: gửi lại cả file
+                    }
+                    sendFileToClient(fileName, hash, offset, parts.length >= 5 ? parts[4] : null);
+                }
+                break;
+
+            case "GET_FILE_TICKET":
+                // Format GET_FILE_TICKET:fileName[:sha256] -> FILE_TICKET:sha256:size:ticket:fileName
+                // Client mở thêm kết nối dữ liệu, mỗi kết nối FETCH một đoạn nên chat không phải chờ file
+                if (parts.length >= 2 && username != null) {
+                    sendFileTicket(parts[1], parts.length >= 3 && !parts[2].isEmpty() ? parts[2] : null);
+                }
+                break;
+
+            case "FETCH":
+                // Kết nối dữ liệu (không đăng nhập): FETCH:ticket:start:end -> FILE_SLICE:fileName:start:end + bytes
+                if (parts.length >= 4 && username == null) {
+                    sendFileSlice(parts[1], parts[2], parts[3]);
+                }
+                break;
+
+            case "UPLOAD_STATUS":
+                // Format UPLOAD_STATUS:sha256 -> UPLOAD_OFFSET:sha256:offset:sums
+                if (parts.length >= 2 && username != null) {
+                    String hash = parts[1];
+                    // Trả lời khi thread đĩa đọc xong checksum phần đã nhận
+                    server.getBlobStore().partialStatus(hash).thenAccept(result -> {
+                        String[] status = result.split(":", 2);
+                        send("UPLOAD_OFFSET", hash, status[0], status[1]);
+                    });
+                }
+                break;
+
+
+            default:
+                // Unknown command -> ignore or send back
+                break;
+        }
+    }
+
+    private void startUpload(String mediaType, String fileName, long fileSize, String claimedHash, long start) {
+        if (start < 0 || start > fileSize) {
+            throw new NumberFormatException("start ngoài khoảng: " + start);
+        }
+        if (username == null) {
+            // Chưa đăng nhập: vẫn đọc hết phần binary theo sau (bỏ đi) để luồng lệnh không bị lệch,
+            // không mở upload nào; finishUpload báo FILE_FAILED
+            beginUpload(mediaType, fileName, fileSize - start);
+            return;
+        }
+        upload = server.getBlobStore().begin(fileName, fileSize, claimedHash, start);
+        uploadRelay = server.startRelay(username, mediaType, upload);
+        // Người nhận relay được báo từ thread ghi, khi bytes đã thật sự nằm trong file tạm
+        upload.open(uploadRelay == null ? null : uploadRelay::advance);
+        if (start > 0) {
+            System.out.println("🔄 " + username + " gửi tiếp " + fileName + " từ " + start + "/" + fileSize + " bytes");
+        }
+        // Phần binary theo sau header chỉ gồm những bytes còn thiếu
+        beginUpload(mediaType, fileName, fileSize - start);
+    }
+
+    /**
+     * Lớp con đưa từng đoạn bytes của upload vào đây; việc ghi vào file tạm + băm chạy trên
+     * thread ghi của BlobStore.
+     * @return false nếu hàng đợi ghi đã đầy: lớp con ngừng đọc socket tới khi upload vơi
+     * (BlobStore.Upload.whenDrained / awaitDrained)
+     */
+    protected boolean writeUpload(ByteBuffer data) {
+        if (upload == null) {
+            return true; // upload bị từ chối (chưa đăng nhập)
+        }
+        return upload.write(data);
+    }
+
+    // Gọi callback khi hàng đợi ghi của upload hiện tại đã vơi (ngay nếu không có upload)
+    protected void whenUploadDrained(Runnable callback) {
+        BlobStore.Upload current = upload;
+        if (current == null) {
+            callback.run();
+        } else {
+            current.whenDrained(callback);
+        }
+    }
+
+    // Cho transport blocking: chặn thread đọc của kết nối tới khi hàng đợi ghi của upload vơi
+    protected void awaitUploadDrained() throws InterruptedIOException {
+        BlobStore.Upload current = upload;
+        if (current != null) {
+            current.awaitDrained();
+        }
+    }
+
+    /**
+     * Gọi sau khi đã nhận hết phần binary của upload. Kiểm tra và fsync file tạm chạy trên
+     * thread ghi/group commit, phần còn lại (đưa vào kho, báo người gửi và phòng) chạy khi
+     * xong, nên thread đọc socket không phải chờ đĩa.
+     * @param success false nếu stream kết thúc sớm
+     */
+    protected void finishUpload(String mediaType, String fileName, boolean success) {
+        BlobStore.Upload current = upload;
+        UploadRelay relay = uploadRelay;
+        upload = null;
+        uploadRelay = null;
+        String sender = username;
+        if (current == null) {
+            sendMessage("FILE_FAILED:" + fileName);
+            return;
+        }
+        if (!success) {
+            publishUpload(sender, mediaType, fileName, current, relay, null);
+            return;
+        }
+        current.finish().whenComplete((hash, error) -> {
+            if (error != null) {
+                System.err.println("❌ Lỗi nhận file: " + error.getMessage());
+            }
+            publishUpload(sender, mediaType, fileName, current, relay, error == null ? hash : null);
+        });
+    }
+
+    // hash null: upload thất bại (bỏ file tạm, báo FILE_FAILED)
+    private void publishUpload(String sender, String mediaType, String fileName, BlobStore.Upload current,
+                               UploadRelay relay, String hash) {
+        boolean success = hash != null;
+        if (success) {
+            try {
+                if (relay != null) {
+                    relay.committing(server.getBlobStore().blobFile(hash));
+                }
+                current.commit(hash);
+                System.out.println("✅ Đã lưu " + fileName + " (" + current.size + " bytes) từ " + sender
+                        + (current.isDuplicate() ? ", trùng nội dung đã có" : "") + " - " + hash);
+            } catch (IOException e) {
+                System.err.println("❌ Lỗi nhận file: " + e.getMessage());
+                success = false;
+            }
+        }
+        if (!success) {
+            current.abort();
+        }
+        boolean relayed = relay != null;
+        if (relayed) {
+            server.finishRelay(fileName, relay, success);
+        }
+        if (!success) {
+            sendMessage("FILE_FAILED:" + fileName);
+            return;
+        }
+        // File nhận thành công, thông báo cho người gửi
+        sendMessage("FILE_RECEIVED:" + fileName);
+
+        if (mediaType == null) {
+            // Broadcast cho tất cả client khác (trừ người gửi) để họ tự động tải về
+            if (!relayed) {
+                server.broadcastNewFile(sender, fileName, hash);
+            }
+            // Broadcast tin nhắn thông báo
+            server.sendRoomMessage(room, "SYSTEM", sender + " đã gửi file: " + fileName);
+        } else if ("IMAGE".equalsIgnoreCase(mediaType)) {
+            // Broadcast inline cho các client khác, mỗi kết nối stream thẳng từ file đã lưu
+            server.broadcastImage(sender, fileName, server.getBlobStore().blobFile(hash));
+            // Tùy chọn: vẫn có thể gửi SYSTEM thông báo
+            server.sendRoomMessage(room, "SYSTEM", sender + " đã gửi IMAGE: " + fileName);
+        } else {
+            // non-image media: giữ nguyên hành vi - để client tự tải
+            if (!relayed) {
+                server.broadcastNewFile(sender, fileName, hash);
+            }
+            server.sendRoomMessage(room, "SYSTEM", sender + " đã gửi " + mediaType + ": " + fileName);
+        }
+    }
+
+    // Gọi khi kết nối đóng (EOF hoặc lỗi I/O)
+    protected void onDisconnected() {
+        if (upload != null) {
+            // Upload bị bỏ dở: bỏ file tạm, người nhận đang đọc đuổi sẽ được báo hủy
+            upload.abort();
+            upload = null;
+        }
+        if (uploadRelay != null) {
+            server.finishRelay(uploadRelay.fileName, uploadRelay, false);
+            uploadRelay = null;
+        }
+        // Rớt mạng (không LOGOUT): giữ phiên chờ client RESUME thay vì logout ngay
+        if (username != null && !server.parkSession(this)) {
+            server.logout(username, this);
+        }
+    }
+}
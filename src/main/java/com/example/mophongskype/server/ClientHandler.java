@@ -1,22 +1,35 @@
 package com.example.mophongskype.server;
 
+import com.example.mophongskype.protocol.ChunkInputStream;
+import com.example.mophongskype.protocol.FrameCodec;
+import com.example.mophongskype.protocol.FrameReader;
+import com.example.mophongskype.protocol.LineDecoder;
+import com.example.mophongskype.protocol.Opcode;
+
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler extends ClientConnection implements Runnable {
     private Socket clientSocket;
-    private ChatServer server;
-    private PrintWriter out;
     // removed BufferedReader in; use a single buffered input to avoid read-ahead issues
     private InputStream rawInputStream; // InputStream gốc để đọc binary data
-    private BufferedInputStream bufferedIn;
+    // Đọc dòng lệnh theo khối; bytes binary sau header cũng lấy từ đây
+    private LineDecoder bufferedIn;
     private OutputStream rawOutputStream; // OutputStream gốc để ghi binary data
-    private String username;
+    // Channel của socket (có khi server accept bằng ServerSocketChannel) để gửi file zero-copy
+    private SocketChannel socketChannel;
+    // 1 = dòng text, 2 = frame nhị phân (sau khi client gửi PROTOCOL:2)
+    private int protocolVersion = 1;
+    private FrameReader frameReader;
 
     public ClientHandler(Socket socket, ChatServer server) {
+        super(server);
         this.clientSocket = socket;
-        this.server = server;
     }
 
     @Override
@@ -24,23 +37,26 @@ public class ClientHandler implements Runnable {
         try {
             // Lưu raw streams để dùng cho binary data
             rawInputStream = clientSocket.getInputStream();
-            bufferedIn = new BufferedInputStream(rawInputStream);
+            bufferedIn = new LineDecoder(rawInputStream);
             rawOutputStream = clientSocket.getOutputStream();
-            
-            // PrintWriter với autoFlush = true để luôn đẩy buffer ra
-            out = new PrintWriter(new OutputStreamWriter(rawOutputStream, StandardCharsets.UTF_8), true);
+            socketChannel = clientSocket.getChannel();
+
+            // Writer riêng rút hàng đợi outbound, chạy trên cùng executor với handler
+            server.executeWriter(this::drainOutbound);
 
             String inputLine;
-            while ((inputLine = readLine(bufferedIn)) != null) {
+            while (protocolVersion == 1 && (inputLine = bufferedIn.readLine()) != null) {
                 handleMessage(inputLine);
             }
+            if (protocolVersion == FrameCodec.VERSION) {
+                readFrames();
+            }
         } catch (IOException e) {
             System.err.println("Lỗi xử lý client: " + e.getMessage());
         } finally {
             try {
-                if (username != null) {
-                    server.logout(username);
-                }
+                onDisconnected();
+                outbound.close();
                 clientSocket.close();
             } catch (IOException e) {
                 System.err.println("Lỗi đóng kết nối: " + e.getMessage());
@@ -48,208 +64,74 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handleMessage(String message) {
-        String[] parts = message.split(":", 4); // mở rộng để chứa filename + filesize
-        String command = parts[0];
-
-        switch (command) {
-            case "LOGIN":
-                if (parts.length >= 3) {
-                    username = parts[1];
-                    String password = parts[2];
-                    boolean success = server.login(username, password, this);
-                    if (success) {
-                        sendMessage("LOGIN_SUCCESS");
-                    } else {
-                        sendMessage("LOGIN_FAILED:Tài khoản hoặc mật khẩu không đúng");
-                    }
-                } else {
-                    sendMessage("LOGIN_FAILED:Thiếu thông tin đăng nhập");
-                }
-                break;
-
-            case "MESSAGE":
-                if (parts.length >= 2 && username != null) {
-                    // parts[1] chứa toàn bộ message (vì split limit 4)
-                    server.broadcastMessage(username, parts[1]);
-                }
-                break;
-
-            case "PRIVATE":
-                if (parts.length >= 3 && username != null) {
-                    String receiver = parts[1];
-                    String privateMessage = parts[2];
-                    server.sendPrivateMessage(username, receiver, privateMessage);
-                }
-                break;
-
-            case "SEND_FILE":
-            case "SEND_MEDIA":
-                // Format SEND_FILE:filename:filesize
-                // Format SEND_MEDIA:TYPE:filename:filesize  (TYPE=AUDIO|VIDEO|IMAGE)
-                try {
-                    if (command.equals("SEND_FILE") && parts.length >= 3) {
-                        String fileName = parts[1];
-                        long fileSize = Long.parseLong(parts[2]);
-                        if (receiveFile(fileName, fileSize)) {
-                            // File nhận thành công, thông báo cho người gửi
-                            sendMessage("FILE_RECEIVED:" + fileName);
-                            // Broadcast cho tất cả client khác (trừ người gửi) để họ tự động tải về
-                            server.broadcastNewFile(username, fileName);
-                            // Broadcast tin nhắn thông báo
-                            server.broadcastMessage("SYSTEM", username + " đã gửi file: " + fileName);
-                        } else {
-                            sendMessage("FILE_FAILED:" + fileName);
-                        }
-                    } else if (command.equals("SEND_MEDIA") && parts.length >= 4) {
-                        String mediaType = parts[1]; // e.g. AUDIO or VIDEO or IMAGE
-                        String fileName = parts[2];
-                        long fileSize = Long.parseLong(parts[3]);
-                        if (receiveFile(fileName, fileSize)) {
-                            // File nhận thành công
-                            sendMessage("FILE_RECEIVED:" + fileName);
-                            if ("IMAGE".equalsIgnoreCase(mediaType)) {
-                                // Đọc bytes ảnh và broadcast inline cho các client khác
-                                File f = new File("uploads", fileName);
-                                try {
-                                    byte[] imageBytes = readFileToBytes(f);
-                                    server.broadcastImage(username, fileName, imageBytes);
-                                } catch (IOException ex) {
-                                    System.err.println("Lỗi đọc bytes ảnh: " + ex.getMessage());
-                                }
-                                // Tùy chọn: vẫn có thể gửi SYSTEM thông báo
-                                server.broadcastMessage("SYSTEM", username + " đã gửi IMAGE: " + fileName);
-                            } else {
-                                // non-image media: giữ nguyên hành vi - để client tự tải
-                                server.broadcastNewFile(username, fileName);
-                                server.broadcastMessage("SYSTEM", username + " đã gửi " + mediaType + ": " + fileName);
-                            }
-                        } else {
-                            sendMessage("FILE_FAILED:" + fileName);
-                        }
-                    }
-                } catch (NumberFormatException e) {
-                    sendMessage("FILE_FAILED:Sai định dạng filesize");
-                }
-                break;
-
-            case "LOGOUT":
-                if (username != null) {
-                    server.logout(username);
-                    sendMessage("LOGOUT_SUCCESS");
-                }
-                break;
-
-            case "REMOVE_USER":
-                if (parts.length >= 2 && username != null) {
-                    String userToRemove = parts[1];
-                    server.removeUser(userToRemove);
-                }
-                break;
-
-            case "GET_FILE":
-                if (parts.length >= 2) {
-                    String fileName = parts[1];
-                    sendFileToClient(fileName);
-                }
-                break;
-
-
-            default:
-                // Unknown command -> ignore or send back
-                break;
+    // Vòng đọc sau khi đã chuyển sang v2: mỗi frame lệnh đi qua handleCommand như dòng text
+    private void readFrames() throws IOException {
+        while (frameReader.next()) {
+            Opcode opcode = frameReader.opcode();
+            if (opcode == null || opcode == Opcode.CHUNK) {
+                continue; // opcode lạ hoặc CHUNK lạc: bỏ qua
+            }
+            handleCommand(frameReader.toParts());
         }
     }
 
-    /**
-     * Gửi file từ server đến client
-     * QUAN TRỌNG: Phải flush PrintWriter và đảm bảo không có buffer còn lại
-     */
-    private synchronized void sendFileToClient(String fileName) {
-        try {
-            File file = new File("uploads", fileName); // file trên server
-            if (!file.exists()) {
-                sendMessage("FILE_NOT_FOUND:" + fileName);
-                return;
-            }
-
-            long fileSize = file.length();
-            
-            // QUAN TRỌNG: Flush PrintWriter trước khi gửi binary data
-            if (out != null) {
-                out.flush();
-            }
-            
-            // Gửi header trước qua PrintWriter (với newline)
-            sendMessage("FILE_DATA:" + file.getName() + ":" + fileSize);
-            
-            // Đợi một chút để đảm bảo text message được gửi hoàn toàn
-            try { Thread.sleep(100); } catch (InterruptedException ignored) {}
+    private void handleInterleaved(FrameReader reader) throws IOException {
+        if (reader.opcode() != null) {
+            handleCommand(reader.toParts());
+        }
+    }
 
-            // Gửi dữ liệu file BINARY trực tiếp qua raw OutputStream
-            // KHÔNG dùng DataOutputStream wrap lại vì sẽ conflict với PrintWriter
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192]; // Buffer lớn hơn để tăng hiệu suất
-                int read;
-                long totalSent = 0;
-                while ((read = fis.read(buffer)) != -1) {
-                    rawOutputStream.write(buffer, 0, read);
-                    totalSent += read;
-                }
-                rawOutputStream.flush(); // Flush để đảm bảo dữ liệu được gửi
-                System.out.println("✅ Đã gửi file " + fileName + " (" + totalSent + "/" + fileSize + " bytes) đến " + username);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            sendMessage("FILE_FAILED:" + fileName);
+    @Override
+    protected void negotiateProtocol(int requestedVersion) {
+        if (requestedVersion < FrameCodec.VERSION) {
+            super.negotiateProtocol(requestedVersion);
+            return;
         }
+        // Từ frame kế tiếp client gửi frame v2; writer chuyển sau khi ghi PROTOCOL_OK
+        protocolVersion = FrameCodec.VERSION;
+        frameReader = new FrameReader(bufferedIn);
+        enqueue(new OutboundFrame.ProtocolSwitch());
     }
 
+    @Override
+    protected void beginUpload(String mediaType, String fileName, long fileSize) {
+        // Blocking: đọc body ngay trên thread này rồi xử lý tiếp.
+        // v1: bytes thô ngay sau header; v2: các CHUNK cùng stream id với frame header
+        // v2: frame lệnh client chen giữa các CHUNK (chat trong lúc upload) được xử lý ngay
+        InputStream body = protocolVersion == FrameCodec.VERSION
+                ? new ChunkInputStream(frameReader, frameReader.streamId(), fileSize, this::handleInterleaved)
+                : bufferedIn;
+        finishUpload(mediaType, fileName, receiveFile(fileName, fileSize, body));
+    }
 
     /**
-     * Nhận file từ client và lưu vào thư mục uploads trên server
+     * Nhận phần binary của upload từ client, chuyển từng đoạn cho kho upload (writeUpload)
      * QUAN TRỌNG: Dùng raw InputStream để đọc binary data, không dùng BufferedReader
-     * @return true nếu nhận thành công, false nếu có lỗi
+     * @return true nếu nhận đủ fileSize bytes, false nếu stream kết thúc sớm hoặc lỗi
      */
-    private boolean receiveFile(String fileName, long fileSize) {
+    private boolean receiveFile(String fileName, long fileSize, InputStream body) {
         try {
-            File uploadsDir = new File("uploads");
-            if (!uploadsDir.exists()) {
-                uploadsDir.mkdirs();
-            }
-
-            File file = new File(uploadsDir, fileName);
-            
-            // Đọc binary data trực tiếp từ bufferedIn
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buffer = new byte[8192]; // Buffer lớn hơn
-                long totalRead = 0;
-                int read;
-                
-                // Đọc đúng số bytes theo fileSize
-                while (totalRead < fileSize) {
-                    int bytesToRead = (int) Math.min(buffer.length, fileSize - totalRead);
-                    read = bufferedIn.read(buffer, 0, bytesToRead);
+            byte[] buffer = new byte[8192]; // Buffer lớn hơn
+            long totalRead = 0;
+            int read;
+
+            // Đọc đúng số bytes theo fileSize
+            while (totalRead < fileSize) {
+                int bytesToRead = (int) Math.min(buffer.length, fileSize - totalRead);
+                read = body.read(buffer, 0, bytesToRead);
+
+                if (read == -1) {
+                    // Stream kết thúc sớm
+                    System.err.println("⚠️ Stream kết thúc sớm. Đã đọc " + totalRead + "/" + fileSize + " bytes");
+                    return false;
+                }
 
-                    if (read == -1) {
-                        // Stream kết thúc sớm
-                        System.err.println("⚠️ Stream kết thúc sớm. Đã đọc " + totalRead + "/" + fileSize + " bytes");
-                        break;
+                if (read > 0) {
+                    if (!writeUpload(ByteBuffer.wrap(buffer, 0, read))) {
+                        // Đĩa chậm hơn mạng: chờ hàng đợi ghi vơi rồi mới đọc tiếp
+                        awaitUploadDrained();
                     }
-                    
-                    if (read > 0) {
-                        fos.write(buffer, 0, read);
-                        totalRead += read;
-                    }
-                }
-                
-                fos.flush(); // Đảm bảo dữ liệu được ghi vào disk
-                fos.getFD().sync(); // Đồng bộ với disk để đảm bảo dữ liệu được ghi hoàn toàn
-                
-                // Kiểm tra xem đã nhận đủ dữ liệu chưa
-                if (totalRead != fileSize) {
-                    System.err.println("❌ Cảnh báo: Chỉ nhận được " + totalRead + "/" + fileSize + " bytes cho file " + fileName);
-                    return false;
+                    totalRead += read;
                 }
             }
 
@@ -262,67 +144,99 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    // Gửi text message cho client (luôn println + autoFlush)
-    public synchronized void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
-            // out.flush(); // autoFlush = true nên không bắt buộc, nhưng giữ nếu muốn
+    @Override
+    protected void disconnectSlowConsumer() {
+        closeSocket(); // reader sẽ thoát và dọn dẹp kết nối
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {
         }
     }
+
     /**
-     * Gửi ảnh dưới dạng byte array cho client
+     * Vòng lặp của writer: lấy cả batch frame đang chờ, gom các frame lệnh liền nhau
+     * vào một buffer và ghi ra socket bằng một lệnh write, flush một lần cho cả batch.
      */
-    public synchronized void sendImage(String sender, String fileName, byte[] imageBytes) {
+    private void drainOutbound() {
+        List<OutboundFrame> batch = new ArrayList<>();
+        boolean v2 = false;
+        int nextStreamId = 2; // stream id phía server là số chẵn, phía client là số lẻ
         try {
-            // Gửi header trước
-            sendMessage("IMAGE_DATA:" + sender + ":" + fileName + ":" + imageBytes.length);
-
-            // Gửi dữ liệu ảnh
-            rawOutputStream.write(imageBytes);
-            rawOutputStream.flush();
+            while (outbound.takeBatch(batch, server.getWriteBatchSize(), server.getWriteDelayNanos())) {
+                ByteArrayOutputStream pending = new ByteArrayOutputStream();
+                int frames = batch.size();
+                for (int i = 0; i < batch.size(); i++) {
+                    OutboundFrame frame = batch.get(i);
+                    if (frame instanceof OutboundFrame.Text) {
+                        if (v2) {
+                            frame.writeV2(pending, 0);
+                        } else {
+                            frame.writeTo(pending);
+                        }
+                        v2 |= frame instanceof OutboundFrame.ProtocolSwitch;
+                    } else {
+                        if (v2) {
+                            // Frame lệnh xếp sau file trong cùng batch được gửi trước file
+                            Iterator<OutboundFrame> rest = batch.listIterator(i + 1);
+                            while (rest.hasNext()) {
+                                OutboundFrame next = rest.next();
+                                if (next instanceof OutboundFrame.Text) {
+                                    next.writeV2(pending, 0);
+                                    rest.remove();
+                                }
+                            }
+                        }
+                        // Frame binary: đẩy phần lệnh đã gom trước để giữ đúng thứ tự
+                        pending.writeTo(rawOutputStream);
+                        pending.reset();
+                        if (frame instanceof OutboundFrame.StoredFile stored) {
+                            // File/ảnh trong uploads/: sendfile thẳng vào socket, không copy qua heap.
+                            // v2: sau mỗi CHUNK chen các frame lệnh đang chờ để chat không phải chờ cả file
+                            stored.transferTo(rawOutputStream, socketChannel, v2 ? nextStreamId : 0, this::writeUrgent);
+                            if (v2) {
+                                nextStreamId += 2;
+                            }
+                        } else if (v2) {
+                            frame.writeV2(rawOutputStream, nextStreamId);
+                            nextStreamId += 2;
+                        } else {
+                            frame.writeTo(rawOutputStream);
+                        }
+                    }
+                }
+                pending.writeTo(rawOutputStream);
+                rawOutputStream.flush();
+                server.getWriteStats().recordFlush(frames);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Lỗi gửi dữ liệu cho " + username + ": " + e.getMessage());
+            closeSocket(); // reader sẽ thoát và dọn dẹp kết nối
         }
     }
 
-    // Helper: đọc toàn bộ file thành byte[]
-    private byte[] readFileToBytes(File file) throws IOException {
-        try (InputStream is = new FileInputStream(file); ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte[] buf = new byte[8192];
-            int r;
-            while ((r = is.read(buf)) != -1) {
-                baos.write(buf, 0, r);
-            }
-            return baos.toByteArray();
+    // Ghi ngay các frame lệnh đang chờ (v2, giữa hai CHUNK của một file)
+    private void writeUrgent() throws IOException {
+        List<OutboundFrame> urgent = new ArrayList<>();
+        if (outbound.pollText(urgent, server.getWriteBatchSize()) == 0) {
+            return;
         }
-    }
-
-    // Helper to read a line (bytes until '\n') from bufferedIn using UTF-8. Returns null on EOF.
-    private static String readLine(BufferedInputStream bis) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int b;
-        boolean seenCR = false;
-        while ((b = bis.read()) != -1) {
-            if (b == '\r') {
-                seenCR = true;
-                continue; // peek for \n next
-            }
-            if (b == '\n') {
-                break;
-            }
-            if (seenCR) {
-                // previous was CR but not followed by LF, we should treat CR as part of line end -> push it
-                baos.write('\r');
-                seenCR = false;
-            }
-            baos.write(b);
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        for (OutboundFrame frame : urgent) {
+            frame.writeV2(pending, 0);
         }
-        if (b == -1 && baos.size() == 0) return null;
-        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+        pending.writeTo(rawOutputStream);
+        rawOutputStream.flush();
+        server.getWriteStats().recordFlush(urgent.size());
     }
 
     // Helper to read exact number of bytes from bufferedIn
-    private static byte[] readFully(BufferedInputStream in, long size) throws IOException {
+    private static byte[] readFully(InputStream in, long size) throws IOException {
         if (size > Integer.MAX_VALUE) throw new IOException("File too large");
         int remaining = (int) size;
         byte[] data = new byte[remaining];
@@ -0,0 +1,18 @@
+package com.example.mophongskype.server;
+
+/**
+ * Nơi kiểm tra tài khoản đăng nhập. ChatServer gọi verify trên thread của kết nối đang login
+ * (blocking/virtual) hoặc trên pool login-verify (NIO, không chạy trên event-loop), không giữ
+ * khóa chung nào, nên cài đặt phải an toàn khi nhiều thread gọi cùng lúc.
+ */
+public interface CredentialStore {
+    /**
+     * @return true nếu username tồn tại và password đúng
+     */
+    boolean verify(String username, String password);
+
+    /**
+     * @return true nếu có tài khoản username (không kiểm tra mật khẩu)
+     */
+    boolean exists(String username);
+}
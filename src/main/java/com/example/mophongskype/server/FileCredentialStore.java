@@ -0,0 +1,107 @@
+package com.example.mophongskype.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Tài khoản lưu trong file properties, mỗi dòng username=pbkdf2:iterations:salt:hash
+ * (PBKDF2-HMAC-SHA256, salt ngẫu nhiên riêng cho từng user, salt/hash dạng Base64).
+ * Không lưu mật khẩu gốc; file được đọc một lần khi khởi động.
+ */
+public class FileCredentialStore implements CredentialStore {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    // Số vòng cho hash mới (-Dchat.credentials.iterations); hash cũ giữ số vòng đã ghi trong file
+    private static final int ITERATIONS = Integer.getInteger("chat.credentials.iterations", 120_000);
+
+    private final Map<String, String> entries;
+
+    private FileCredentialStore(Map<String, String> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Đọc file tài khoản; nếu chưa có thì tạo với các tài khoản mẫu trước đây được viết cứng trong ChatServer.
+     */
+    public static FileCredentialStore openOrSeed(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        } else {
+            Map<String, String> demoUsers = new LinkedHashMap<>();
+            demoUsers.put("admin", "123456");
+            demoUsers.put("user1", "password");
+            demoUsers.put("test", "test");
+            demoUsers.put("vien", "vien");
+            demoUsers.put("tuna", "tuna");
+            for (Map.Entry<String, String> user : demoUsers.entrySet()) {
+                properties.setProperty(user.getKey(), hash(user.getValue()));
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                properties.store(writer, "username=pbkdf2:iterations:salt:hash");
+            }
+            System.out.println("✅ Đã tạo file tài khoản mẫu: " + file.getAbsolutePath());
+        }
+        Map<String, String> entries = new HashMap<>();
+        for (String username : properties.stringPropertyNames()) {
+            entries.put(username, properties.getProperty(username));
+        }
+        return new FileCredentialStore(Map.copyOf(entries));
+    }
+
+    @Override
+    public boolean exists(String username) {
+        return username != null && entries.containsKey(username);
+    }
+
+    @Override
+    public boolean verify(String username, String password) {
+        String entry = username != null ? entries.get(username) : null;
+        if (entry == null || password == null) {
+            return false;
+        }
+        String[] fields = entry.split(":");
+        if (fields.length != 4 || !fields[0].equals("pbkdf2")) {
+            System.err.println("⚠️ Dòng tài khoản không hợp lệ: " + username);
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(fields[1]);
+            byte[] salt = Base64.getDecoder().decode(fields[2]);
+            byte[] expected = Base64.getDecoder().decode(fields[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations, expected.length * 8));
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Dòng tài khoản không hợp lệ: " + username);
+            return false;
+        }
+    }
+
+    // Chuỗi lưu trong file cho một mật khẩu mới
+    static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, ITERATIONS, HASH_BITS);
+        return "pbkdf2:" + ITERATIONS + ":" + Base64.getEncoder().encodeToString(salt)
+                + ":" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("JVM không hỗ trợ " + ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
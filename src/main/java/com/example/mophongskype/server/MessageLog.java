@@ -0,0 +1,392 @@
+package com.example.mophongskype.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+import com.example.mophongskype.protocol.GroupCommit;
+
+/**
+ * Log tin nhắn append-only theo phòng trong history/&lt;hex(tên phòng)&gt;/. Mỗi phòng có dãy seq
+ * riêng bắt đầu từ 1, chia thành các segment kích thước cố định đặt tên theo seq đầu tiên
+ * (00000000000000000001.log...). Segment được memory-map nên log dài hàng tháng không nằm
+ * trên heap; chỉ segment đang ghi được quét lại khi mở phòng, segment cũ được map và lập
+ * chỉ mục thưa khi có người đọc tới.
+ * <p>
+ * Bản ghi: length(int, số bytes sau nó) | crc32(int) | seq(long) | time(long) | senderLen(short)
+ * | sender | text (UTF-8). length = 0 là hết dữ liệu (phần còn lại của segment toàn số 0);
+ * bản ghi ghi dở lúc tắt đột ngột có CRC sai và bị ghi đè ở lần append kế tiếp.
+ * <p>
+ * Tin được phát cho phòng ngay sau khi ghi vào trang đã map; việc đồng bộ xuống đĩa chạy nền
+ * qua GroupCommit riêng của log (nhiều tin liên tiếp dùng chung một lần force), nên chat không
+ * phải chờ fsync và không xếp hàng sau fsync của upload/hộp thư.
+ * <p>
+ * Log phòng chỉ được mở khi có người ghi/đọc. Mở quá maxOpenRooms phòng thì phòng lâu không
+ * dùng nhất bị đóng; phòng không dùng quá idleMillis bị đóng khi mở phòng khác. Đóng là force
+ * các segment đang map rồi bỏ tham chiếu để GC gỡ mapping; lần dùng sau mở lại từ đĩa.
+ */
+final class MessageLog {
+    private static final int HEADER = 4 + 4 + 8 + 8 + 2;
+    // Chỉ mục thưa: vị trí của mỗi bản ghi thứ INDEX_INTERVAL trong segment
+    private static final int INDEX_INTERVAL = 64;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final GroupCommit commits;
+    private final int maxOpenRooms;
+    private final long idleMillis;
+    private final Map<String, RoomLog> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Một tin nhắn đã ghi log.
+     */
+    static final class Entry {
+        final long seq;
+        final long time;
+        final String sender;
+        final String text;
+
+        Entry(long seq, long time, String sender, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    MessageLog(File dir, int segmentBytes, GroupCommit commits, int maxOpenRooms, long idleMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.commits = commits;
+        this.maxOpenRooms = Math.max(1, maxOpenRooms);
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Ghi tin nhắn vào cuối log của phòng. published được gọi với seq vừa cấp ngay sau khi ghi,
+     * khi còn giữ khóa phòng nên theo đúng thứ tự seq (chỉ nên xếp frame vào hàng đợi).
+     * @return seq của tin nhắn
+     */
+    long append(String room, String sender, String text, LongConsumer published) throws IOException {
+        while (true) {
+            RoomLog log = roomLog(room);
+            long seq = log.append(sender, text, published);
+            if (seq > 0) {
+                return seq;
+            }
+            rooms.remove(room, log); // vừa bị đóng: mở lại từ đĩa
+        }
+    }
+
+    // Phòng đã có log (đang mở hoặc trên đĩa). Thông báo SYSTEM chỉ ghi vào phòng đã có log
+    boolean exists(String room) {
+        return rooms.containsKey(room) || roomDir(room).isDirectory();
+    }
+
+    /**
+     * Tối đa limit tin nhắn từ seq fromSeq trở đi; fromSeq &lt;= 0 để lấy limit tin mới nhất.
+     */
+    List<Entry> read(String room, long fromSeq, int limit) throws IOException {
+        if (!exists(room)) {
+            return new ArrayList<>(); // không mở (và giữ) log cho phòng chưa từng có tin
+        }
+        while (true) {
+            RoomLog log = roomLog(room);
+            List<Entry> entries = log.read(fromSeq, limit);
+            if (entries != null) {
+                return entries;
+            }
+            rooms.remove(room, log);
+        }
+    }
+
+    // Seq của tin nhắn mới nhất trong phòng, 0 nếu chưa có
+    long lastSeq(String room) {
+        return exists(room) ? roomLog(room).nextSeq - 1 : 0;
+    }
+
+    private File roomDir(String room) {
+        return new File(dir, HexFormat.of().formatHex(room.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private RoomLog roomLog(String room) {
+        RoomLog log = rooms.get(room);
+        if (log == null) {
+            log = rooms.computeIfAbsent(room, key -> {
+                try {
+                    return new RoomLog(roomDir(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Không mở được log của phòng " + key, e);
+                }
+            });
+            evict(log);
+        }
+        log.lastUsed = System.currentTimeMillis();
+        return log;
+    }
+
+    // Đóng các phòng lâu không dùng, rồi phòng ít dùng gần đây nhất tới khi còn maxOpenRooms
+    private void evict(RoomLog opened) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, RoomLog> entry : rooms.entrySet()) {
+            RoomLog log = entry.getValue();
+            if (log != opened && now - log.lastUsed > idleMillis) {
+                close(entry.getKey(), log);
+            }
+        }
+        while (rooms.size() > maxOpenRooms) {
+            Map.Entry<String, RoomLog> oldest = null;
+            for (Map.Entry<String, RoomLog> entry : rooms.entrySet()) {
+                if (entry.getValue() != opened && (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            close(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    // Đóng trước rồi mới bỏ khỏi map: không có lúc hai RoomLog cùng ghi vào một phòng
+    private void close(String room, RoomLog log) {
+        log.close();
+        rooms.remove(room, log);
+    }
+
+    private final class RoomLog {
+        private final File roomDir;
+        // seq đầu tiên -> segment; segment cuối là segment đang ghi
+        private final TreeMap<Long, Segment> segments = new TreeMap<>();
+        private Segment active;
+        private long nextSeq = 1;
+        private boolean closed = false;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        RoomLog(File roomDir) throws IOException {
+            this.roomDir = roomDir;
+            File[] files = roomDir.listFiles((d, name) -> name.endsWith(".log"));
+            if (files != null) {
+                for (File file : files) {
+                    long baseSeq = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                    segments.put(baseSeq, new Segment(file, baseSeq));
+                }
+            }
+            if (!segments.isEmpty()) {
+                active = segments.lastEntry().getValue();
+                active.mapForWrite(segmentBytes);
+                nextSeq = active.baseSeq + active.count;
+            }
+        }
+
+        // -1 nếu log đã bị đóng (người gọi mở lại)
+        synchronized long append(String sender, String text, LongConsumer published) throws IOException {
+            if (closed) {
+                return -1;
+            }
+            byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            int recordSize = HEADER + senderBytes.length + textBytes.length;
+            if (senderBytes.length > Short.MAX_VALUE || recordSize + 4 > segmentBytes) {
+                throw new IOException("Tin nhắn quá lớn để ghi log (" + recordSize + " bytes)");
+            }
+            if (active == null || active.end + recordSize + 4 > active.buffer.capacity()) {
+                roll();
+            }
+            long seq = nextSeq;
+            MappedByteBuffer buffer = active.buffer;
+            int position = active.end;
+            buffer.putLong(position + 8, seq);
+            buffer.putLong(position + 16, System.currentTimeMillis());
+            buffer.putShort(position + 24, (short) senderBytes.length);
+            buffer.put(position + HEADER, senderBytes);
+            buffer.put(position + HEADER + senderBytes.length, textBytes);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(position + 8, recordSize - 8));
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // length ghi sau cùng: người đọc (hoặc lần quét sau khi khởi động lại) chỉ thấy bản ghi đã đầy đủ
+            buffer.putInt(position, recordSize - 4);
+            active.addRecord(position);
+            active.end += recordSize;
+            nextSeq++;
+            published.accept(seq);
+            commits.sync(buffer, buffer::force).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    System.err.println("❌ Lỗi đồng bộ log phòng tới seq " + seq + ": " + error.getMessage());
+                }
+            });
+            return seq;
+        }
+
+        // Segment đầy (hoặc chưa có): bắt đầu segment mới với seq kế tiếp
+        private void roll() throws IOException {
+            if (active != null) {
+                MappedByteBuffer full = active.buffer;
+                commits.sync(full, full::force);
+            }
+            if (!roomDir.exists() && !roomDir.mkdirs()) {
+                throw new IOException("Không tạo được " + roomDir);
+            }
+            Segment segment = new Segment(new File(roomDir, String.format("%020d.log", nextSeq)), nextSeq);
+            segment.mapForWrite(segmentBytes);
+            segments.put(nextSeq, segment);
+            active = segment;
+        }
+
+        // null nếu log đã bị đóng (người gọi mở lại)
+        synchronized List<Entry> read(long fromSeq, int limit) throws IOException {
+            if (closed) {
+                return null;
+            }
+            List<Entry> entries = new ArrayList<>();
+            long seq = fromSeq > 0 ? fromSeq : Math.max(1, nextSeq - limit);
+            Map.Entry<Long, Segment> floor = segments.floorEntry(seq);
+            if (floor == null) {
+                floor = segments.firstEntry();
+                if (floor == null) {
+                    return entries;
+                }
+                seq = floor.getKey();
+            }
+            for (Segment segment : segments.tailMap(floor.getKey(), true).values()) {
+                if (entries.size() >= limit || seq >= nextSeq) {
+                    break;
+                }
+                Long following = segments.higherKey(segment.baseSeq);
+                segment.mapForRead(following != null ? following - segment.baseSeq : -1);
+                seq = Math.max(seq, segment.baseSeq);
+                long index = seq - segment.baseSeq;
+                if (index >= segment.count) {
+                    continue;
+                }
+                int position = segment.index[(int) (index / INDEX_INTERVAL)];
+                for (long skip = index % INDEX_INTERVAL; skip > 0; skip--) {
+                    position += 4 + segment.buffer.getInt(position);
+                }
+                while (entries.size() < limit && seq < segment.baseSeq + segment.count) {
+                    entries.add(segment.decode(position));
+                    position += 4 + segment.buffer.getInt(position);
+                    seq++;
+                }
+            }
+            return entries;
+        }
+
+        // Force segment đang ghi (nền, qua GroupCommit) rồi bỏ mọi mapping của phòng
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (active != null) {
+                MappedByteBuffer buffer = active.buffer;
+                commits.sync(buffer, buffer::force);
+            }
+            for (Segment segment : segments.values()) {
+                segment.unmap();
+            }
+            segments.clear();
+            active = null;
+        }
+    }
+
+    /**
+     * Một file segment. buffer/index được tạo khi cần: segment đang ghi khi mở phòng,
+     * segment cũ khi có người đọc tới.
+     */
+    private static final class Segment {
+        final File file;
+        final long baseSeq;
+        MappedByteBuffer buffer;
+        // Vị trí ghi tiếp theo và số bản ghi hợp lệ
+        int end;
+        long count;
+        int[] index = new int[0];
+
+        Segment(File file, long baseSeq) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+        }
+
+        void mapForWrite(int segmentBytes) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < segmentBytes) {
+                    raf.setLength(segmentBytes); // phần mở rộng là số 0 = hết dữ liệu
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+            scan(-1);
+        }
+
+        // Bỏ tham chiếu tới mapping (Java 21 không gỡ map tường minh được, GC gỡ khi thu buffer)
+        void unmap() {
+            buffer = null;
+            index = new int[0];
+        }
+
+        // expectedCount: số bản ghi biết trước từ seq đầu của segment sau (-1 nếu không biết)
+        void mapForRead(long expectedCount) throws IOException {
+            if (buffer != null) {
+                return;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            scan(expectedCount);
+        }
+
+        // Quét từ đầu tới bản ghi hợp lệ cuối cùng, dựng chỉ mục thưa
+        private void scan(long expectedCount) {
+            end = 0;
+            count = 0;
+            index = new int[16];
+            CRC32 crc = new CRC32();
+            while (end + HEADER <= buffer.capacity() && (expectedCount < 0 || count < expectedCount)) {
+                int length = buffer.getInt(end);
+                if (length < HEADER - 4 || end + 4 + length > buffer.capacity()
+                        || buffer.getLong(end + 8) != baseSeq + count) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.slice(end + 8, length - 4));
+                if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+                    System.err.println("⚠️ Bản ghi hỏng trong " + file.getName() + " tại " + end + ", bỏ phần sau");
+                    break;
+                }
+                addRecord(end);
+                end += 4 + length;
+            }
+        }
+
+        void addRecord(int position) {
+            if (count % INDEX_INTERVAL == 0) {
+                int slot = (int) (count / INDEX_INTERVAL);
+                if (slot == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[slot] = position;
+            }
+            count++;
+        }
+
+        Entry decode(int position) {
+            int length = buffer.getInt(position);
+            long seq = buffer.getLong(position + 8);
+            long time = buffer.getLong(position + 16);
+            int senderLength = buffer.getShort(position + 24);
+            byte[] sender = new byte[senderLength];
+            buffer.get(position + HEADER, sender);
+            byte[] text = new byte[4 + length - HEADER - senderLength];
+            buffer.get(position + HEADER + senderLength, text);
+            return new Entry(seq, time, new String(sender, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.example.mophongskype.server;
+
+import com.example.mophongskype.protocol.LineDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Kết nối client phục vụ bởi một NioTransport.EventLoop.
+ * Parse giao thức dòng text từ ByteBuffer; phần binary sau SEND_FILE/SEND_MEDIA
+ * được ghi thẳng vào uploads/ khi bytes tới, không block event-loop chờ đủ file.
+ */
+public class NioClientConnection extends ClientConnection {
+    private final SocketChannel channel;
+    private final NioTransport.EventLoop loop;
+    private SelectionKey key;
+    private volatile boolean closed = false;
+
+    // Bytes của dòng đang đọc dở (chưa gặp '\n')
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+    // Đang chờ verify LOGIN: ngừng đọc, phần đã đọc sau dòng LOGIN giữ lại để xử lý sau
+    private boolean readPaused = false;
+    private byte[] pausedInput;
+
+    // Trạng thái upload đang nhận; uploadRemaining < 0 nghĩa là không có upload
+    private long uploadRemaining = -1;
+    private String uploadMediaType;
+    private String uploadFileName;
+
+    // Các thao tác ghi đã lấy khỏi hàng đợi nhưng chưa ghi xong (socket non-blocking có thể chỉ nhận một phần)
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private final List<OutboundFrame> batch = new ArrayList<>();
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private volatile boolean slowConsumer = false;
+
+    NioClientConnection(SocketChannel channel, ChatServer server, NioTransport.EventLoop loop) {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    // ===== Đọc =====
+
+    void onReadable(ByteBuffer buffer) {
+        buffer.clear();
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            System.err.println("Lỗi xử lý client: " + e.getMessage());
+            close();
+            return;
+        }
+        if (read == -1) {
+            close();
+            return;
+        }
+        buffer.flip();
+        processInput(buffer);
+    }
+
+    // Tách dòng/upload từ buffer (heap buffer); dừng giữa chừng nếu một lệnh tạm dừng đọc
+    private void processInput(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+            if (readPaused) {
+                pausedInput = new byte[buffer.remaining()];
+                buffer.get(pausedInput);
+                return;
+            }
+            if (uploadRemaining >= 0) {
+                consumeUpload(buffer);
+                continue;
+            }
+            int newline = indexOf(buffer, (byte) '\n');
+            if (newline < 0) {
+                // Chưa hết dòng: giữ lại phần còn lại cho lần đọc sau
+                appendLine(buffer, buffer.limit());
+                break;
+            }
+            String line;
+            if (lineBuffer.size() == 0) {
+                // Trường hợp thường gặp: cả dòng nằm trong buffer, giải mã thẳng không copy
+                line = decodeLine(buffer.array(), buffer.arrayOffset() + buffer.position(), newline - buffer.position());
+                buffer.position(newline);
+            } else {
+                if (!appendLine(buffer, newline)) {
+                    return;
+                }
+                line = takeLine();
+            }
+            buffer.get(); // bỏ '\n'
+            handleMessage(line);
+        }
+    }
+
+    private String takeLine() {
+        byte[] bytes = lineBuffer.toByteArray();
+        lineBuffer.reset();
+        return decodeLine(bytes, 0, bytes.length);
+    }
+
+    // Giải mã UTF-8 một dòng, bỏ '\r' cuối nếu có
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    // Quét trực tiếp trên mảng của buffer (buffer đọc của loop là heap buffer)
+    private static int indexOf(ByteBuffer buffer, byte value) {
+        byte[] array = buffer.array();
+        int base = buffer.arrayOffset();
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (array[base + i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Như LineDecoder: dòng chưa có '\n' quá MAX_LINE_LENGTH bytes là dữ liệu hỏng, đóng kết nối
+    private boolean appendLine(ByteBuffer buffer, int end) {
+        if (lineBuffer.size() + (end - buffer.position()) > LineDecoder.MAX_LINE_LENGTH) {
+            System.err.println("❌ Lỗi xử lý client: Dòng quá dài (> " + LineDecoder.MAX_LINE_LENGTH + " bytes)");
+            close();
+            return false;
+        }
+        appendTo(buffer, end, lineBuffer);
+        return true;
+    }
+
+    private static void appendTo(ByteBuffer buffer, int end, ByteArrayOutputStream target) {
+        int length = end - buffer.position();
+        if (length <= 0) {
+            return;
+        }
+        target.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        buffer.position(end);
+    }
+
+    /**
+     * PBKDF2 tốn hàng chục ms: verify trên pool của server rồi quay lại loop với kết quả. Trong lúc
+     * chờ kết nối ngừng đọc, nên các lệnh gửi ngay sau LOGIN chỉ chạy khi đã có kết quả login.
+     */
+    @Override
+    protected void verifyLogin(String loginName, String password, Consumer<Boolean> done) {
+        pauseReading();
+        server.verifyCredentialsAsync(loginName, password).whenComplete((verified, error) -> loop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            done.accept(error == null && verified);
+            resumeReading();
+        }));
+    }
+
+    // Chỉ chạy trên event-loop; phần còn lại của buffer đang xử lý được giữ trong pausedInput
+    private void pauseReading() {
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    // Chỉ chạy trên event-loop
+    private void resumeReading() {
+        readPaused = false;
+        byte[] input = pausedInput;
+        pausedInput = null;
+        if (input != null) {
+            processInput(ByteBuffer.wrap(input));
+        }
+        if (!readPaused && !closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // ===== Upload =====
+
+    @Override
+    protected void beginUpload(String mediaType, String fileName, long fileSize) {
+        uploadMediaType = mediaType;
+        uploadFileName = fileName;
+        uploadRemaining = fileSize;
+        if (uploadRemaining == 0) {
+            completeUpload();
+        }
+    }
+
+    private void consumeUpload(ByteBuffer buffer) {
+        int chunk = (int) Math.min(buffer.remaining(), uploadRemaining);
+        ByteBuffer slice = buffer.slice(buffer.position(), chunk);
+        buffer.position(buffer.position() + chunk);
+        uploadRemaining -= chunk;
+        // Kho upload ghi vào file tạm trên thread ghi (hoặc chỉ băm nếu nội dung đã có); lỗi ghi làm
+        // upload thất bại lúc xong. Hàng đợi ghi đầy: ngừng đọc socket tới khi đĩa theo kịp
+        if (!writeUpload(slice) && uploadRemaining > 0) {
+            pauseReading();
+            whenUploadDrained(() -> loop.execute(() -> {
+                if (!closed) {
+                    resumeReading();
+                }
+            }));
+        }
+        if (uploadRemaining == 0) {
+            completeUpload();
+        }
+    }
+
+    private void completeUpload() {
+        uploadRemaining = -1;
+        System.out.println("✅ Đã nhận file: " + uploadFileName + " từ " + username);
+        finishUpload(uploadMediaType, uploadFileName, true);
+    }
+
+    // ===== Ghi =====
+
+    @Override
+    protected void onFrameQueued() {
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    @Override
+    protected void disconnectSlowConsumer() {
+        // Đóng trên event-loop, không đóng từ thread của người gửi
+        slowConsumer = true;
+        onFrameQueued();
+    }
+
+    // Chỉ chạy trên event-loop
+    void flushPending() {
+        writeRequested.set(false);
+        if (closed || !key.isValid()) {
+            return;
+        }
+        if (slowConsumer) {
+            close();
+            return;
+        }
+        try {
+            while (true) {
+                if (pendingWrites.isEmpty() && !nextBatch()) {
+                    break;
+                }
+                PendingWrite write = pendingWrites.peekFirst();
+                if (!write.writeTo(channel)) {
+                    if (write.waitingForData()) {
+                        // Upload relay chưa có thêm bytes: relay sẽ gọi onFrameQueued khi có
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    // Socket đầy: chờ OP_WRITE rồi ghi tiếp
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrites.pollFirst().release();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println("Lỗi gửi dữ liệu cho " + username + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Lấy một batch frame khỏi hàng đợi; các frame text liền nhau được gộp thành
+     * một gathering write (channel.write(ByteBuffer[])) duy nhất; file/ảnh đi bằng transferTo.
+     * @return false nếu hàng đợi rỗng
+     */
+    private boolean nextBatch() {
+        if (outbound.pollBatch(batch, server.getWriteBatchSize()) == 0) {
+            return false;
+        }
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (OutboundFrame frame : batch) {
+            if (frame instanceof OutboundFrame.StoredFile stored) {
+                if (!buffers.isEmpty()) {
+                    pendingWrites.addLast(new BufferWrite(buffers.toArray(new ByteBuffer[0])));
+                    buffers.clear();
+                }
+                PendingWrite write = openFile(stored, this::onFrameQueued);
+                if (write != null) {
+                    pendingWrites.addLast(write);
+                }
+            } else {
+                buffers.add(encodeLine(((OutboundFrame.Text) frame).line()));
+            }
+        }
+        if (!buffers.isEmpty()) {
+            pendingWrites.addLast(new BufferWrite(buffers.toArray(new ByteBuffer[0])));
+        }
+        server.getWriteStats().recordFlush(batch.size());
+        batch.clear();
+        return true;
+    }
+
+    // File/ảnh trong uploads/ được transferTo thẳng vào socket; null nếu không có gì để gửi
+    private static PendingWrite openFile(OutboundFrame.StoredFile stored, Runnable wakeUp) {
+        try {
+            FileChannel fileChannel = stored.open();
+            UploadRelay relay = stored.relay();
+            long fileSize = relay != null ? relay.size : fileChannel.size();
+            return new FileWrite(encodeLine(stored.headerLine(fileSize)), fileChannel, stored.startOffset(), stored.endOffset(fileSize), relay, wakeUp);
+        } catch (IOException e) {
+            System.err.println("❌ Không mở được " + stored.file + ": " + e.getMessage());
+            OutboundFrame.Text failure = stored.failure();
+            return failure == null ? null : new BufferWrite(encodeLine(failure.line()));
+        }
+    }
+
+    private static ByteBuffer encodeLine(String message) {
+        return ByteBuffer.wrap(OutboundFrame.encodeLine(message));
+    }
+
+    // Chỉ chạy trên event-loop
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        closeQuietly(channel);
+        if (uploadRemaining >= 0) {
+            System.err.println("⚠️ Stream kết thúc sớm khi nhận file " + uploadFileName);
+        }
+        // Trước outbound.close(): phiên được giữ lấy các frame chưa gửi để phát lại khi nối lại
+        onDisconnected();
+        outbound.close();
+        PendingWrite write;
+        while ((write = pendingWrites.pollFirst()) != null) {
+            write.release();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Một đơn vị ghi có thể ghi dở dang nhiều lần trên socket non-blocking.
+     */
+    private interface PendingWrite {
+        // @return true nếu đã ghi xong toàn bộ
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        // Sau khi writeTo trả false: true nếu đang chờ dữ liệu (không phải chờ socket)
+        default boolean waitingForData() {
+            return false;
+        }
+
+        default void release() {
+        }
+    }
+
+    private static final class BufferWrite implements PendingWrite {
+        private final ByteBuffer[] buffers;
+
+        BufferWrite(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffers);
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Header text + nội dung file gửi bằng FileChannel.transferTo (không copy qua heap)
+    private static final class FileWrite implements PendingWrite {
+        private final ByteBuffer header;
+        private final FileChannel file;
+        private final long size;
+        // Khác null khi file còn đang được upload: chỉ gửi tới phần đã ghi
+        private final UploadRelay relay;
+        private final Runnable wakeUp;
+        private long position;
+        private boolean waiting = false;
+
+        FileWrite(ByteBuffer header, FileChannel file, long start, long size, UploadRelay relay, Runnable wakeUp) {
+            this.header = header;
+            this.file = file;
+            this.position = start;
+            this.size = size;
+            this.relay = relay;
+            this.wakeUp = wakeUp;
+        }
+
+        @Override
+        public boolean waitingForData() {
+            return waiting;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            waiting = false;
+            while (position < size) {
+                // v1 không báo hủy giữa chừng được: relay hủy thì available() ném lỗi và kết nối bị đóng
+                long limit = relay != null ? relay.available() : size;
+                if (position >= limit) {
+                    waiting = true;
+                    relay.whenAvailable(position, wakeUp);
+                    return false;
+                }
+                long sent = file.transferTo(position, limit - position, channel);
+                if (sent <= 0) {
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            closeQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.mophongskype.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Transport dựa trên java.nio: một thread accept và một nhóm nhỏ event-loop cố định,
+ * mỗi loop có Selector riêng và phục vụ nhiều kết nối cùng lúc.
+ * Dùng thay cho mô hình một platform thread cho mỗi socket khi có hàng nghìn user.
+ */
+public class NioTransport {
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean isRunning = false;
+
+    public NioTransport(ChatServer server, int port, int eventLoopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Mở port, khởi động các event-loop rồi chạy vòng accept trên thread hiện tại
+     * (block giống ChatServer.start() ở chế độ blocking).
+     */
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server, "nio-loop-" + i);
+            loops[i].start();
+        }
+        isRunning = true;
+        System.out.println("Server (NIO, " + loops.length + " event-loop) đang chạy trên port " + port);
+
+        int next = 0;
+        try {
+            while (isRunning) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // Chia đều kết nối cho các loop theo round-robin
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // stop() đã đóng serverChannel
+        } finally {
+            shutdownLoops();
+        }
+    }
+
+    public void stop() {
+        isRunning = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Lỗi khi đóng server: " + e.getMessage());
+        }
+        shutdownLoops();
+    }
+
+    private void shutdownLoops() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Một thread + một Selector. Mọi thao tác đọc/ghi trên các kết nối của loop
+     * đều chạy trên thread này; thread khác chỉ xếp việc vào hàng đợi rồi wakeup().
+     */
+    static final class EventLoop implements Runnable {
+        private final ChatServer server;
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Việc thread khác giao lại cho loop (ví dụ kết quả verify login)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Buffer đọc dùng chung cho mọi kết nối của loop, kết nối idle không giữ buffer riêng.
+        // Heap buffer để quét '\n' và giải mã dòng ngay trên mảng, không copy ra byte[] tạm
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private volatile boolean isRunning = true;
+
+        EventLoop(ChatServer server, String name) throws IOException {
+            this.server = server;
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioClientConnection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        // Chạy task trên thread của loop ở vòng kế tiếp
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            isRunning = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    // Ghi các kết nối được yêu cầu từ chính loop này trước khi block
+                    processPendingWrites();
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow(); // task do chính loop xếp: execute không wakeup selector
+                    }
+                    registerNewChannels();
+                    runTasks();
+                    processPendingWrites();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientConnection connection = (NioClientConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushPending();
+                            }
+                        } catch (RuntimeException e) {
+                            closeAfterError(connection, e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (isRunning) {
+                    System.err.println("Lỗi event-loop " + thread.getName() + ": " + e.getMessage());
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    NioClientConnection connection = new NioClientConnection(channel, server, this);
+                    connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    System.err.println("Lỗi đăng ký kết nối: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("❌ Lỗi task trên " + thread.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void processPendingWrites() {
+            NioClientConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.flushPending();
+                } catch (RuntimeException e) {
+                    closeAfterError(connection, e);
+                }
+            }
+        }
+
+        // Lỗi của một kết nối chỉ đóng kết nối đó, loop vẫn phục vụ các kết nối còn lại
+        private void closeAfterError(NioClientConnection connection, RuntimeException error) {
+            System.err.println("❌ Lỗi xử lý client trên " + thread.getName() + ": " + error);
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                System.err.println("❌ Lỗi đóng kết nối trên " + thread.getName() + ": " + e);
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioClientConnection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
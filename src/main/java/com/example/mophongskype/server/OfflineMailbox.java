@@ -0,0 +1,267 @@
+package com.example.mophongskype.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import com.example.mophongskype.protocol.GroupCommit;
+
+/**
+ * Hộp thư tin nhắn riêng cho user đang offline: mailbox/&lt;hex(username)&gt;.box, mỗi bản ghi
+ * length(int) | time(long) | senderLen(short) | sender | text (UTF-8). Khi user login, cả hộp
+ * thư được đọc, xóa và giao một lượt.
+ * <p>
+ * Mọi thao tác chạy trên một thread ghi riêng theo thứ tự gửi tới. Thread này lấy hết các tin
+ * đang chờ, ghi gộp theo từng file rồi đồng bộ mỗi file một lần qua GroupCommit, sau đó mới báo
+ * kết quả cho người gửi: DM dồn dập chỉ tốn một fsync mỗi lượt ghi thay vì mỗi tin.
+ * Mỗi hộp thư giới hạn maxBytesPerUser; đầy thì tin mới bị từ chối.
+ */
+final class OfflineMailbox {
+    private static final int RECORD_HEADER = 8 + 2;
+
+    /**
+     * Một tin nhắn nằm trong hộp thư.
+     */
+    static final class Letter {
+        final long time;
+        final String sender;
+        final String text;
+
+        Letter(long time, String sender, String text) {
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    // Tin cần lưu; stored nhận true khi đã xuống đĩa, false nếu hộp thư đầy hoặc lỗi ghi
+    private static final class Store {
+        final String receiver;
+        final Letter letter;
+        final Consumer<Boolean> stored;
+
+        Store(String receiver, Letter letter, Consumer<Boolean> stored) {
+            this.receiver = receiver;
+            this.letter = letter;
+            this.stored = stored;
+        }
+    }
+
+    private static final class Drain {
+        final String receiver;
+        final Consumer<List<Letter>> delivered;
+
+        Drain(String receiver, Consumer<List<Letter>> delivered) {
+            this.receiver = receiver;
+            this.delivered = delivered;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytesPerUser;
+    private final GroupCommit commits;
+    private final BlockingQueue<Object> requests = new LinkedBlockingQueue<>();
+    // Chỉ thread ghi đọc/sửa: số bytes đã dùng của từng hộp thư (tính lại từ file khi chạm lần đầu)
+    private final Map<String, Long> usedBytes = new HashMap<>();
+    private final Thread writer;
+
+    OfflineMailbox(File dir, long maxBytesPerUser, GroupCommit commits) {
+        this.dir = dir;
+        this.maxBytesPerUser = maxBytesPerUser;
+        this.commits = commits;
+        this.writer = Thread.ofPlatform().daemon().name("mailbox-writer").start(this::run);
+    }
+
+    /**
+     * Xếp tin vào hộp thư của receiver. stored được gọi trên thread ghi sau khi tin đã xuống đĩa
+     * (true) hoặc bị từ chối (false).
+     */
+    void store(String receiver, String sender, String text, Consumer<Boolean> stored) {
+        requests.add(new Store(receiver, new Letter(System.currentTimeMillis(), sender, text), stored));
+    }
+
+    /**
+     * Lấy và xóa toàn bộ hộp thư của receiver. Chạy sau mọi store đã gửi trước đó, delivered được
+     * gọi trên thread ghi (danh sách rỗng nếu không có gì).
+     */
+    void drain(String receiver, Consumer<List<Letter>> delivered) {
+        requests.add(new Drain(receiver, delivered));
+    }
+
+    void stop() {
+        writer.interrupt();
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(requests.take());
+                requests.drainTo(batch);
+                process(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Server dừng: các tin chưa ghi coi như chưa gửi (người gửi chưa được báo đã lưu)
+        }
+    }
+
+    private void process(List<Object> batch) {
+        // receiver -> các bản ghi chờ ghi trong lượt này, cùng callback tương ứng
+        Map<String, ByteArrayOutputStream> pending = new LinkedHashMap<>();
+        Map<String, List<Store>> waiting = new HashMap<>();
+        List<Runnable> results = new ArrayList<>();
+        for (Object request : batch) {
+            if (request instanceof Store) {
+                Store store = (Store) request;
+                byte[] record = encode(store.letter);
+                long used = usedBytes(store.receiver);
+                if (used + record.length > maxBytesPerUser) {
+                    results.add(() -> store.stored.accept(false));
+                    continue;
+                }
+                usedBytes.put(store.receiver, used + record.length);
+                pending.computeIfAbsent(store.receiver, key -> new ByteArrayOutputStream()).writeBytes(record);
+                waiting.computeIfAbsent(store.receiver, key -> new ArrayList<>()).add(store);
+            } else {
+                Drain drain = (Drain) request;
+                // Tin chưa xuống đĩa của người này giao thẳng luôn, không cần ghi rồi đọc lại
+                List<Letter> letters = readAndDelete(drain.receiver);
+                ByteArrayOutputStream unwritten = pending.remove(drain.receiver);
+                if (unwritten != null) {
+                    letters.addAll(decode(unwritten.toByteArray()));
+                }
+                for (Store store : waiting.getOrDefault(drain.receiver, List.of())) {
+                    results.add(() -> store.stored.accept(true));
+                }
+                waiting.remove(drain.receiver);
+                usedBytes.remove(drain.receiver);
+                results.add(() -> drain.delivered.accept(letters));
+            }
+        }
+        for (Runnable result : results) {
+            report(result);
+        }
+        // Ghi hết các file trước, rồi mới chờ: các fsync của lượt này được gom chung
+        for (Map.Entry<String, ByteArrayOutputStream> entry : pending.entrySet()) {
+            List<Store> stores = waiting.get(entry.getKey());
+            append(entry.getKey(), entry.getValue().toByteArray()).whenComplete((ignored, error) -> {
+                for (Store store : stores) {
+                    report(() -> store.stored.accept(error == null));
+                }
+            });
+        }
+    }
+
+    private static void report(Runnable result) {
+        try {
+            result.run();
+        } catch (RuntimeException e) {
+            System.err.println("❌ Lỗi xử lý hộp thư: " + e.getMessage());
+        }
+    }
+
+    private File boxFile(String receiver) {
+        return new File(dir, HexFormat.of().formatHex(receiver.getBytes(StandardCharsets.UTF_8)) + ".box");
+    }
+
+    private long usedBytes(String receiver) {
+        return usedBytes.computeIfAbsent(receiver, key -> boxFile(key).length());
+    }
+
+    // Ghi nối vào hộp thư, đồng bộ một lần cho cả nhóm bản ghi; file đóng khi đồng bộ xong
+    private CompletableFuture<Void> append(String receiver, byte[] records) {
+        File file = boxFile(receiver);
+        FileChannel channel = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Không tạo được " + dir);
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi ghi hộp thư của " + receiver + ": " + e.getMessage());
+            usedBytes.remove(receiver); // tính lại từ độ dài file thật ở lần sau
+            closeQuietly(channel);
+            return CompletableFuture.failedFuture(e);
+        }
+        FileChannel written = channel;
+        return commits.sync(written).whenComplete((ignored, error) -> {
+            if (error != null) {
+                System.err.println("❌ Lỗi đồng bộ hộp thư của " + receiver + ": " + error.getMessage());
+            }
+            closeQuietly(written);
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private List<Letter> readAndDelete(String receiver) {
+        File file = boxFile(receiver);
+        if (!file.isFile()) {
+            return new ArrayList<>();
+        }
+        try {
+            List<Letter> letters = decode(Files.readAllBytes(file.toPath()));
+            Files.delete(file.toPath());
+            return letters;
+        } catch (IOException e) {
+            System.err.println("❌ Lỗi đọc hộp thư của " + receiver + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private static byte[] encode(Letter letter) {
+        byte[] sender = letter.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = letter.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + RECORD_HEADER + sender.length + text.length);
+        buffer.putInt(RECORD_HEADER + sender.length + text.length);
+        buffer.putLong(letter.time);
+        buffer.putShort((short) sender.length);
+        buffer.put(sender);
+        buffer.put(text);
+        return buffer.array();
+    }
+
+    // Bản ghi cuối ghi dở (tắt đột ngột giữa lúc ghi) bị bỏ qua
+    private static List<Letter> decode(byte[] data) {
+        List<Letter> letters = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.remaining() >= 4 + RECORD_HEADER) {
+            int length = buffer.getInt();
+            if (length < RECORD_HEADER || length > buffer.remaining()) {
+                break;
+            }
+            long time = buffer.getLong();
+            int senderLength = buffer.getShort() & 0xFFFF;
+            if (senderLength > length - RECORD_HEADER) {
+                break;
+            }
+            byte[] sender = new byte[senderLength];
+            buffer.get(sender);
+            byte[] text = new byte[length - RECORD_HEADER - senderLength];
+            buffer.get(text);
+            letters.add(new Letter(time, new String(sender, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8)));
+        }
+        return letters;
+    }
+}
@@ -0,0 +1,448 @@
+package com.example.mophongskype.server;
+
+import com.example.mophongskype.protocol.FrameCodec;
+import com.example.mophongskype.protocol.Opcode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Một đơn vị dữ liệu gửi xuống client. Nằm trong hàng đợi outbound của ClientHandler
+ * và chỉ được ghi ra socket bởi writer của chính kết nối đó, nên người gửi
+ * (thường là thread của user khác) không bao giờ phải chờ socket của người nhận.
+ */
+abstract class OutboundFrame {
+    // Phân loại để OutboundQueue biết frame nào được phép bỏ/gộp khi đầy
+    enum Kind { CHAT, USERLIST, CONTROL }
+
+    // Ghi theo giao thức text (v1)
+    abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Ghi theo giao thức frame nhị phân (v2).
+     * @param streamId stream id writer cấp cho frame có phần binary (ảnh, file)
+     */
+    abstract void writeV2(OutputStream out, int streamId) throws IOException;
+
+    /**
+     * Writer v2 gọi sau mỗi CHUNK của một file để chen các frame lệnh đang chờ.
+     */
+    interface ChunkListener {
+        void afterChunk() throws IOException;
+    }
+
+    Kind kind() {
+        return Kind.CONTROL;
+    }
+
+    // Dòng text v1 có sẵn: phần trước ':' đầu tiên là lệnh, phần còn lại là một field
+    static OutboundFrame text(String line) {
+        int colon = line.indexOf(':');
+        return colon < 0 ? new Text(line) : new Text(line.substring(0, colon), line.substring(colon + 1));
+    }
+
+    // Lệnh với các field tách riêng, ví dụ command("MESSAGE", sender, message)
+    static OutboundFrame command(String command, String... fields) {
+        return new Text(command, fields);
+    }
+
+    // IMAGE_DATA:sender:fileName:size + [bytes]; một frame dùng chung cho mọi người nhận,
+    // bytes được đọc thẳng từ file đã lưu lúc ghi
+    static OutboundFrame image(String sender, String fileName, File imageFile) {
+        return new Image(sender, fileName, imageFile);
+    }
+
+    // FILE_DATA:fileName:size + [bytes], đọc từ kho upload ngay lúc ghi
+    static OutboundFrame file(String fileName, File file, String receiver) {
+        return new FileBody(fileName, file, receiver, null, -1, -1);
+    }
+
+    // FILE_RANGE:fileName:start:size + [bytes từ start], client tải tiếp phần còn thiếu
+    static OutboundFrame fileRange(String fileName, File file, String receiver, long start) {
+        return new FileBody(fileName, file, receiver, null, start, -1);
+    }
+
+    // FILE_SLICE:fileName:start:end + [bytes start..end), một đoạn của tải song song (FETCH)
+    static OutboundFrame fileSlice(String fileName, File file, String receiver, long start, long end) {
+        return new FileBody(fileName, file, receiver, null, start, end);
+    }
+
+    // Như file() nhưng đọc đuổi theo upload đang nhận; header khai báo kích thước cuối cùng
+    static OutboundFrame relayedFile(UploadRelay relay, String receiver) {
+        return new FileBody(relay.fileName, relay.file, receiver, relay, -1, -1);
+    }
+
+    static byte[] encodeLine(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class Text extends OutboundFrame {
+        // Các lệnh đã cảnh báo thiếu opcode (mỗi lệnh chỉ log một lần)
+        private static final Set<String> UNMAPPED_COMMANDS = ConcurrentHashMap.newKeySet();
+
+        final String command;
+        final String[] fields;
+
+        Text(String command, String... fields) {
+            this.command = command;
+            this.fields = fields;
+        }
+
+        // Dạng dòng text v1: COMMAND:field1:field2...
+        String line() {
+            if (fields.length == 0) {
+                return command;
+            }
+            return command + ":" + String.join(":", fields);
+        }
+
+        @Override
+        Kind kind() {
+            switch (command) {
+                // Tin chat (phòng, riêng): được bỏ tin cũ nhất khi hàng đợi đầy
+                case "MESSAGE":
+                case "ROOM_MESSAGE":
+                case "PRIVATE":
+                    return Kind.CHAT;
+                case "USERLIST":
+                    return Kind.USERLIST;
+                default:
+                    return Kind.CONTROL;
+            }
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            out.write(encodeLine(line()));
+        }
+
+        @Override
+        void writeV2(OutputStream out, int streamId) throws IOException {
+            Opcode opcode = Opcode.fromName(command);
+            if (opcode != null) {
+                FrameCodec.writeFrame(out, opcode, 0, fields);
+                return;
+            }
+            // Lệnh chưa có opcode: vẫn gửi dưới dạng COMMAND thay vì lặng lẽ bỏ với client v2
+            if (UNMAPPED_COMMANDS.add(command)) {
+                System.err.println("⚠️ Lệnh " + command + " chưa có opcode v2, gửi dạng COMMAND");
+            }
+            String[] commandFields = new String[fields.length + 1];
+            commandFields[0] = command;
+            System.arraycopy(fields, 0, commandFields, 1, fields.length);
+            FrameCodec.writeFrame(out, Opcode.COMMAND, 0, commandFields);
+        }
+    }
+
+    /**
+     * Trả lời "PROTOCOL_OK:2" bằng text; mọi frame sau nó được writer ghi theo v2.
+     * Đi qua hàng đợi để các frame xếp trước đó vẫn được ghi bằng text.
+     */
+    static final class ProtocolSwitch extends Text {
+        ProtocolSwitch() {
+            super("PROTOCOL_OK", String.valueOf(FrameCodec.VERSION));
+        }
+
+        @Override
+        void writeV2(OutputStream out, int streamId) throws IOException {
+            writeTo(out);
+        }
+    }
+
+    /**
+     * Frame có phần thân là một file đã lưu trong uploads/. Không giữ bytes trên heap:
+     * file chỉ được mở khi writer của từng người nhận ghi tới frame, nên một frame dùng
+     * chung cho cả phòng không nhân bản dữ liệu theo số người nhận.
+     */
+    abstract static class StoredFile extends OutboundFrame {
+        // Chờ relay tối đa chừng này mỗi lần để tin nhắn chen giữa không bị giữ lại
+        private static final long RELAY_POLL_NANOS = 50_000_000L;
+
+        final File file;
+
+        StoredFile(File file) {
+            this.file = file;
+        }
+
+        // Header v1, ví dụ FILE_DATA:fileName:size
+        abstract String headerLine(long fileSize);
+
+        abstract void writeHeaderV2(OutputStream out, int streamId, long fileSize) throws IOException;
+
+        // Frame báo lỗi khi không mở được file; null nếu chỉ cần bỏ qua
+        abstract Text failure();
+
+        void onSent(long sent, long fileSize) {
+        }
+
+        // Upload đang nhận mà frame này đọc đuổi theo; null nếu file đã lưu xong
+        UploadRelay relay() {
+            return null;
+        }
+
+        // Offset bắt đầu gửi phần thân (khác 0 khi client tải tiếp)
+        long startOffset() {
+            return 0;
+        }
+
+        // Offset dừng gửi (không gồm), mặc định hết file
+        long endOffset(long fileSize) {
+            return fileSize;
+        }
+
+        FileChannel open() throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            transfer(out, null, 0, null);
+        }
+
+        @Override
+        void writeV2(OutputStream out, int streamId) throws IOException {
+            transfer(out, null, streamId, null);
+        }
+
+        /**
+         * Gửi file không qua heap: header ghi qua out, phần thân được FileChannel.transferTo
+         * (sendfile) đẩy thẳng từ page cache vào socket.
+         * @param socket channel của socket, null thì copy qua một buffer nhỏ của writer
+         * @param streamId 0 để ghi theo v1, khác 0 để ghi header + các CHUNK v2
+         * @param listener v2: được gọi sau mỗi CHUNK (null nếu không chen frame nào)
+         */
+        void transferTo(OutputStream out, WritableByteChannel socket, int streamId, ChunkListener listener) throws IOException {
+            transfer(out, socket, streamId, listener);
+        }
+
+        private void transfer(OutputStream out, WritableByteChannel socket, int streamId, ChunkListener listener) throws IOException {
+            // v1 không chia được phần thân nên không có chỗ chen frame khác
+            ChunkListener between = streamId != 0 ? listener : null;
+            FileChannel fileChannel;
+            try {
+                fileChannel = open();
+            } catch (IOException e) {
+                System.err.println("❌ Không mở được " + file + ": " + e.getMessage());
+                Text failure = failure();
+                if (failure != null) {
+                    if (streamId == 0) {
+                        failure.writeTo(out);
+                    } else {
+                        failure.writeV2(out, 0);
+                    }
+                }
+                return;
+            }
+            UploadRelay relay = relay();
+            try (fileChannel) {
+                long fileSize = relay != null ? relay.size : fileChannel.size();
+                if (streamId == 0) {
+                    out.write(encodeLine(headerLine(fileSize)));
+                } else {
+                    writeHeaderV2(out, streamId, fileSize);
+                }
+                byte[] buffer = socket == null ? new byte[(int) Math.min(FrameCodec.CHUNK_SIZE, Math.max(fileSize, 1))] : null;
+                long position = startOffset();
+                long end = endOffset(fileSize);
+                while (position < end) {
+                    long length = end - position;
+                    if (relay != null) {
+                        out.flush(); // phần đã có phải tới người nhận trước khi chờ thêm
+                        try {
+                            length = relay.awaitAvailable(position, between != null ? RELAY_POLL_NANOS : Long.MAX_VALUE) - position;
+                        } catch (InterruptedIOException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            abortRelay(out, streamId, e);
+                            return;
+                        }
+                        if (length <= 0) {
+                            between.afterChunk(); // chưa có dữ liệu mới: gửi tin nhắn đang chờ
+                            continue;
+                        }
+                    }
+                    if (streamId != 0) {
+                        length = Math.min(length, FrameCodec.CHUNK_SIZE);
+                        FrameCodec.writeChunkHeader(out, streamId, (int) length);
+                    }
+                    if (socket != null) {
+                        out.flush(); // header phải ra socket trước phần thân
+                        transferFully(fileChannel, position, length, socket);
+                    } else {
+                        copyFully(fileChannel, position, length, out, buffer);
+                    }
+                    position += length;
+                    if (between != null) {
+                        between.afterChunk();
+                    }
+                }
+                onSent(position, fileSize);
+            }
+        }
+
+        /**
+         * Người gửi bỏ dở upload khi người nhận đã nhận header. v2: báo FILE_FAILED cùng stream id
+         * để client bỏ transfer mà không lệch frame; v1 không có cách báo giữa chừng nên
+         * ném lỗi để writer đóng kết nối (client sẽ kết nối lại).
+         */
+        private void abortRelay(OutputStream out, int streamId, IOException cause) throws IOException {
+            if (streamId == 0) {
+                throw cause;
+            }
+            Text failure = failure();
+            FrameCodec.writeFrame(out, Opcode.FILE_FAILED, streamId, failure != null ? failure.fields : new String[0]);
+            System.err.println("⚠️ " + cause.getMessage() + ", đã báo hủy cho người nhận");
+        }
+
+        private static void transferFully(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            ByteBuffer fallback = null;
+            while (position < end) {
+                long sent = source.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    // Socket của virtual thread bên dưới là non-blocking nên sendfile trả 0 khi
+                    // buffer gửi đầy: ghi một đoạn bằng write() (park tới khi gửi xong) rồi thử lại
+                    if (fallback == null) {
+                        fallback = ByteBuffer.allocate(FrameCodec.CHUNK_SIZE);
+                    }
+                    sent = writeThrough(source, position, end - position, target, fallback);
+                }
+                position += sent;
+            }
+        }
+
+        private static int writeThrough(FileChannel source, long position, long count, WritableByteChannel target,
+                                        ByteBuffer buffer) throws IOException {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+            int read = source.read(buffer, position);
+            if (read <= 0) {
+                // Header đã hứa đủ kích thước nên không thể gửi thiếu: để writer ngắt kết nối
+                throw new EOFException("File bị cắt ngắn khi đang gửi");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return read;
+        }
+
+        private static void copyFully(FileChannel source, long position, long count, OutputStream out, byte[] buffer) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+                int read = source.read(target, position);
+                if (read <= 0) {
+                    throw new EOFException("File bị cắt ngắn khi đang gửi");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    static final class Image extends StoredFile {
+        final String sender;
+        final String fileName;
+
+        Image(String sender, String fileName, File imageFile) {
+            super(imageFile);
+            this.sender = sender;
+            this.fileName = fileName;
+        }
+
+        @Override
+        String headerLine(long fileSize) {
+            return "IMAGE_DATA:" + sender + ":" + fileName + ":" + fileSize;
+        }
+
+        @Override
+        void writeHeaderV2(OutputStream out, int streamId, long fileSize) throws IOException {
+            FrameCodec.writeFrame(out, Opcode.IMAGE_DATA, streamId, sender, fileName, String.valueOf(fileSize));
+        }
+
+        @Override
+        Text failure() {
+            return null; // ảnh inline: người nhận vẫn thấy thông báo SYSTEM
+        }
+    }
+
+    static final class FileBody extends StoredFile {
+        final String fileName;
+        final String receiver;
+        final UploadRelay relay;
+        // -1: gửi cả file (FILE_DATA); >= 0: chỉ gửi từ offset này (FILE_RANGE)
+        final long rangeStart;
+        // >= 0: dừng ở offset này (FILE_SLICE), -1: tới hết file
+        final long rangeEnd;
+
+        FileBody(String fileName, File file, String receiver, UploadRelay relay, long rangeStart, long rangeEnd) {
+            super(file);
+            this.fileName = fileName;
+            this.receiver = receiver;
+            this.relay = relay;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+        }
+
+        @Override
+        UploadRelay relay() {
+            return relay;
+        }
+
+        @Override
+        long startOffset() {
+            return Math.max(rangeStart, 0);
+        }
+
+        @Override
+        long endOffset(long fileSize) {
+            return rangeEnd >= 0 ? Math.min(rangeEnd, fileSize) : fileSize;
+        }
+
+        @Override
+        FileChannel open() throws IOException {
+            return relay != null ? relay.open() : super.open();
+        }
+
+        @Override
+        String headerLine(long fileSize) {
+            if (rangeEnd >= 0) {
+                return "FILE_SLICE:" + fileName + ":" + rangeStart + ":" + endOffset(fileSize);
+            }
+            if (rangeStart >= 0) {
+                return "FILE_RANGE:" + fileName + ":" + rangeStart + ":" + fileSize;
+            }
+            return "FILE_DATA:" + fileName + ":" + fileSize;
+        }
+
+        @Override
+        void writeHeaderV2(OutputStream out, int streamId, long fileSize) throws IOException {
+            if (rangeEnd >= 0) {
+                FrameCodec.writeFrame(out, Opcode.FILE_SLICE, streamId, fileName, String.valueOf(rangeStart),
+                        String.valueOf(endOffset(fileSize)));
+            } else if (rangeStart >= 0) {
+                FrameCodec.writeFrame(out, Opcode.FILE_RANGE, streamId, fileName, String.valueOf(rangeStart), String.valueOf(fileSize));
+            } else {
+                FrameCodec.writeFrame(out, Opcode.FILE_DATA, streamId, fileName, String.valueOf(fileSize));
+            }
+        }
+
+        @Override
+        Text failure() {
+            return new Text("FILE_FAILED", fileName);
+        }
+
+        @Override
+        void onSent(long sent, long fileSize) {
+            String range = rangeEnd >= 0 ? ", đoạn " + rangeStart + "-" + rangeEnd
+                    : rangeStart > 0 ? ", tiếp từ " + rangeStart : "";
+            System.out.println("✅ Đã gửi file " + fileName + " (" + sent + "/" + fileSize + " bytes" + range + ") đến " + receiver);
+        }
+    }
+}
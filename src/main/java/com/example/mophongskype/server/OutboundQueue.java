@@ -0,0 +1,211 @@
+package com.example.mophongskype.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hàng đợi gửi có giới hạn của một kết nối. Khi client đọc chậm và hàng đợi đầy,
+ * áp dụng OverflowPolicy thay vì để bộ nhớ server phình ra vì một client.
+ * Producer là bất kỳ thread nào; consumer là writer (blocking) hoặc event-loop (NIO).
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        // Bỏ dòng chat (MESSAGE) cũ nhất để nhường chỗ
+        DROP_OLDEST,
+        // Như DROP_OLDEST, và USERLIST mới luôn thay thế USERLIST cũ còn đang chờ
+        COALESCE_USERLIST,
+        // Ngắt kết nối client quá chậm
+        DISCONNECT
+    }
+
+    private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+    // Sau closeInto: nơi nhận các frame xếp vào hàng đợi đã đóng (thay vì bỏ đi)
+    private Consumer<OutboundFrame> redirect;
+    private long droppedFrames = 0;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * @return false nếu hàng đợi đầy và client phải bị ngắt kết nối
+     */
+    boolean offer(OutboundFrame frame) {
+        Consumer<OutboundFrame> target;
+        lock.lock();
+        try {
+            if (!closed) {
+                return append(frame);
+            }
+            target = redirect;
+        } finally {
+            lock.unlock();
+        }
+        // Gọi ngoài lock: redirect có thể khóa thứ khác (phiên chờ nối lại)
+        if (target != null) {
+            target.accept(frame);
+        }
+        return true;
+    }
+
+    // Gọi khi giữ lock
+    private boolean append(OutboundFrame frame) {
+        if (policy == OverflowPolicy.COALESCE_USERLIST && frame.kind() == OutboundFrame.Kind.USERLIST) {
+            // Danh sách user cũ đã lỗi thời, chỉ giữ bản mới nhất
+            if (removeOldest(OutboundFrame.Kind.USERLIST)) {
+                droppedFrames++;
+            }
+        }
+        if (frames.size() >= capacity) {
+            if (policy == OverflowPolicy.DISCONNECT || !removeOldest(OutboundFrame.Kind.CHAT)) {
+                return false;
+            }
+            droppedFrames++;
+        }
+        frames.addLast(frame);
+        notEmpty.signal();
+        return true;
+    }
+
+    private boolean removeOldest(OutboundFrame.Kind kind) {
+        Iterator<OutboundFrame> it = frames.iterator();
+        while (it.hasNext()) {
+            if (it.next().kind() == kind) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chờ frame đầu tiên rồi lấy tối đa maxFrames frame vào batch để ghi trong một lần flush.
+     * Nếu maxDelayNanos > 0 và batch chưa đầy, chờ thêm tối đa chừng đó để gom frame tới sau.
+     * @return false nếu hàng đợi đã đóng
+     */
+    boolean takeBatch(List<OutboundFrame> batch, int maxFrames, long maxDelayNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            long deadline = System.nanoTime() + maxDelayNanos;
+            while (!closed) {
+                while (batch.size() < maxFrames && !frames.isEmpty()) {
+                    batch.add(frames.pollFirst());
+                }
+                long remaining = deadline - System.nanoTime();
+                if (batch.size() >= maxFrames || remaining <= 0) {
+                    break;
+                }
+                notEmpty.awaitNanos(remaining);
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Không chờ: lấy tối đa maxFrames frame đang có; trả về số frame lấy được
+    int pollBatch(List<OutboundFrame> batch, int maxFrames) {
+        lock.lock();
+        try {
+            int count = 0;
+            while (!closed && count < maxFrames && !frames.isEmpty()) {
+                batch.add(frames.pollFirst());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Không chờ: lấy tối đa maxFrames frame lệnh (chat, USERLIST, điều khiển) ở bất kỳ vị trí
+     * nào, vượt lên trước các frame file đang chờ. Writer v2 gọi giữa các CHUNK của một file
+     * để tin nhắn không phải xếp sau cả file.
+     */
+    int pollText(List<OutboundFrame> batch, int maxFrames) {
+        lock.lock();
+        try {
+            int count = 0;
+            Iterator<OutboundFrame> it = frames.iterator();
+            while (!closed && count < maxFrames && it.hasNext()) {
+                OutboundFrame frame = it.next();
+                if (frame instanceof OutboundFrame.Text) {
+                    it.remove();
+                    batch.add(frame);
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Đóng hàng đợi, bỏ các frame còn lại và đánh thức writer
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đóng hàng đợi (writer thoát) nhưng không bỏ frame: trả về các frame đang chờ theo thứ tự,
+     * và mọi frame xếp vào sau đó được chuyển thẳng cho sink. Dùng khi kết nối rớt nhưng phiên
+     * còn chờ client nối lại.
+     */
+    List<OutboundFrame> closeInto(Consumer<OutboundFrame> sink) {
+        lock.lock();
+        try {
+            List<OutboundFrame> pending = new ArrayList<>(frames);
+            closed = true;
+            redirect = sink;
+            frames.clear();
+            notEmpty.signalAll();
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.mophongskype.server;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gom thay đổi presence trong một cửa sổ ngắn (-Dchat.presence.window.ms, 0 = gửi ngay).
+ * Mỗi lần flush so danh sách online với danh sách đã công bố: client cũ nhận đúng một
+ * PRESENCE:version:joined:left, người vừa login nhận một USERLIST:users:version, mọi người
+ * nhận một dòng SYSTEM gộp. Login/logout hàng loạt vì thế chỉ tốn vài frame mỗi client
+ * cho mỗi cửa sổ thay vì một frame cho từng người vào/ra.
+ */
+final class PresenceBatcher {
+    // Số tên tối đa liệt kê trong dòng SYSTEM, còn lại ghi "và N người khác"
+    private static final int MAX_NAMES_IN_NOTICE = 10;
+
+    private final Map<String, ClientConnection> online;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+    // Chỉ giữ khi tính delta + xếp frame vào hàng đợi (không ghi socket),
+    // để mọi client nhận các thay đổi theo đúng thứ tự version
+    private final ReentrantLock lock = new ReentrantLock();
+    private long version = 0;
+    // Danh sách ứng với version hiện tại (client đã/đang được báo)
+    private Set<String> published = new LinkedHashSet<>();
+    // Kết nối vừa login, chờ nhận danh sách đầy đủ ở lần flush tới
+    private final List<ClientConnection> newcomers = new ArrayList<>();
+    // User bị admin xóa trong cửa sổ này (báo "bị xóa" thay vì "rời khỏi")
+    private final Set<String> removed = new HashSet<>();
+    private boolean flushScheduled = false;
+
+    PresenceBatcher(Map<String, ClientConnection> online, long windowMillis) {
+        this.online = online;
+        this.windowMillis = windowMillis;
+        this.scheduler = windowMillis > 0
+                ? Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("presence-flush").factory())
+                : null;
+    }
+
+    // Gọi sau khi connection đã vào danh sách online
+    void joined(ClientConnection connection) {
+        lock.lock();
+        try {
+            newcomers.add(connection);
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gọi sau khi username đã ra khỏi danh sách online
+    void left(String username, boolean removedByAdmin) {
+        lock.lock();
+        try {
+            if (removedByAdmin) {
+                removed.add(username);
+            }
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Danh sách đầy đủ cho một client (GET_USERLIST khi client thấy version bị hụt)
+    void sendSnapshot(ClientConnection connection) {
+        lock.lock();
+        try {
+            connection.enqueue(snapshot());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (scheduler == null) {
+            flush();
+        } else if (!flushScheduled && !scheduler.isShutdown()) { // đã shutdown: server đang dừng
+            flushScheduled = true;
+            scheduler.schedule(this::flushScheduled, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushScheduled() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            flush();
+        } catch (RuntimeException e) {
+            System.err.println("❌ Lỗi gửi presence: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gọi khi giữ lock. Người login rồi logout trong cùng cửa sổ (hoặc ngược lại) triệt tiêu nhau
+    private void flush() {
+        Set<String> current = new LinkedHashSet<>(online.keySet());
+        List<String> joinedNames = new ArrayList<>();
+        for (String name : current) {
+            if (!published.contains(name)) {
+                joinedNames.add(name);
+            }
+        }
+        List<String> leftNames = new ArrayList<>();
+        List<String> removedNames = new ArrayList<>();
+        for (String name : published) {
+            if (!current.contains(name)) {
+                (removed.contains(name) ? removedNames : leftNames).add(name);
+            }
+        }
+        removed.clear();
+
+        Set<ClientConnection> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ClientConnection connection : newcomers) {
+            if (online.get(connection.getUsername()) == connection) {
+                fresh.add(connection);
+            }
+        }
+        newcomers.clear();
+
+        boolean changed = !joinedNames.isEmpty() || !leftNames.isEmpty() || !removedNames.isEmpty();
+        if (changed) {
+            version++;
+            published = current;
+        }
+        OutboundFrame userList = fresh.isEmpty() ? null : snapshot();
+        OutboundFrame delta = null;
+        if (changed) {
+            List<String> gone = new ArrayList<>(leftNames);
+            gone.addAll(removedNames);
+            delta = OutboundFrame.command("PRESENCE", String.valueOf(version),
+                    String.join(",", joinedNames), String.join(",", gone));
+        }
+        for (ClientConnection client : online.values()) {
+            if (fresh.contains(client)) {
+                client.enqueue(userList);
+            } else if (delta != null) {
+                client.enqueue(delta);
+            }
+        }
+
+        notice(joinedNames, "đã tham gia chat");
+        notice(leftNames, "đã rời khỏi chat");
+        notice(removedNames, "đã bị xóa khỏi danh sách");
+    }
+
+    // Gọi khi giữ lock: mọi thay đổi có version <= version đã nằm trong danh sách
+    private OutboundFrame snapshot() {
+        return OutboundFrame.command("USERLIST", String.join(",", published), String.valueOf(version));
+    }
+
+    // Một dòng SYSTEM cho cả nhóm, ví dụ "a, b và 3 người khác đã tham gia chat"
+    private void notice(List<String> names, String action) {
+        if (names.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(String.join(", ", names.subList(0, Math.min(names.size(), MAX_NAMES_IN_NOTICE))));
+        if (names.size() > MAX_NAMES_IN_NOTICE) {
+            text.append(" và ").append(names.size() - MAX_NAMES_IN_NOTICE).append(" người khác");
+        }
+        OutboundFrame frame = OutboundFrame.command("MESSAGE", "SYSTEM", text + " " + action);
+        for (ClientConnection client : online.values()) {
+            client.enqueue(frame);
+        }
+    }
+}
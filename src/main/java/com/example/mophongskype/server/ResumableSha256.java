@@ -0,0 +1,164 @@
+package com.example.mophongskype.server;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * SHA-256 viết thuần Java để lấy ra / nạp lại được trạng thái giữa chừng (MessageDigest của JDK
+ * không cho). BlobStore lưu trạng thái ở cuối mỗi block của file .part, nên upload gửi tiếp
+ * băm tiếp từ đó thay vì đọc và băm lại cả phần đã nhận.
+ * Trạng thái chỉ lấy được ở biên 64 bytes (BLOCK_SIZE của ChunkSums luôn thỏa).
+ */
+final class ResumableSha256 extends MessageDigest {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] INITIAL = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    static final int STATE_WORDS = INITIAL.length;
+
+    private final int[] state = new int[STATE_WORDS];
+    private final int[] words = new int[64];
+    private final byte[] block = new byte[64];
+    private int blockLength;
+    private long length;
+
+    ResumableSha256() {
+        super("SHA-256");
+        engineReset();
+    }
+
+    // Trạng thái sau các bytes đã update; số bytes phải chia hết cho 64
+    int[] exportState() {
+        if (blockLength != 0) {
+            throw new IllegalStateException("Chỉ lấy được trạng thái ở biên 64 bytes");
+        }
+        return state.clone();
+    }
+
+    // Tiếp tục như thể đã update length bytes có trạng thái saved
+    void restore(int[] saved, long length) {
+        if (saved.length != STATE_WORDS || length % 64 != 0) {
+            throw new IllegalArgumentException("Trạng thái SHA-256 không hợp lệ");
+        }
+        System.arraycopy(saved, 0, state, 0, STATE_WORDS);
+        this.length = length;
+        this.blockLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLength++] = input;
+        length++;
+        if (blockLength == block.length) {
+            compress(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        length += len;
+        if (blockLength > 0) {
+            int count = Math.min(block.length - blockLength, len);
+            System.arraycopy(input, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            len -= count;
+            if (blockLength < block.length) {
+                return;
+            }
+            compress(block, 0);
+            blockLength = 0;
+        }
+        while (len >= block.length) {
+            compress(input, offset);
+            offset += block.length;
+            len -= block.length;
+        }
+        System.arraycopy(input, offset, block, 0, len);
+        blockLength = len;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long bits = length * 8;
+        block[blockLength++] = (byte) 0x80;
+        if (blockLength > 56) {
+            Arrays.fill(block, blockLength, block.length, (byte) 0);
+            compress(block, 0);
+            blockLength = 0;
+        }
+        Arrays.fill(block, blockLength, 56, (byte) 0);
+        for (int i = 0; i < 8; i++) {
+            block[56 + i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        compress(block, 0);
+        byte[] out = new byte[32];
+        for (int i = 0; i < STATE_WORDS; i++) {
+            out[4 * i] = (byte) (state[i] >>> 24);
+            out[4 * i + 1] = (byte) (state[i] >>> 16);
+            out[4 * i + 2] = (byte) (state[i] >>> 8);
+            out[4 * i + 3] = (byte) state[i];
+        }
+        engineReset();
+        return out;
+    }
+
+    @Override
+    protected void engineReset() {
+        System.arraycopy(INITIAL, 0, state, 0, STATE_WORDS);
+        blockLength = 0;
+        length = 0;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 32;
+    }
+
+    private void compress(byte[] input, int offset) {
+        int[] w = words;
+        for (int t = 0; t < 16; t++) {
+            int i = offset + 4 * t;
+            w[t] = (input[i] & 0xff) << 24 | (input[i + 1] & 0xff) << 16 | (input[i + 2] & 0xff) << 8 | (input[i + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; t++) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int t = 0; t < 64; t++) {
+            int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.mophongskype.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thành viên của từng phòng chat. Tin nhắn phòng chỉ duyệt tập thành viên của phòng đó,
+ * không duyệt toàn bộ client online. Phòng trống bị xóa khỏi index.
+ */
+final class RoomIndex {
+    private final Map<String, Set<ClientConnection>> members = new ConcurrentHashMap<>();
+
+    // compute/computeIfPresent giữ việc thêm và xóa phòng trống nguyên tử với nhau
+    void join(String room, ClientConnection connection) {
+        members.compute(room, (key, set) -> {
+            Set<ClientConnection> target = set != null ? set : ConcurrentHashMap.newKeySet();
+            target.add(connection);
+            return target;
+        });
+    }
+
+    void leave(String room, ClientConnection connection) {
+        members.computeIfPresent(room, (key, set) -> {
+            set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    // Tập thành viên hiện tại (duyệt an toàn khi có người vào/ra); rỗng nếu phòng không tồn tại
+    Set<ClientConnection> members(String room) {
+        Set<ClientConnection> set = room != null ? members.get(room) : null;
+        return set != null ? set : Set.of();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.mophongskype.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Phiên đăng nhập gắn với token trả về trong LOGIN_SUCCESS. Khi kết nối rớt, phiên được giữ
+ * trong thời gian chờ: user vẫn online với mọi người (không báo rời/vào), các frame gửi cho user
+ * được giữ lại và phát lại khi client RESUME bằng token trên kết nối mới.
+ * Mọi thao tác đồng bộ trên chính đối tượng Session (ChatServer cũng khóa nó khi đổi kết nối).
+ */
+final class Session {
+    final String token;
+    final String username;
+    private final int capacity;
+    // Kết nối đang phục vụ phiên; null khi đang chờ client nối lại
+    private ClientConnection attached;
+    // Kết nối đã rớt, vẫn nằm trong danh sách online và phòng cho tới khi nối lại hoặc hết hạn
+    private ClientConnection parked;
+    private final ArrayDeque<OutboundFrame> missed = new ArrayDeque<>();
+    // Đã phải bỏ frame vì giữ quá capacity: client cần danh sách user đầy đủ khi nối lại
+    private boolean overflowed = false;
+    private ScheduledFuture<?> expiry;
+
+    Session(String token, String username, ClientConnection connection, int capacity) {
+        this.token = token;
+        this.username = username;
+        this.attached = connection;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // Kết nối hiện gắn với user trong danh sách online (đang phục vụ hoặc đang chờ)
+    synchronized ClientConnection connection() {
+        return attached != null ? attached : parked;
+    }
+
+    synchronized boolean isParked(ClientConnection connection) {
+        return attached == null && parked == connection;
+    }
+
+    /**
+     * Kết nối rớt: đóng hàng đợi của nó và giữ các frame chưa gửi cùng mọi frame tới sau.
+     * @return false nếu connection không còn là kết nối của phiên
+     */
+    synchronized boolean park(ClientConnection connection) {
+        if (attached != connection) {
+            return false;
+        }
+        attached = null;
+        parked = connection;
+        for (OutboundFrame frame : connection.outbound.closeInto(this::hold)) {
+            hold(frame);
+        }
+        return true;
+    }
+
+    // Việc hết hạn đã lên lịch cho lần chờ hiện tại (hủy khi nối lại)
+    synchronized void expireWith(ScheduledFuture<?> expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * Gắn kết nối mới và phát lại các frame đã giữ (sau các frame đã xếp cho kết nối mới).
+     * @return true nếu đã có frame bị bỏ trong lúc chờ
+     */
+    synchronized boolean attach(ClientConnection connection) {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        attached = connection;
+        parked = null;
+        OutboundFrame frame;
+        while ((frame = missed.pollFirst()) != null) {
+            connection.enqueue(frame);
+        }
+        boolean lost = overflowed;
+        overflowed = false;
+        return lost;
+    }
+
+    // Phiên kết thúc (logout, bị xóa, hết hạn): bỏ các frame đang giữ
+    synchronized void discard() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        missed.clear();
+    }
+
+    // Frame xếp cho kết nối đã rớt; kết nối cũ còn trong các tập broadcast nên frame vẫn tới đây
+    private synchronized void hold(OutboundFrame frame) {
+        if (attached != null) {
+            attached.enqueue(frame); // đã nối lại: ai đó còn giữ tham chiếu kết nối cũ
+            return;
+        }
+        if (frame instanceof OutboundFrame.ProtocolSwitch) {
+            return; // thuộc về kết nối cũ, kết nối mới tự thỏa thuận giao thức
+        }
+        if (missed.size() >= capacity) {
+            missed.pollFirst();
+            overflowed = true;
+        }
+        missed.addLast(frame);
+    }
+}
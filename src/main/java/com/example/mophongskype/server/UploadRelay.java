@@ -0,0 +1,153 @@
+package com.example.mophongskype.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tiến độ của một upload đang nhận (chế độ relay, -Dchat.upload.relay=true).
+ * Kết nối của người gửi ghi bytes vào file tạm của BlobStore rồi gọi advance(); writer
+ * của người nhận đọc đuổi theo phần đã ghi trên cùng file, nên người nhận bắt đầu tải
+ * khi upload chưa xong và người vào sau vẫn GET_FILE được blob đầy đủ trên đĩa.
+ */
+final class UploadRelay {
+    final String fileName;
+    final File file;
+    final long size;
+    // Blob mà file tạm sẽ được chuyển thành; đặt trước khi chuyển để open() không hụt
+    private volatile File committed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    // Callback của kết nối NIO đang chờ thêm dữ liệu (không được block event-loop)
+    private final List<Runnable> waiters = new ArrayList<>();
+    private long written = 0;
+    private boolean done = false;
+    private boolean failed = false;
+
+    UploadRelay(String fileName, File file, long size) {
+        this.fileName = fileName;
+        this.file = file;
+        this.size = size;
+    }
+
+    // Mở file để đọc đuổi: file tạm, hoặc blob nếu file tạm vừa được chuyển vào kho
+    FileChannel open() throws IOException {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            File blob = committed;
+            if (blob == null) {
+                throw e;
+            }
+            return FileChannel.open(blob.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    void committing(File blob) {
+        committed = blob;
+    }
+
+    // Người gửi: thêm bytes vừa ghi xuống file
+    void advance(long bytes) {
+        List<Runnable> ready;
+        lock.lock();
+        try {
+            written += bytes;
+            progress.signalAll();
+            ready = takeWaiters();
+        } finally {
+            lock.unlock();
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    // Người gửi: upload kết thúc (thành công hoặc bị hủy)
+    void finish(boolean success) {
+        List<Runnable> ready;
+        lock.lock();
+        try {
+            done = true;
+            failed = !success || written < size;
+            progress.signalAll();
+            ready = takeWaiters();
+        } finally {
+            lock.unlock();
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Chờ tới khi có dữ liệu sau position (dùng cho writer blocking).
+     * @return số bytes đã ghi xuống file, luôn lớn hơn position nếu position < size
+     */
+    long awaitAvailable(long position) throws IOException {
+        return awaitAvailable(position, Long.MAX_VALUE);
+    }
+
+    /**
+     * Như trên nhưng chờ tối đa timeoutNanos, để writer v2 gửi tin nhắn đang chờ trong lúc đợi.
+     * @return số bytes đã ghi xuống file, có thể bằng position nếu hết giờ chờ
+     */
+    long awaitAvailable(long position, long timeoutNanos) throws IOException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (written <= position && !done && remaining > 0) {
+                remaining = progress.awaitNanos(remaining);
+            }
+            return available();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bị ngắt khi chờ upload " + fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Không chờ: số bytes đã ghi xuống file.
+     * @throws IOException nếu upload bị hủy giữa chừng
+     */
+    long available() throws IOException {
+        lock.lock();
+        try {
+            if (failed) {
+                throw new IOException("Upload " + fileName + " bị hủy giữa chừng");
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gọi callback (một lần) khi có dữ liệu sau position hoặc upload kết thúc
+    void whenAvailable(long position, Runnable callback) {
+        lock.lock();
+        try {
+            if (written <= position && !done) {
+                waiters.add(callback);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        callback.run();
+    }
+
+    private List<Runnable> takeWaiters() {
+        if (waiters.isEmpty()) {
+            return List.of();
+        }
+        List<Runnable> ready = new ArrayList<>(waiters);
+        waiters.clear();
+        return ready;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.mophongskype.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thống kê ghi ra socket của toàn server: số frame và số lần flush.
+ * Frame trên mỗi flush cho biết việc gom frame (chat.write.batch / chat.write.delay.ms)
+ * đang tiết kiệm được bao nhiêu lệnh write.
+ */
+public class WriteStats {
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    void recordFlush(int frameCount) {
+        frames.add(frameCount);
+        flushes.increment();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public double getAverageFramesPerFlush() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) frames.sum() / flushCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d, flushes=%d, frames/flush=%.2f", getFrames(), getFlushes(), getAverageFramesPerFlush());
+    }
+}
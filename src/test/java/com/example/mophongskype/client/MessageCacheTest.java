@@ -0,0 +1,103 @@
+package com.example.mophongskype.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCacheTest {
+    private static final String ROOM = "general";
+
+    @TempDir
+    Path dir;
+
+    private File roomDir() {
+        return new File(dir.toFile(), HexFormat.of().formatHex(ROOM.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageCache.Entry text(long seq, String text) {
+        return new MessageCache.Entry(MessageCache.Kind.TEXT, seq, 1000 + seq, "admin", text);
+    }
+
+    private MessageCache filledCache(int count) {
+        MessageCache cache = new MessageCache(dir.toFile());
+        for (int seq = 1; seq <= count; seq++) {
+            assertTrue(cache.append(ROOM, text(seq, "tin " + seq)));
+        }
+        return cache;
+    }
+
+    @Test
+    void recentReturnsNewestInOrderAcrossReopen() {
+        filledCache(5);
+
+        MessageCache reopened = new MessageCache(dir.toFile());
+        List<MessageCache.Entry> recent = reopened.recent(ROOM, 3);
+
+        assertEquals(3, recent.size());
+        assertEquals("tin 3", recent.get(0).text);
+        assertEquals("tin 5", recent.get(2).text);
+        assertEquals(5, reopened.lastSeq(ROOM));
+    }
+
+    @Test
+    void duplicateOrOlderTextIsIgnored() {
+        MessageCache cache = filledCache(3);
+
+        assertFalse(cache.append(ROOM, text(3, "trùng")));
+        assertFalse(cache.append(ROOM, text(2, "cũ")));
+        // Ảnh/file không có seq server nên không bị coi là trùng
+        assertTrue(cache.append(ROOM, new MessageCache.Entry(MessageCache.Kind.IMAGE, 0, 0, "admin", "/tmp/a.png")));
+        assertEquals(4, cache.recent(ROOM, 10).size());
+        assertEquals(3, cache.lastSeq(ROOM));
+    }
+
+    @Test
+    void tornRecordAtTailIsTrimmedOnOpen() throws IOException {
+        filledCache(3);
+        File data = new File(roomDir(), "000000000000.seg");
+        File index = new File(roomDir(), "000000000000.idx");
+        // Tắt đột ngột: mục chỉ mục của bản ghi cuối đã ghi nhưng dữ liệu chỉ ghi được một nửa
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        long indexLength = index.length();
+
+        MessageCache reopened = new MessageCache(dir.toFile());
+        List<MessageCache.Entry> recent = reopened.recent(ROOM, 10);
+
+        assertEquals(2, recent.size());
+        assertEquals(2, reopened.lastSeq(ROOM));
+        assertEquals(indexLength - 4, index.length());
+        // Ghi tiếp nối ngay sau bản ghi còn nguyên, không để lại rác ở giữa
+        assertTrue(reopened.append(ROOM, text(3, "tin 3 lại")));
+        assertEquals("tin 3 lại", new MessageCache(dir.toFile()).recent(ROOM, 1).get(0).text);
+    }
+
+    @Test
+    void dataWithoutIndexEntryIsTrimmedOnOpen() throws IOException {
+        filledCache(2);
+        File data = new File(roomDir(), "000000000000.seg");
+        long dataLength = data.length();
+        // Dữ liệu của bản ghi đã ghi một phần nhưng chưa kịp ghi chỉ mục
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(dataLength);
+            raf.write(new byte[]{0, 0, 0, 40, 0, 0});
+        }
+
+        MessageCache reopened = new MessageCache(dir.toFile());
+
+        assertEquals(2, reopened.recent(ROOM, 10).size()); // phòng được mở (và cắt đuôi) lúc dùng lần đầu
+        assertEquals(dataLength, data.length());
+        assertTrue(reopened.append(ROOM, text(3, "tin 3")));
+        assertEquals(3, new MessageCache(dir.toFile()).recent(ROOM, 10).size());
+    }
+}
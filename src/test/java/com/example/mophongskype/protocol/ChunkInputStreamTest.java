@@ -0,0 +1,104 @@
+package com.example.mophongskype.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkInputStreamTest {
+    private static final int STREAM_ID = 7;
+
+    private static byte[] body(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void interleavedCommandsAreHandledWhileBodyIsRead() throws IOException {
+        byte[] data = body(3 * FrameCodec.CHUNK_SIZE + 123);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(wire, Opcode.FILE_DATA, STREAM_ID, "a.bin", String.valueOf(data.length));
+        int message = 0;
+        for (int offset = 0; offset < data.length; offset += FrameCodec.CHUNK_SIZE) {
+            // Tin chat chen giữa các CHUNK của file
+            FrameCodec.writeFrame(wire, Opcode.MESSAGE, 0, "admin", "m" + message++);
+            FrameCodec.writeChunk(wire, STREAM_ID, data, offset, Math.min(FrameCodec.CHUNK_SIZE, data.length - offset));
+        }
+        FrameCodec.writeFrame(wire, Opcode.MESSAGE, 0, "admin", "after");
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()));
+        List<String> handled = new ArrayList<>();
+
+        assertTrue(reader.next());
+        assertEquals(Opcode.FILE_DATA, reader.opcode());
+        ChunkInputStream in = new ChunkInputStream(reader, reader.streamId(), data.length,
+                interleaved -> handled.add(interleaved.toParts()[2]));
+
+        assertArrayEquals(data, readAll(in));
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), handled);
+        // Frame sau transfer vẫn còn nguyên cho vòng đọc chính
+        assertTrue(reader.next());
+        assertArrayEquals(new String[]{"MESSAGE", "admin", "after"}, reader.toParts());
+    }
+
+    @Test
+    void stopsAtDeclaredSizeEvenIfChunkIsLonger() throws IOException {
+        byte[] data = body(100);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeChunks(wire, STREAM_ID, data);
+        ChunkInputStream in = new ChunkInputStream(new FrameReader(new ByteArrayInputStream(wire.toByteArray())), STREAM_ID, 60);
+
+        assertArrayEquals(Arrays.copyOf(data, 60), readAll(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void failedFrameOnSameStreamAbortsTransfer() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeChunk(wire, STREAM_ID, body(10), 0, 10);
+        FrameCodec.writeFrame(wire, Opcode.FILE_FAILED, STREAM_ID, "a.bin");
+        ChunkInputStream in = new ChunkInputStream(new FrameReader(new ByteArrayInputStream(wire.toByteArray())), STREAM_ID, 100);
+
+        assertEquals(10, in.read(new byte[100], 0, 100));
+        assertThrows(IOException.class, () -> in.read(new byte[100], 0, 100));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void interleavedCommandWithoutHandlerIsRejected() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(wire, Opcode.MESSAGE, 0, "admin", "hi");
+        FrameCodec.writeChunk(wire, STREAM_ID, body(10), 0, 10);
+        ChunkInputStream in = new ChunkInputStream(new FrameReader(new ByteArrayInputStream(wire.toByteArray())), STREAM_ID, 10);
+
+        assertThrows(IOException.class, in::read);
+    }
+
+    @Test
+    void endOfStreamBeforeBodyCompleteReturnsMinusOne() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeChunk(wire, STREAM_ID, body(10), 0, 10);
+        ChunkInputStream in = new ChunkInputStream(new FrameReader(new ByteArrayInputStream(wire.toByteArray())), STREAM_ID, 20);
+
+        assertEquals(10, readAll(in).length);
+    }
+}
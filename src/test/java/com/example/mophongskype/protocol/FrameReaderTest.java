@@ -0,0 +1,27 @@
+package com.example.mophongskype.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameReaderTest {
+
+    @Test
+    void commandFieldsRoundTripWithColons() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(wire, Opcode.MESSAGE, 0, "admin", "giờ: 10:30, link http://x");
+        FrameCodec.writeFrame(wire, Opcode.COMMAND, 0, "NEW_COMMAND", "a", "");
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()));
+
+        assertTrue(reader.next());
+        assertArrayEquals(new String[]{"MESSAGE", "admin", "giờ: 10:30, link http://x"}, reader.toParts());
+        assertTrue(reader.next());
+        // COMMAND: field đầu là tên lệnh chưa có opcode riêng
+        assertArrayEquals(new String[]{"NEW_COMMAND", "a", ""}, reader.toParts());
+        assertFalse(reader.next());
+    }
+}
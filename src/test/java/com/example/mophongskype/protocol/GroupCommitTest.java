@@ -0,0 +1,88 @@
+package com.example.mophongskype.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitTest {
+
+    @Test
+    void batchedSyncsEachKeyOncePerBatch() throws Exception {
+        GroupCommit commits = new GroupCommit(GroupCommit.Durability.BATCHED, "test-fsync");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Yêu cầu đầu giữ thread fsync lại để các yêu cầu sau dồn vào cùng một lượt
+        CompletableFuture<Void> blocker = commits.sync(new Object(), () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Object first = new Object();
+        Object second = new Object();
+        AtomicInteger firstSyncs = new AtomicInteger();
+        AtomicInteger secondSyncs = new AtomicInteger();
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[10];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = i % 2 == 0
+                    ? commits.sync(first, firstSyncs::incrementAndGet)
+                    : commits.sync(second, secondSyncs::incrementAndGet);
+        }
+        assertFalse(pending[0].isDone());
+        release.countDown();
+
+        CompletableFuture.allOf(pending).get(5, TimeUnit.SECONDS);
+        blocker.get(5, TimeUnit.SECONDS);
+        assertEquals(1, firstSyncs.get());
+        assertEquals(1, secondSyncs.get());
+    }
+
+    @Test
+    void batchedFailureCompletesEveryRequestOfThatKey() throws Exception {
+        GroupCommit commits = new GroupCommit(GroupCommit.Durability.BATCHED, "test-fsync");
+        Object key = new Object();
+
+        CompletableFuture<Void> failed = commits.sync(key, () -> {
+            throw new IOException("đĩa đầy");
+        });
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof IOException);
+        // Lượt sau chạy lại bình thường
+        commits.sync(key, () -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void perWriteSyncsImmediatelyOnCaller() {
+        GroupCommit commits = new GroupCommit(GroupCommit.Durability.PER_WRITE, "test-fsync");
+        Object key = new Object();
+        AtomicInteger syncs = new AtomicInteger();
+
+        assertTrue(commits.sync(key, syncs::incrementAndGet).isDone());
+        assertTrue(commits.sync(key, syncs::incrementAndGet).isDone());
+        assertEquals(2, syncs.get());
+        assertTrue(commits.sync(key, () -> {
+            throw new IOException("lỗi");
+        }).isCompletedExceptionally());
+    }
+
+    @Test
+    void noneNeverSyncs() {
+        GroupCommit commits = new GroupCommit(GroupCommit.Durability.NONE, "test-fsync");
+        AtomicInteger syncs = new AtomicInteger();
+
+        assertTrue(commits.sync(new Object(), syncs::incrementAndGet).isDone());
+        assertEquals(0, syncs.get());
+    }
+}
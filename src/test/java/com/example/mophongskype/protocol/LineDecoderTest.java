@@ -0,0 +1,125 @@
+package com.example.mophongskype.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineDecoderTest {
+
+    // Stream gốc trả tối đa step bytes mỗi lần read, để dòng bị cắt ở mọi vị trí
+    private static final class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int step;
+        private int pos = 0;
+
+        TrickleInputStream(byte[] data, int step) {
+            this.data = data;
+            this.step = step;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (pos == data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, step), data.length - pos);
+            System.arraycopy(data, pos, target, offset, count);
+            pos += count;
+            return count;
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void readsLinesSplitAcrossReads() throws IOException {
+        LineDecoder decoder = new LineDecoder(new TrickleInputStream(utf8("LOGIN:test:test\r\nMESSAGE:xin chào\n\nEND"), 1), 4);
+
+        assertEquals("LOGIN:test:test", decoder.readLine());
+        assertEquals("MESSAGE:xin chào", decoder.readLine());
+        assertEquals("", decoder.readLine());
+        assertEquals("END", decoder.readLine()); // dòng cuối không có '\n'
+        assertNull(decoder.readLine());
+    }
+
+    @Test
+    void decodesMultiByteCharactersSplitBetweenReads() throws IOException {
+        String line = "Tiếng Việt có dấu 😀";
+        for (int step = 1; step <= 5; step++) {
+            LineDecoder decoder = new LineDecoder(new TrickleInputStream(utf8(line + "\n"), step), 8);
+            assertEquals(line, decoder.readLine(), "step " + step);
+        }
+    }
+
+    @Test
+    void growsBufferForLinesLongerThanIt() throws IOException {
+        String longLine = "x".repeat(10_000);
+        LineDecoder decoder = new LineDecoder(new ByteArrayInputStream(utf8(longLine + "\nnext\n")), 16);
+
+        assertEquals(longLine, decoder.readLine());
+        assertEquals("next", decoder.readLine());
+    }
+
+    @Test
+    void rejectsLineWithoutNewlineBeyondLimit() {
+        byte[] garbage = new byte[2 * 1024 * 1024];
+        LineDecoder decoder = new LineDecoder(new ByteArrayInputStream(garbage));
+
+        assertThrows(IOException.class, decoder::readLine);
+    }
+
+    @Test
+    void returnsBinaryBodyAfterHeaderWithoutLosingBufferedBytes() throws IOException {
+        byte[] body = new byte[50_000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(utf8("FILE_DATA:a.bin:" + body.length + "\n"));
+        wire.write(body);
+        wire.write(utf8("MESSAGE:after\n"));
+        LineDecoder decoder = new LineDecoder(new TrickleInputStream(wire.toByteArray(), 3000), 1024);
+
+        assertEquals("FILE_DATA:a.bin:50000", decoder.readLine());
+        byte[] received = new byte[body.length];
+        int total = 0;
+        while (total < received.length) {
+            // Đọc lớn hơn buffer: phần đã đệm trước, phần còn lại đọc thẳng từ stream gốc
+            int read = decoder.read(received, total, Math.min(4096, received.length - total));
+            assertTrue(read > 0);
+            total += read;
+        }
+        assertArrayEquals(body, received);
+        assertEquals("MESSAGE:after", decoder.readLine());
+    }
+
+    @Test
+    void transferToCopiesExactlyCountBytes() throws IOException {
+        byte[] body = utf8("0123456789".repeat(100));
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(utf8("HEADER\n"));
+        wire.write(body);
+        wire.write(utf8("TAIL\n"));
+        LineDecoder decoder = new LineDecoder(new TrickleInputStream(wire.toByteArray(), 7), 32);
+
+        assertEquals("HEADER", decoder.readLine());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(body.length, decoder.transferTo(out, body.length));
+        assertArrayEquals(body, out.toByteArray());
+        assertEquals("TAIL", decoder.readLine());
+        assertEquals(0, decoder.transferTo(new ByteArrayOutputStream(), 10)); // hết stream
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.mophongskype.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioTransportTest {
+
+    @TempDir
+    Path dir;
+
+    private ChatServer server;
+    private int port;
+
+    // Tài khoản cố định, không đụng tới users.properties
+    private static final class FixedCredentials implements CredentialStore {
+        @Override
+        public boolean verify(String username, String password) {
+            return exists(username) && username.equals(password);
+        }
+
+        @Override
+        public boolean exists(String username) {
+            return "test".equals(username) || "admin".equals(username);
+        }
+    }
+
+    @BeforeEach
+    void startServer() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("chat.port", String.valueOf(port));
+        System.setProperty("chat.data.dir", dir.toString());
+        System.setProperty("chat.nio.threads", "1");
+        server = new ChatServer(ChatServer.Transport.NIO, null, new FixedCredentials());
+        new Thread(server::start, "nio-test-server").start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+        System.clearProperty("chat.port");
+        System.clearProperty("chat.data.dir");
+        System.clearProperty("chat.nio.threads");
+    }
+
+    private Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100); // server chưa bind xong
+            }
+        }
+    }
+
+    // Gửi từng phần riêng lẻ, nghỉ giữa các lần để server nhận thành nhiều lần read
+    private static void writeSplit(OutputStream out, byte[]... parts) throws Exception {
+        for (byte[] part : parts) {
+            out.write(part);
+            out.flush();
+            Thread.sleep(50);
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String waitFor(InputStream in, String prefix) throws IOException {
+        String line;
+        while ((line = readLine(in)) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void loginAndLinesSplitAcrossReads() throws Exception {
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            writeSplit(out, utf8("LOG"), utf8("IN:test:te"), utf8("st\n"));
+            assertNotNull(waitFor(in, "LOGIN_SUCCESS:"));
+
+            // Ký tự nhiều byte bị cắt giữa hai lần read vẫn giải mã đúng
+            byte[] message = utf8("MESSAGE:xin chào\n");
+            int cut = "MESSAGE:xin ch".length() + 1;
+            writeSplit(out, Arrays.copyOfRange(message, 0, cut),
+                    Arrays.copyOfRange(message, cut, message.length));
+            assertEquals("ROOM_MESSAGE:1:test:xin chào", waitFor(in, "ROOM_MESSAGE:1:"));
+        }
+    }
+
+    @Test
+    void wrongPasswordIsRejected() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(utf8("LOGIN:test:sai\n"));
+            assertNotNull(waitFor(socket.getInputStream(), "LOGIN_FAILED:"));
+        }
+    }
+
+    @Test
+    void uploadBodySplitAcrossReadsIsStored() throws Exception {
+        byte[] body = new byte[3 * 1024 * 1024 + 17]; // lớn hơn hàng đợi ghi: đi qua cả backpressure
+        new Random(1).nextBytes(body);
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(utf8("LOGIN:test:test\n"));
+            assertNotNull(waitFor(in, "LOGIN_SUCCESS:"));
+
+            // Header và đầu body chung một lần gửi, phần còn lại theo sau, rồi một lệnh ngay sau body
+            byte[] header = utf8("SEND_FILE:a.bin:" + body.length + "\n");
+            byte[] first = new byte[header.length + 1000];
+            System.arraycopy(header, 0, first, 0, header.length);
+            System.arraycopy(body, 0, first, header.length, 1000);
+            writeSplit(out, first, Arrays.copyOfRange(body, 1000, body.length), utf8("MESSAGE:sau file\n"));
+
+            // finish() chạy bất đồng bộ nên FILE_RECEIVED và tin nhắn sau body có thể tới theo thứ tự bất kỳ
+            boolean received = false;
+            boolean messaged = false;
+            String line;
+            while ((!received || !messaged) && (line = readLine(in)) != null) {
+                assertFalse(line.startsWith("FILE_FAILED:"), line);
+                received |= line.equals("FILE_RECEIVED:a.bin");
+                messaged |= line.startsWith("ROOM_MESSAGE:") && line.endsWith(":test:sau file");
+            }
+            assertTrue(received);
+            assertTrue(messaged);
+        }
+        File blob = dir.resolve("uploads").resolve("blobs").resolve(hash).toFile();
+        assertTrue(blob.isFile());
+        assertArrayEquals(body, Files.readAllBytes(blob.toPath()));
+    }
+}
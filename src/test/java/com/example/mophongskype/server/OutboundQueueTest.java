@@ -0,0 +1,97 @@
+package com.example.mophongskype.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    // Các frame đang chờ, dạng dòng v1
+    private static List<String> drain(OutboundQueue queue) {
+        List<OutboundFrame> batch = new ArrayList<>();
+        queue.pollBatch(batch, Integer.MAX_VALUE);
+        List<String> lines = new ArrayList<>();
+        for (OutboundFrame frame : batch) {
+            lines.add(((OutboundFrame.Text) frame).line());
+        }
+        return lines;
+    }
+
+    @Test
+    void disconnectPolicyRejectsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DISCONNECT);
+
+        assertTrue(queue.offer(OutboundFrame.command("MESSAGE", "a", "1")));
+        assertTrue(queue.offer(OutboundFrame.command("MESSAGE", "a", "2")));
+        assertFalse(queue.offer(OutboundFrame.command("MESSAGE", "a", "3")));
+        assertEquals(Arrays.asList("MESSAGE:a:1", "MESSAGE:a:2"), drain(queue));
+    }
+
+    @Test
+    void dropOldestDropsOldestChatOfAnyKind() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        queue.offer(OutboundFrame.command("LOGIN_SUCCESS", "token"));
+        queue.offer(OutboundFrame.command("ROOM_MESSAGE", "1", "a", "old"));
+        queue.offer(OutboundFrame.command("PRIVATE", "b", "dm"));
+        assertTrue(queue.offer(OutboundFrame.command("ROOM_MESSAGE", "2", "a", "new")));
+        assertTrue(queue.offer(OutboundFrame.command("MESSAGE", "SYSTEM", "hi")));
+
+        // Frame điều khiển được giữ, tin chat cũ nhất (ROOM_MESSAGE rồi PRIVATE) bị bỏ
+        assertEquals(Arrays.asList("LOGIN_SUCCESS:token", "ROOM_MESSAGE:2:a:new", "MESSAGE:SYSTEM:hi"), drain(queue));
+        assertEquals(2, queue.getDroppedFrames());
+    }
+
+    @Test
+    void dropOldestRejectsWhenNothingCanBeDropped() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        queue.offer(OutboundFrame.command("LOGIN_SUCCESS", "token"));
+        queue.offer(OutboundFrame.command("ROOM_JOINED", "general"));
+
+        assertFalse(queue.offer(OutboundFrame.command("MESSAGE", "a", "1")));
+        assertEquals(0, queue.getDroppedFrames());
+    }
+
+    @Test
+    void coalesceKeepsOnlyNewestUserList() {
+        OutboundQueue queue = new OutboundQueue(10, OutboundQueue.OverflowPolicy.COALESCE_USERLIST);
+
+        queue.offer(OutboundFrame.command("USERLIST", "a"));
+        queue.offer(OutboundFrame.command("MESSAGE", "a", "1"));
+        queue.offer(OutboundFrame.command("USERLIST", "a,b"));
+        queue.offer(OutboundFrame.command("USERLIST", "a,b,c"));
+
+        assertEquals(Arrays.asList("MESSAGE:a:1", "USERLIST:a,b,c"), drain(queue));
+        assertEquals(2, queue.getDroppedFrames());
+    }
+
+    @Test
+    void dropOldestDoesNotCoalesceUserLists() {
+        OutboundQueue queue = new OutboundQueue(10, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        queue.offer(OutboundFrame.command("USERLIST", "a"));
+        queue.offer(OutboundFrame.command("USERLIST", "a,b"));
+
+        assertEquals(Arrays.asList("USERLIST:a", "USERLIST:a,b"), drain(queue));
+    }
+
+    @Test
+    void closedQueueRedirectsNewFramesAfterCloseInto() {
+        OutboundQueue queue = new OutboundQueue(10, OutboundQueue.OverflowPolicy.DISCONNECT);
+        List<OutboundFrame> parked = new ArrayList<>();
+
+        queue.offer(OutboundFrame.command("MESSAGE", "a", "1"));
+        List<OutboundFrame> pending = queue.closeInto(parked::add);
+        assertTrue(queue.offer(OutboundFrame.command("MESSAGE", "a", "2")));
+
+        assertEquals(1, pending.size());
+        assertEquals(1, parked.size());
+        assertEquals("MESSAGE:a:2", ((OutboundFrame.Text) parked.get(0)).line());
+        assertEquals(0, queue.size());
+    }
+}
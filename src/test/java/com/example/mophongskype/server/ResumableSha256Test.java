@@ -0,0 +1,54 @@
+package com.example.mophongskype.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResumableSha256Test {
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void matchesJdkForAllPaddingLengths() throws Exception {
+        for (int size = 0; size <= 200; size++) {
+            byte[] data = data(size);
+            ResumableSha256 digest = new ResumableSha256();
+            // Update lẻ từng đoạn để đi qua cả nhánh đệm block
+            for (int offset = 0; offset < size; offset += 7) {
+                digest.update(data, offset, Math.min(7, size - offset));
+            }
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest(), "size " + size);
+        }
+    }
+
+    @Test
+    void restoredStateContinuesTheSameHash() throws Exception {
+        byte[] data = data(3 * 4096 + 100);
+        ResumableSha256 first = new ResumableSha256();
+        first.update(data, 0, 2 * 4096);
+        int[] saved = first.exportState();
+
+        // Như upload gửi tiếp: digest mới chỉ nhận phần sau checkpoint
+        ResumableSha256 resumed = new ResumableSha256();
+        resumed.restore(saved, 2 * 4096);
+        resumed.update(data, 2 * 4096, data.length - 2 * 4096);
+
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), resumed.digest());
+    }
+
+    @Test
+    void stateIsOnlyAvailableOnBlockBoundary() {
+        ResumableSha256 digest = new ResumableSha256();
+        digest.update(new byte[10]);
+
+        assertThrows(IllegalStateException.class, digest::exportState);
+        assertThrows(IllegalArgumentException.class, () -> digest.restore(new int[8], 10));
+    }
+}
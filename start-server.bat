@@ -2,5 +2,5 @@
 echo === SKYPE SERVER ===
 echo Dang khoi dong server...
 echo.
-java -cp target/classes com.example.mophongskype.ServerLauncher
+java -cp target/classes com.example.mophongskype.ServerLauncher %*
 pause